@@ -0,0 +1,200 @@
+package bookrecommender.client.net;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Gestore delle connessioni verso il server, condiviso da tutti i ServerApi
+ * che puntano allo stesso host:porta.
+ *
+ * Tiene un piccolo insieme di connessioni già aperte (benvenuto già letto)
+ * e le riusa tra una richiesta e l'altra, evitando ogni volta il connect TCP
+ * e lo scambio del messaggio di benvenuto. Le connessioni inattive da troppo
+ * tempo vengono chiuse; quelle rotte vengono scartate e il chiamante ne
+ * riceve una nuova.
+ */
+public class ConnectionManager {
+
+    private static final int  MAX_IDLE = 4;                 // connessioni tenute aperte in attesa
+    private static final long IDLE_TIMEOUT_MS = 60_000;     // oltre, la connessione viene chiusa
+    private static final int  CONNECT_TIMEOUT_MS = 5_000;
+    private static final int  READ_TIMEOUT_MS = 30_000;
+
+    private static final Map<String, ConnectionManager> SHARED = new ConcurrentHashMap<>();
+
+    /** Restituisce il gestore condiviso per host:porta (creato al primo uso). */
+    public static ConnectionManager shared(String host, int port) {
+        return SHARED.computeIfAbsent(host + ":" + port, k -> new ConnectionManager(host, port));
+    }
+
+    /** Connessione già pronta per scambiare comandi. */
+    public static final class Conn {
+        private final Socket socket;
+        private final BufferedReader in;
+        private final Writer out;
+        private long lastUsedMs;
+        private boolean reused = false;
+
+        private Conn(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            this.out = new BufferedWriter(
+                    new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            this.lastUsedMs = System.currentTimeMillis();
+        }
+
+        /**
+         * Invia i comandi in pipeline (un solo flush) e legge le risposte in ordine.
+         *
+         * @throws StaleConnectionException se la connessione era già chiusa:
+         *         la scrittura è fallita oppure, prima ancora della prima
+         *         risposta, il server ha chiuso o resettato il socket. In quel
+         *         caso nessun comando è stato eseguito
+         */
+        public List<ServerApi.Response> exchange(List<String> commands) throws IOException {
+            try {
+                for (String command : commands) {
+                    out.write(command + "\n");
+                }
+                out.flush();
+            } catch (IOException e) {
+                throw new StaleConnectionException(e);
+            }
+
+            String first;
+            try {
+                first = in.readLine();
+            } catch (SocketTimeoutException e) {
+                throw e; // il server sta ancora lavorando: i comandi potrebbero essere stati eseguiti
+            } catch (SocketException e) {
+                throw new StaleConnectionException(e);
+            }
+            if (first == null) throw new StaleConnectionException(null);
+
+            List<ServerApi.Response> res = new ArrayList<>(commands.size());
+            res.add(ServerApi.readResponse(first, in));
+            for (int i = 1; i < commands.size(); i++) {
+                res.add(ServerApi.readResponse(in));
+            }
+            return res;
+        }
+
+        /** true se la connessione arriva dal pool (potrebbe essere stata chiusa dal server). */
+        public boolean wasReused() {
+            return reused;
+        }
+
+        private void close() {
+            try { socket.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    /**
+     * Connessione trovata chiusa prima che il server leggesse i comandi
+     * (es. server riavviato o connessione inattiva chiusa dall'altro lato).
+     */
+    public static final class StaleConnectionException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        StaleConnectionException(IOException cause) {
+            super("Connessione chiusa dal server", cause);
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final Deque<Conn> idle = new ArrayDeque<>();
+
+    private ConnectionManager(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /** Prende una connessione inattiva valida oppure ne apre una nuova. */
+    public Conn acquire() throws IOException {
+        long now = System.currentTimeMillis();
+        synchronized (idle) {
+            Conn c;
+            while ((c = idle.pollFirst()) != null) {
+                if (c.socket.isClosed() || now - c.lastUsedMs > IDLE_TIMEOUT_MS) {
+                    c.close();
+                    continue;
+                }
+                c.reused = true;
+                return c;
+            }
+        }
+        return open();
+    }
+
+    /** Apre sempre una connessione nuova (usato anche per ritentare dopo un errore). */
+    public Conn open() throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            socket.setSoTimeout(READ_TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+            Conn c = new Conn(socket);
+            readWelcome(c.in);
+            return c;
+        } catch (IOException e) {
+            try { socket.close(); } catch (IOException ignored) {}
+            throw e;
+        }
+    }
+
+    /** Restituisce una connessione sana al pool. */
+    public void release(Conn c) {
+        c.lastUsedMs = System.currentTimeMillis();
+        synchronized (idle) {
+            if (!c.socket.isClosed() && idle.size() < MAX_IDLE) {
+                idle.offerFirst(c);
+                return;
+            }
+        }
+        c.close();
+    }
+
+    /** Scarta una connessione che ha dato errore. */
+    public void invalidate(Conn c) {
+        c.close();
+    }
+
+    /** Chiude tutte le connessioni inattive (es. alla chiusura dell'app). */
+    public void closeAll() {
+        synchronized (idle) {
+            Conn c;
+            while ((c = idle.pollFirst()) != null) {
+                c.close();
+            }
+        }
+    }
+
+    /** Chiude le connessioni di tutti i gestori condivisi. */
+    public static void closeAllShared() {
+        SHARED.values().forEach(ConnectionManager::closeAll);
+    }
+
+    /**
+     * Legge il messaggio di benvenuto. Se il server ha raggiunto il limite
+     * di sessioni risponde "ERR BUSY" al posto del benvenuto e chiude.
+     */
+    private static void readWelcome(BufferedReader in) throws IOException {
+        String welcome = in.readLine();
+        if (welcome == null) throw new IOException("Nessuna risposta dal server");
+        if (welcome.startsWith("ERR BUSY")) {
+            throw new IOException("Server occupato, riprova tra qualche istante");
+        }
+    }
+}
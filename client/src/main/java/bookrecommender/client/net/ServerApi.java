@@ -6,8 +6,6 @@ import bookrecommender.model.Suggestion;
 import bookrecommender.service.AggregationService;
 
 import java.io.*;
-import java.net.Socket;
-import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -18,92 +16,403 @@ public class ServerApi {
         public final String titolo;
         public final String autori;
         public final Integer anno;
+        public final String editore;    // presenti solo nelle risposte a faccette
+        public final String categoria;
 
         public BookRow(int id, String titolo, String autori, Integer anno) {
+            this(id, titolo, autori, anno, null, null);
+        }
+
+        public BookRow(int id, String titolo, String autori, Integer anno, String editore, String categoria) {
             this.id = id;
             this.titolo = titolo;
             this.autori = autori;
             this.anno = anno;
+            this.editore = editore;
+            this.categoria = categoria;
+        }
+    }
+
+    /**
+     * Risultato di SEARCH_FACETS: i primi libri, il totale dopo i filtri e,
+     * per faccetta ("categoria", "editore", "decennio"), valore -> conteggio
+     * dal più frequente.
+     */
+    public static class FacetedPage {
+        public final List<BookRow> rows;
+        public final int total;
+        public final Map<String, LinkedHashMap<String, Integer>> facets;
+
+        public FacetedPage(List<BookRow> rows, int total, Map<String, LinkedHashMap<String, Integer>> facets) {
+            this.rows = rows;
+            this.total = total;
+            this.facets = facets;
+        }
+    }
+
+    /** Completamento proposto mentre l'utente scrive (titolo o autore). */
+    public static class Completion {
+        public final boolean author;
+        public final String text;
+
+        public Completion(boolean author, String text) {
+            this.author = author;
+            this.text = text;
         }
     }
 
-    private final String host;
-    private final int port;
+    /** Una pagina di risultati e il cursore per la successiva (null se è l'ultima). */
+    public static class BookPage {
+        public final List<BookRow> rows;
+        public final String nextCursor;
 
+        public BookPage(List<BookRow> rows, String nextCursor) {
+            this.rows = rows;
+            this.nextCursor = nextCursor;
+        }
+
+        public boolean hasNext() {
+            return nextCursor != null;
+        }
+    }
+
+    /**
+     * Risposta del server a un comando: la riga di intestazione ("OK ..." / "ERR ...")
+     * e, per le risposte multi-riga, le righe di dati fino a END (escluso).
+     */
+    public static class Response {
+        public final String header;
+        public final List<String> lines;
+
+        public Response(String header, List<String> lines) {
+            this.header = header;
+            this.lines = lines;
+        }
+
+        public boolean isOk() {
+            return header.startsWith("OK");
+        }
+    }
+
+    /** Intestazioni delle risposte che proseguono con righe di dati e terminano con END. */
+    private static final String[] MULTILINE_HEADERS = {
+            "OK SEARCH_RESULTS", "OK LIBRARIES", "OK REVIEW_STATS", "OK SUGGESTIONS", "OK COMPLETIONS",
+            "OK BOOKS"
+    };
+
+    private final ConnectionManager connections;
+
+    /**
+     * Tutti i ServerApi verso lo stesso host:porta condividono le stesse
+     * connessioni persistenti (vedi ConnectionManager).
+     */
     public ServerApi(String host, int port) {
-        this.host = host;
-        this.port = port;
+        this.connections = ConnectionManager.shared(host, port);
+    }
+
+    // ========= TRASPORTO =========
+
+    /**
+     * Invia più comandi in pipeline su una connessione persistente: li scrive
+     * tutti, fa un solo flush e poi legge le risposte, che arrivano nello
+     * stesso ordine. Costa un solo round trip di rete invece di uno per comando.
+     *
+     * Se una connessione riusata risulta già chiusa (es. server riavviato) la
+     * si scarta e, se i comandi sono tutti di sola lettura, si ritenta una volta
+     * su una connessione nuova. Non si ritenta mai dopo un timeout o un errore
+     * a risposta iniziata: il server potrebbe aver già eseguito i comandi.
+     */
+    public List<Response> pipeline(List<String> commands) throws IOException {
+        if (commands.isEmpty()) return new ArrayList<>();
+
+        ConnectionManager.Conn c = connections.acquire();
+        try {
+            List<Response> out = c.exchange(commands);
+            connections.release(c);
+            return out;
+        } catch (IOException e) {
+            connections.invalidate(c);
+            boolean retry = e instanceof ConnectionManager.StaleConnectionException
+                    && c.wasReused() && isReadOnly(commands);
+            if (!retry) throw e;
+        }
+
+        c = connections.open();
+        try {
+            List<Response> out = c.exchange(commands);
+            connections.release(c);
+            return out;
+        } catch (IOException e) {
+            connections.invalidate(c);
+            throw e;
+        }
+    }
+
+    /** Comandi che non modificano niente sul server: si possono reinviare senza effetti. */
+    private static final Set<String> READ_ONLY_VERBS = Set.of(
+            "SEARCH_TITLE", "SEARCH_AUTHOR", "SEARCH_AUTHOR_YEAR", "SEARCH_RANKED", "SEARCH_FUZZY",
+            "SEARCH_FACETS", "SUGGEST_PREFIX", "SEARCH", "SEARCH_PAGE", "GET_BOOK", "GET_BOOKS",
+            "LIST_LIBRARIES", "GET_REVIEW_STATS", "GET_SUGGESTIONS_STATS", "LOGIN", "CACHE_STATS");
+
+    private static boolean isReadOnly(List<String> commands) {
+        for (String command : commands) {
+            String c = command.startsWith("NOCACHE ") ? command.substring("NOCACHE ".length()) : command;
+            int colon = c.indexOf(':');
+            if (!READ_ONLY_VERBS.contains(colon < 0 ? c.trim() : c.substring(0, colon))) return false;
+        }
+        return true;
+    }
+
+    private Response exchange(String command) throws IOException {
+        return pipeline(List.of(command)).get(0);
+    }
+
+    /** Legge una risposta completa (intestazione + eventuali righe fino a END). */
+    static Response readResponse(BufferedReader in) throws IOException {
+        String header = in.readLine();
+        if (header == null) throw new IOException("Nessuna risposta dal server");
+        return readResponse(header, in);
+    }
+
+    /** Come sopra, con l'intestazione già letta. */
+    static Response readResponse(String header, BufferedReader in) throws IOException {
+        header = header.trim();
+
+        List<String> lines = new ArrayList<>();
+        if (isMultiline(header)) {
+            String line = in.readLine();
+            while (line != null && !"END".equals(line)) {
+                lines.add(line);
+                line = in.readLine();
+            }
+            if (line == null) throw new IOException("Risposta del server interrotta");
+        }
+        return new Response(header, lines);
+    }
+
+    private static boolean isMultiline(String header) {
+        for (String h : MULTILINE_HEADERS) {
+            if (header.startsWith(h)) return true;
+        }
+        return false;
+    }
+
+    private static void requireOk(Response r) throws IOException {
+        if (!r.isOk()) throw new IOException("Errore dal server: " + r.header);
     }
 
     // ========= RICERCA LIBRI =========
 
     public List<BookRow> searchByTitle(String query) throws IOException {
-        return searchGeneric("SEARCH_TITLE:" + query);
+        return parseBookRows(exchange("SEARCH_TITLE:" + query));
     }
 
     public List<BookRow> searchByAuthor(String author) throws IOException {
-        return searchGeneric("SEARCH_AUTHOR:" + author);
+        return parseBookRows(exchange("SEARCH_AUTHOR:" + author));
     }
 
     public List<BookRow> searchByAuthorAndYear(String author, int year) throws IOException {
-        return searchGeneric("SEARCH_AUTHOR_YEAR:" + author + ";" + year);
+        return parseBookRows(exchange("SEARCH_AUTHOR_YEAR:" + author + ";" + year));
     }
 
-    private List<BookRow> searchGeneric(String command) throws IOException {
-        List<BookRow> out = new ArrayList<>();
+    /** I k libri più pertinenti (BM25 sul server), dal più pertinente. */
+    public List<BookRow> searchRanked(String query, int k) throws IOException {
+        return parseBookRows(exchange("SEARCH_RANKED:" + k + ";" + query));
+    }
+
+    /** Ricerca tollerante agli errori di battitura su titoli e autori, dal risultato più vicino. */
+    public List<BookRow> searchFuzzy(String query, int k) throws IOException {
+        return parseBookRows(exchange("SEARCH_FUZZY:" + k + ";" + query));
+    }
+
+    /**
+     * Ricerca a faccette per titolo (o per autore se byAuthor).
+     *
+     * @param filters faccetta -> valore scelto ("categoria", "editore", "decennio"); vuota = nessun filtro.
+     *                I valori sono quelli di FacetedPage.facets, così come arrivano: la codifica
+     *                per il protocollo si fa qui.
+     * @param k       libri da restituire (il totale arriva comunque in FacetedPage.total)
+     */
+    public FacetedPage searchFacets(boolean byAuthor, String query, Map<String, String> filters, int k)
+            throws IOException {
+        String f = filters.entrySet().stream()
+                .map(e -> e.getKey() + "=" + encodeFacetValue(e.getValue()))
+                .collect(Collectors.joining("|"));
+        Response r = exchange("SEARCH_FACETS:" + (byAuthor ? "AUTHOR" : "TITLE") + ";" + k + ";" + f + ";" + query);
+        List<BookRow> rows = parseBookRows(r);
+
+        int total = rows.size();
+        Map<String, LinkedHashMap<String, Integer>> facets = new LinkedHashMap<>();
+        for (String line : r.lines) {
+            if (line.startsWith("FACET;")) {
+                String[] parts = line.split(";", 4);
+                facets.computeIfAbsent(parts[1], x -> new LinkedHashMap<>())
+                        .put(decodeFacetValue(parts[2]), Integer.parseInt(parts[3]));
+            } else if (line.startsWith("TOTAL;")) {
+                total = Integer.parseInt(line.substring("TOTAL;".length()));
+            }
+        }
+        return new FacetedPage(rows, total, facets);
+    }
 
-        try (Socket socket = new Socket(host, port);
-             BufferedReader in = new BufferedReader(
-                     new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-             Writer w = new BufferedWriter(
-                     new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * Valore di faccetta -> forma del protocollo: '%', ';', '|', '=' e gli
+     * a capo diventano %XX (come FacetedResult.encodeValue sul server).
+     */
+    static String encodeFacetValue(String v) {
+        if (v == null) return "";
+        StringBuilder sb = new StringBuilder(v.length() + 8);
+        for (int i = 0, n = v.length(); i < n; i++) {
+            char c = v.charAt(i);
+            if (c == '%' || c == ';' || c == '|' || c == '=' || c == '\n' || c == '\r') {
+                sb.append('%').append(HEX[c >> 4]).append(HEX[c & 0xF]);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
 
-            in.readLine(); // benvenuto
+    /** Inverso di encodeFacetValue(). */
+    static String decodeFacetValue(String v) {
+        if (v.indexOf('%') < 0) return v;
+        StringBuilder sb = new StringBuilder(v.length());
+        for (int i = 0, n = v.length(); i < n; i++) {
+            char c = v.charAt(i);
+            int hi = c == '%' && i + 2 < n ? Character.digit(v.charAt(i + 1), 16) : -1;
+            int lo = hi < 0 ? -1 : Character.digit(v.charAt(i + 2), 16);
+            if (lo < 0) {
+                sb.append(c);
+            } else {
+                sb.append((char) (hi << 4 | lo));
+                i += 2;
+            }
+        }
+        return sb.toString();
+    }
 
-            w.write(command + "\n");
-            w.flush();
+    /** Al massimo n completamenti per il prefisso, dal più popolare. */
+    public List<Completion> suggestPrefix(String prefix, int n) throws IOException {
+        Response r = exchange("SUGGEST_PREFIX:" + n + ";" + prefix);
+        requireOk(r);
+        List<Completion> out = new ArrayList<>();
+        for (String line : r.lines) {
+            if (line.startsWith("T;")) out.add(new Completion(false, line.substring(2)));
+            else if (line.startsWith("A;")) out.add(new Completion(true, line.substring(2)));
+        }
+        return out;
+    }
 
-            String line = in.readLine();
-            if (line == null) throw new IOException("Nessuna risposta dal server");
-            if (line.startsWith("ERR")) throw new IOException("Errore dal server: " + line);
-            if (line.startsWith("OK")) line = in.readLine();
+    // ========= LIBRI PER ID =========
 
-            while (line != null && !"END".equals(line)) {
-                if (line.startsWith("BOOK;")) {
-                    String[] parts = line.split(";", 5);
-                    int id = Integer.parseInt(parts[1]);
-                    String titolo = parts[2];
-                    String autori = parts[3];
-                    String annoStr = parts[4];
-                    Integer anno = (annoStr == null || annoStr.isBlank())
-                            ? null : Integer.parseInt(annoStr);
-                    out.add(new BookRow(id, titolo, autori, anno));
-                }
-                line = in.readLine();
+    /** Id per comando GET_BOOKS (limite del server). */
+    private static final int GET_BOOKS_BATCH = 1_000;
+
+    /** Il libro con l'id dato, oppure null se non esiste. */
+    public BookRow getBook(int id) throws IOException {
+        Map<Integer, BookRow> m = getBooks(List.of(id));
+        return m.get(id);
+    }
+
+    /**
+     * I libri con gli id dati, in un solo round trip: oltre GET_BOOKS_BATCH id
+     * si inviano più comandi GET_BOOKS in pipeline. Gli id inesistenti non
+     * compaiono nella mappa.
+     */
+    public Map<Integer, BookRow> getBooks(Collection<Integer> ids) throws IOException {
+        Map<Integer, BookRow> out = new LinkedHashMap<>();
+        if (ids.isEmpty()) return out;
+
+        List<String> commands = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        int inBatch = 0;
+        for (Integer id : ids) {
+            if (inBatch == GET_BOOKS_BATCH) {
+                commands.add("GET_BOOKS:" + sb);
+                sb.setLength(0);
+                inBatch = 0;
             }
+            if (inBatch > 0) sb.append(',');
+            sb.append(id);
+            inBatch++;
         }
+        commands.add("GET_BOOKS:" + sb);
 
+        for (Response r : pipeline(commands)) {
+            for (BookRow row : parseBookRows(r)) out.put(row.id, row);
+        }
         return out;
     }
 
-    // ========= COMANDI SEMPLICI =========
+    // ========= RICERCA PAGINATA =========
+    //
+    // cursor = null per la prima pagina, poi il nextCursor della pagina precedente.
 
-    private String sendSingleCommand(String command) throws IOException {
-        try (Socket socket = new Socket(host, port);
-             BufferedReader in = new BufferedReader(
-                     new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-             Writer w = new BufferedWriter(
-                     new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+    public BookPage searchPageByTitle(String query, int pageSize, String cursor) throws IOException {
+        return searchPage("TITLE", pageSize, cursor, query);
+    }
 
-            in.readLine(); // benvenuto
+    public BookPage searchPageByAuthor(String author, int pageSize, String cursor) throws IOException {
+        return searchPage("AUTHOR", pageSize, cursor, author);
+    }
 
-            w.write(command + "\n");
-            w.flush();
+    public BookPage searchPageByAuthorAndYear(String author, int year, int pageSize, String cursor)
+            throws IOException {
+        return searchPage("AUTHOR_YEAR", pageSize, cursor, author + ";" + year);
+    }
 
-            String line = in.readLine();
-            if (line == null) throw new IOException("Nessuna risposta dal server");
-            return line.trim();
+    /**
+     * Ricerca con il linguaggio di interrogazione del server, es.
+     * {@code author:eco year:1980..1989} oppure {@code title:"il nome" OR category:storia}.
+     * Una query con errori di sintassi fa fallire la chiamata con il motivo.
+     */
+    public BookPage search(String query, int pageSize, String cursor) throws IOException {
+        return toBookPage(exchange("SEARCH:" + pageSize + ";" + (cursor == null ? "" : cursor) + ";" + query));
+    }
+
+    private BookPage searchPage(String tipo, int pageSize, String cursor, String query) throws IOException {
+        return toBookPage(exchange("SEARCH_PAGE:" + tipo + ";" + pageSize + ";"
+                + (cursor == null ? "" : cursor) + ";" + query));
+    }
+
+    private static BookPage toBookPage(Response r) throws IOException {
+        List<BookRow> rows = parseBookRows(r);
+        String next = null;
+        for (String line : r.lines) {
+            if (line.startsWith("NEXT;")) next = line.substring("NEXT;".length());
+        }
+        return new BookPage(rows, next);
+    }
+
+    private static List<BookRow> parseBookRows(Response r) throws IOException {
+        requireOk(r);
+        List<BookRow> out = new ArrayList<>();
+        for (String line : r.lines) {
+            // risultati in streaming: un errore del DB a metà arriva dentro il blocco
+            if (line.startsWith("ERR")) throw new IOException("Errore dal server: " + line);
+            if (line.startsWith("BOOK;")) {
+                // BOOK;id;titolo;autori;anno[;editore;categoria]
+                String[] parts = line.split(";", 7);
+                int id = Integer.parseInt(parts[1]);
+                String titolo = parts[2];
+                String autori = parts[3];
+                String annoStr = parts[4];
+                Integer anno = (annoStr == null || annoStr.isBlank())
+                        ? null : Integer.parseInt(annoStr);
+                String editore = parts.length > 5 && !parts[5].isEmpty() ? parts[5] : null;
+                String categoria = parts.length > 6 && !parts[6].isEmpty() ? parts[6] : null;
+                out.add(new BookRow(id, titolo, autori, anno, editore, categoria));
+            }
         }
+        return out;
+    }
+
+    // ========= COMANDI SEMPLICI =========
+
+    private String sendSingleCommand(String command) throws IOException {
+        return exchange(command).header;
     }
 
     // ========= LOGIN / REGISTRAZIONE =========
@@ -129,42 +438,26 @@ public class ServerApi {
     // ========= LIBRERIE =========
 
     public List<Library> listLibraries(String userid) throws IOException {
-        List<Library> result = new ArrayList<>();
+        Response r = exchange("LIST_LIBRARIES:" + userid);
+        requireOk(r);
 
-        try (Socket socket = new Socket(host, port);
-             BufferedReader in = new BufferedReader(
-                     new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-             Writer w = new BufferedWriter(
-                     new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
-
-            in.readLine(); // benvenuto
-            w.write("LIST_LIBRARIES:" + userid + "\n");
-            w.flush();
-
-            String line = in.readLine();
-            if (line == null) throw new IOException("Nessuna risposta dal server");
-            if (line.startsWith("ERR")) throw new IOException("Errore dal server: " + line);
-            if (line.startsWith("OK")) line = in.readLine();
-
-            while (line != null && !"END".equals(line)) {
-                if (line.startsWith("LIB;")) {
-                    String[] parts = line.split(";", 3);
-                    String nome = parts.length > 1 ? parts[1] : "";
-                    String idsPart = parts.length > 2 ? parts[2] : "";
-                    Set<Integer> ids = new LinkedHashSet<>();
-                    if (!idsPart.isEmpty()) {
-                        for (String tok : idsPart.split(",")) {
-                            tok = tok.trim();
-                            if (tok.isEmpty()) continue;
-                            try { ids.add(Integer.parseInt(tok)); } catch (NumberFormatException ignore) {}
-                        }
+        List<Library> result = new ArrayList<>();
+        for (String line : r.lines) {
+            if (line.startsWith("LIB;")) {
+                String[] parts = line.split(";", 3);
+                String nome = parts.length > 1 ? parts[1] : "";
+                String idsPart = parts.length > 2 ? parts[2] : "";
+                Set<Integer> ids = new LinkedHashSet<>();
+                if (!idsPart.isEmpty()) {
+                    for (String tok : idsPart.split(",")) {
+                        tok = tok.trim();
+                        if (tok.isEmpty()) continue;
+                        try { ids.add(Integer.parseInt(tok)); } catch (NumberFormatException ignore) {}
                     }
-                    result.add(new Library(userid, nome, ids));
                 }
-                line = in.readLine();
+                result.add(new Library(userid, nome, ids));
             }
         }
-
         return result;
     }
 
@@ -203,57 +496,42 @@ public class ServerApi {
     }
 
     public AggregationService.ReviewStats getReviewStats(int bookId) throws IOException {
-        AggregationService.ReviewStats s = new AggregationService.ReviewStats();
-
-        try (Socket socket = new Socket(host, port);
-             BufferedReader in = new BufferedReader(
-                     new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-             Writer w = new BufferedWriter(
-                     new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
-
-            in.readLine(); // benvenuto
-            w.write("GET_REVIEW_STATS:" + bookId + "\n");
-            w.flush();
+        return parseReviewStats(exchange("GET_REVIEW_STATS:" + bookId));
+    }
 
-            String line = in.readLine();
-            if (line == null) throw new IOException("Nessuna risposta dal server");
-            if (line.startsWith("ERR")) throw new IOException("Errore dal server: " + line);
+    private static AggregationService.ReviewStats parseReviewStats(Response r) throws IOException {
+        requireOk(r);
+        AggregationService.ReviewStats s = new AggregationService.ReviewStats();
 
-            if (line.startsWith("OK REVIEW_STATS 0")) {
-                // nessuna valutazione
-                String end = in.readLine(); // END
-                return s;
-            }
+        if (r.header.startsWith("OK REVIEW_STATS 0")) {
+            // nessuna valutazione
+            return s;
+        }
 
-            // OK REVIEW_STATS count;mediaS;mediaC;mediaG;mediaO;mediaE;mediaVF
-            String data = line.substring("OK REVIEW_STATS ".length()).trim();
-            String[] parts = data.split(";");
-            s.count             = Integer.parseInt(parts[0]);
-            s.mediaStile        = Double.parseDouble(parts[1]);
-            s.mediaContenuto    = Double.parseDouble(parts[2]);
-            s.mediaGradevolezza = Double.parseDouble(parts[3]);
-            s.mediaOriginalita  = Double.parseDouble(parts[4]);
-            s.mediaEdizione     = Double.parseDouble(parts[5]);
-            s.mediaVotoFinale   = Double.parseDouble(parts[6]);
-
-            // riga distribuzione
-            line = in.readLine();
-            if (line != null && line.startsWith("DIST;")) {
-                String rest = line.substring("DIST;".length());
-                if (!rest.isBlank()) {
-                    for (String tok : rest.split(",")) {
-                        tok = tok.trim();
-                        if (tok.isEmpty()) continue;
-                        String[] kv = tok.split(":");
-                        int voto = Integer.parseInt(kv[0]);
-                        int cnt  = Integer.parseInt(kv[1]);
-                        s.distribuzioneVoti.put(voto, cnt);
-                    }
-                }
+        // OK REVIEW_STATS count;mediaS;mediaC;mediaG;mediaO;mediaE;mediaVF
+        String data = r.header.substring("OK REVIEW_STATS ".length()).trim();
+        String[] parts = data.split(";");
+        s.count             = Integer.parseInt(parts[0]);
+        s.mediaStile        = Double.parseDouble(parts[1]);
+        s.mediaContenuto    = Double.parseDouble(parts[2]);
+        s.mediaGradevolezza = Double.parseDouble(parts[3]);
+        s.mediaOriginalita  = Double.parseDouble(parts[4]);
+        s.mediaEdizione     = Double.parseDouble(parts[5]);
+        s.mediaVotoFinale   = Double.parseDouble(parts[6]);
+
+        // riga distribuzione
+        for (String line : r.lines) {
+            if (!line.startsWith("DIST;")) continue;
+            String rest = line.substring("DIST;".length());
+            if (rest.isBlank()) continue;
+            for (String tok : rest.split(",")) {
+                tok = tok.trim();
+                if (tok.isEmpty()) continue;
+                String[] kv = tok.split(":");
+                int voto = Integer.parseInt(kv[0]);
+                int cnt  = Integer.parseInt(kv[1]);
+                s.distribuzioneVoti.put(voto, cnt);
             }
-
-            // END
-            in.readLine();
         }
 
         return s;
@@ -272,34 +550,37 @@ public class ServerApi {
     }
 
     public AggregationService.SuggestionsStats getSuggestionsStats(int bookId) throws IOException {
-        AggregationService.SuggestionsStats stats = new AggregationService.SuggestionsStats();
-
-        try (Socket socket = new Socket(host, port);
-             BufferedReader in = new BufferedReader(
-                     new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-             Writer w = new BufferedWriter(
-                     new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
-
-            in.readLine(); // benvenuto
-            w.write("GET_SUGGESTIONS_STATS:" + bookId + "\n");
-            w.flush();
-
-            String line = in.readLine();
-            if (line == null) throw new IOException("Nessuna risposta dal server");
-            if (line.startsWith("ERR")) throw new IOException("Errore dal server: " + line);
-            if (line.startsWith("OK")) line = in.readLine();
+        return parseSuggestionsStats(exchange("GET_SUGGESTIONS_STATS:" + bookId));
+    }
 
-            while (line != null && !"END".equals(line)) {
-                if (line.startsWith("SUG;")) {
-                    String[] parts = line.split(";", 3);
-                    int idSug = Integer.parseInt(parts[1]);
-                    int count = Integer.parseInt(parts[2]);
-                    stats.suggeritiCount.put(idSug, count);
-                }
-                line = in.readLine();
+    private static AggregationService.SuggestionsStats parseSuggestionsStats(Response r) throws IOException {
+        requireOk(r);
+        AggregationService.SuggestionsStats stats = new AggregationService.SuggestionsStats();
+        for (String line : r.lines) {
+            if (line.startsWith("SUG;")) {
+                String[] parts = line.split(";", 3);
+                int idSug = Integer.parseInt(parts[1]);
+                int count = Integer.parseInt(parts[2]);
+                stats.suggeritiCount.put(idSug, count);
             }
         }
-
         return stats;
     }
+
+    // ========= DETTAGLIO LIBRO (pipeline) =========
+
+    /**
+     * Valutazioni e suggerimenti di un libro in un solo round trip:
+     * GET_REVIEW_STATS e GET_SUGGESTIONS_STATS vengono inviati in pipeline.
+     */
+    public AggregationService.BookStats getBookStats(int bookId) throws IOException {
+        List<Response> rs = pipeline(List.of(
+                "GET_REVIEW_STATS:" + bookId,
+                "GET_SUGGESTIONS_STATS:" + bookId));
+
+        AggregationService.BookStats out = new AggregationService.BookStats();
+        out.reviews = parseReviewStats(rs.get(0));
+        out.suggestions = parseSuggestionsStats(rs.get(1));
+        return out;
+    }
 }
@@ -0,0 +1,295 @@
+package bookrecommender.repo;
+
+import bookrecommender.model.Book;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Import di BooksDatasetClean.csv in parallelo.
+ *
+ * Il file viene diviso in blocchi di BLOCK_BYTES e letto in due fasi, tutte
+ * e due sul pool di thread:
+ *
+ *  1. per ogni blocco si contano le virgolette e si annota il primo '\n'
+ *     con un numero pari e con un numero dispari di virgolette dall'inizio
+ *     del blocco. Con la somma delle virgolette dei blocchi precedenti si sa
+ *     quale dei due è un vero fine riga (fuori da un campo tra virgolette):
+ *     lì inizia il pezzo da analizzare. Così un a capo dentro una descrizione
+ *     tra virgolette non spezza mai un record;
+ *  2. ogni pezzo, mappato in memoria, viene analizzato byte per byte: si
+ *     decodificano in String solo le colonne usate (la descrizione, che è la
+ *     parte più grande del file, viene solo scavalcata).
+ *
+ * I pezzi analizzati vengono consegnati al chiamante nell'ordine del file,
+ * con gli id assegnati in sequenza, man mano che sono pronti: al massimo
+ * MAX_IN_FLIGHT pezzi per thread restano in memoria in attesa.
+ *
+ * Colonne attese: 0 Title, 1 Authors, 2 Description, 3 Category,
+ * 4 Publisher, 5 Price, 6 Publish Date (Month), 7 Publish Date (Year).
+ * Le righe con meno di 8 colonne vengono scartate.
+ */
+final class CsvImporter {
+
+    /** Riceve i libri importati, in ordine di id. */
+    @FunctionalInterface
+    interface BookSink {
+        void accept(Book b) throws IOException;
+    }
+
+    private static final int BLOCK_BYTES = 32 << 20;
+    private static final int MAX_IN_FLIGHT = 2;
+    private static final int MIN_COLUMNS = 8;
+
+    // colonne lette; le altre vengono scavalcate senza copiarle
+    private static final int COL_TITLE = 0;
+    private static final int COL_AUTHORS = 1;
+    private static final int COL_CATEGORY = 3;
+    private static final int COL_PUBLISHER = 4;
+    private static final int COL_YEAR = 7;
+    private static final long USED_COLUMNS = 1L << COL_TITLE | 1L << COL_AUTHORS | 1L << COL_CATEGORY
+            | 1L << COL_PUBLISHER | 1L << COL_YEAR;
+
+    private CsvImporter() {
+    }
+
+    /**
+     * Importa il CSV consegnando a sink un Book per riga valida, con id da firstId in poi.
+     *
+     * @return numero di libri importati
+     */
+    static int importCsv(Path csv, int firstId, BookSink sink) throws IOException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "CsvImporter");
+            t.setDaemon(true);
+            return t;
+        });
+        try (FileChannel ch = FileChannel.open(csv, StandardOpenOption.READ)) {
+            long[] starts = recordAlignedStarts(ch, pool);
+
+            int nextId = firstId;
+            Deque<Future<List<Row>>> inFlight = new ArrayDeque<>();
+            int submitted = 0;
+            while (submitted < starts.length - 1 || !inFlight.isEmpty()) {
+                while (submitted < starts.length - 1 && inFlight.size() < threads * MAX_IN_FLIGHT) {
+                    long from = starts[submitted], to = starts[submitted + 1];
+                    boolean header = submitted == 0;
+                    inFlight.add(pool.submit(() -> parseRange(ch, from, to, header)));
+                    submitted++;
+                }
+                for (Row r : await(inFlight.poll())) {
+                    sink.accept(new Book(nextId++, r.titolo, r.autori, r.anno, r.editore, r.categoria));
+                }
+            }
+            return nextId - firstId;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // ==== FASE 1: CONFINI DEI PEZZI ====
+
+    /** Statistiche di un blocco per trovare i confini tra record. */
+    private static final class BlockScan {
+        long quotes;
+        long firstNewlineEven = -1; // posizione assoluta del primo '\n' con virgolette pari nel blocco
+        long firstNewlineOdd = -1;
+    }
+
+    /**
+     * Posizioni di inizio dei pezzi da analizzare, più la lunghezza del file
+     * come ultimo elemento. Ogni posizione segue un '\n' fuori da virgolette.
+     */
+    private static long[] recordAlignedStarts(FileChannel ch, ExecutorService pool) throws IOException {
+        long size = ch.size();
+        int blocks = (int) Math.max(1, (size + BLOCK_BYTES - 1) / BLOCK_BYTES);
+        List<Future<BlockScan>> scans = new ArrayList<>(blocks);
+        for (int i = 0; i < blocks; i++) {
+            long from = (long) i * BLOCK_BYTES;
+            long to = Math.min(size, from + BLOCK_BYTES);
+            scans.add(pool.submit(() -> scanBlock(ch, from, to)));
+        }
+
+        long[] starts = new long[blocks + 1];
+        int n = 0;
+        starts[n++] = 0;
+        long quotesBefore = 0;
+        for (int i = 0; i < blocks; i++) {
+            BlockScan s = await(scans.get(i));
+            if (i > 0) {
+                long nl = quotesBefore % 2 == 0 ? s.firstNewlineEven : s.firstNewlineOdd;
+                // nessun fine riga valido nel blocco: il record prosegue, il pezzo precedente si allunga
+                if (nl >= 0) starts[n++] = nl + 1;
+            }
+            quotesBefore += s.quotes;
+        }
+        if (starts[n - 1] < size || n == 1) starts[n++] = size;
+        return Arrays.copyOf(starts, n);
+    }
+
+    private static BlockScan scanBlock(FileChannel ch, long from, long to) throws IOException {
+        MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+        BlockScan s = new BlockScan();
+        long quotes = 0;
+        for (int i = 0, len = buf.limit(); i < len; i++) {
+            byte b = buf.get(i);
+            if (b == '"') {
+                quotes++;
+            } else if (b == '\n') {
+                if ((quotes & 1) == 0) {
+                    if (s.firstNewlineEven < 0) s.firstNewlineEven = from + i;
+                } else if (s.firstNewlineOdd < 0) {
+                    s.firstNewlineOdd = from + i;
+                }
+            }
+        }
+        s.quotes = quotes;
+        return s;
+    }
+
+    // ==== FASE 2: ANALISI DI UN PEZZO ====
+
+    private static final class Row {
+        final String titolo;
+        final List<String> autori;
+        final Integer anno;
+        final String editore;
+        final String categoria;
+
+        Row(String titolo, List<String> autori, Integer anno, String editore, String categoria) {
+            this.titolo = titolo;
+            this.autori = autori;
+            this.anno = anno;
+            this.editore = editore;
+            this.categoria = categoria;
+        }
+    }
+
+    /**
+     * Analizza i record in [from, to). Le virgolette aprono e chiudono un
+     * campo ovunque compaiano; dentro le virgolette "" vale una virgoletta.
+     */
+    private static List<Row> parseRange(FileChannel ch, long from, long to, boolean skipHeader)
+            throws IOException {
+        MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+        List<Row> out = new ArrayList<>();
+        // editori e categorie si ripetono moltissimo: una sola String per valore
+        Map<String, String> shared = new HashMap<>();
+
+        String[] cols = new String[MIN_COLUMNS];
+        byte[] field = new byte[256];
+        int len = buf.limit();
+        int i = 0;
+        boolean header = skipHeader;
+
+        while (i < len) {
+            int col = 0;
+            int flen = 0;
+            boolean inQuotes = false;
+            boolean keep = true; // colonna 0 usata
+            boolean ended = false;
+            Arrays.fill(cols, null);
+
+            // un record: fino a '\n' fuori dalle virgolette o alla fine del pezzo
+            for (; i < len && !ended; i++) {
+                byte b = buf.get(i);
+                if (b == '"') {
+                    if (inQuotes && i + 1 < len && buf.get(i + 1) == '"') {
+                        i++;
+                    } else {
+                        inQuotes = !inQuotes;
+                        continue;
+                    }
+                } else if (!inQuotes && (b == ',' || b == '\n')) {
+                    if (keep) cols[col] = decode(field, flen, b == '\n');
+                    col++;
+                    flen = 0;
+                    keep = col < MIN_COLUMNS && (USED_COLUMNS >>> col & 1) != 0;
+                    ended = b == '\n';
+                    continue;
+                }
+                if (keep) {
+                    if (flen == field.length) field = Arrays.copyOf(field, flen * 2);
+                    field[flen++] = b;
+                }
+            }
+            if (!ended) {
+                // ultimo record del file senza '\n' finale
+                if (keep) cols[col] = decode(field, flen, true);
+                col++;
+            }
+
+            if (header) {
+                header = false;
+                continue;
+            }
+            if (col < MIN_COLUMNS) continue;
+
+            Integer year = null;
+            try {
+                if (!cols[COL_YEAR].isEmpty()) year = Integer.parseInt(cols[COL_YEAR]);
+            } catch (NumberFormatException ignored) {}
+
+            String category = cols[COL_CATEGORY];
+            String publisher = cols[COL_PUBLISHER];
+            out.add(new Row(cols[COL_TITLE], splitAutori(cols[COL_AUTHORS]), year,
+                    publisher.isEmpty() ? null : shared.computeIfAbsent(publisher, k -> k),
+                    category.isEmpty() ? null : shared.computeIfAbsent(category, k -> k)));
+        }
+        return out;
+    }
+
+    /**
+     * Le colonne lette finiscono in Libri.dati, un libro per riga: un a capo
+     * dentro un campo tra virgolette diventa uno spazio.
+     */
+    private static String decode(byte[] field, int len, boolean endOfLine) {
+        if (endOfLine && len > 0 && field[len - 1] == '\r') len--;
+        for (int i = 0; i < len; i++) {
+            if (field[i] == '\n' || field[i] == '\r') field[i] = ' ';
+        }
+        return new String(field, 0, len, StandardCharsets.UTF_8).trim();
+    }
+
+    /**
+     * Stessa regola di LibriRepository per gli autori: toglie "By " iniziale
+     * e divide su ',', ';' e '|', scartando i pezzi vuoti. Scritta a mano
+     * perché qui gira su ogni riga di un file molto grande.
+     */
+    static List<String> splitAutori(String raw) {
+        String s = raw.trim();
+        if (s.regionMatches(true, 0, "by ", 0, 3)) s = s.substring(3);
+        List<String> out = new ArrayList<>(2);
+        int start = 0;
+        for (int i = 0; i <= s.length(); i++) {
+            if (i == s.length() || s.charAt(i) == ',' || s.charAt(i) == ';' || s.charAt(i) == '|') {
+                String part = s.substring(start, i).trim();
+                if (!part.isEmpty()) out.add(part);
+                start = i + 1;
+            }
+        }
+        return out;
+    }
+
+    private static <T> T await(Future<T> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Import interrotto", e);
+        } catch (ExecutionException e) {
+            Throwable c = e.getCause();
+            if (c instanceof IOException) throw (IOException) c;
+            if (c instanceof UncheckedIOException) throw ((UncheckedIOException) c).getCause();
+            throw new IOException("Errore durante l'import del CSV", c);
+        }
+    }
+}
@@ -6,14 +6,25 @@ import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.*;
-import java.util.stream.Collectors;
 
 public class LibriRepository {
 
     private final Path file;      // Libri.dati
     private final Path csvFile;   // BooksDatasetClean.csv (dataset originale)
+    private final Path snapFile;  // Libri.snap, copia binaria di Libri.dati (vedi LibriSnapshot)
     private final List<Book> books = new ArrayList<>();
 
+    /**
+     * Indice id -> posizione in books, ricostruito a ogni load(). Gli id del
+     * catalogo sono quasi consecutivi, quindi di solito basta un int[]
+     * indicizzato dall'id (posizione + 1, 0 = assente); se sono troppo sparsi
+     * si usa una tabella hash a indirizzamento aperto su int. In entrambi i
+     * casi findById e contains costano O(1) senza oggetti Integer.
+     */
+    private int[] posById = new int[0];
+    private int[] hashKeys;     // null in modalità densa
+    private int[] hashPos;
+
     private int nextId = 1;
 
     public LibriRepository(Path file) {
@@ -22,6 +33,7 @@ public class LibriRepository {
         if (dir == null) dir = Paths.get(".");
         // il CSV sta nella stessa cartella di Libri.dati
         this.csvFile = dir.resolve("BooksDatasetClean.csv");
+        this.snapFile = LibriSnapshot.pathFor(file);
     }
 
     /** Restituisce tutti i libri (lista immodificabile). */
@@ -31,7 +43,13 @@ public class LibriRepository {
 
     /** Ritorna un libro per id o null se non trovato. */
     public Book findById(int id) {
-        return books.stream().filter(b -> b.getId() == id).findFirst().orElse(null);
+        int pos = positionOf(id);
+        return pos < 0 ? null : books.get(pos);
+    }
+
+    /** true se esiste un libro con questo id. */
+    public boolean contains(int id) {
+        return positionOf(id) >= 0;
     }
 
     /** Numero di libri caricati. */
@@ -42,44 +60,135 @@ public class LibriRepository {
     /** Salva l'elenco corrente di libri in Libri.dati. */
     public void save() throws IOException {
         try (BufferedWriter w = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
-            w.write("idLibro;Titolo;Autori;Anno;Editore;Categoria");
-            w.newLine();
-            for (Book b : books) {
-                String autori = String.join("|", b.getAutori());
-                String annoStr = (b.getAnno() == null) ? "" : b.getAnno().toString();
-                String editore = b.getEditore() == null ? "" : b.getEditore();
-                String categoria = b.getCategoria() == null ? "" : b.getCategoria();
-                w.write(b.getId() + ";" + b.getTitolo() + ";" + autori + ";" +
-                        annoStr + ";" + editore + ";" + categoria);
-                w.newLine();
-            }
+            writeHeader(w);
+            for (Book b : books) writeLine(w, b);
         }
+        writeSnapshot();
+    }
+
+    private static void writeHeader(BufferedWriter w) throws IOException {
+        w.write("idLibro;Titolo;Autori;Anno;Editore;Categoria");
+        w.newLine();
+    }
+
+    private static void writeLine(BufferedWriter w, Book b) throws IOException {
+        String autori = String.join("|", b.getAutori());
+        String annoStr = (b.getAnno() == null) ? "" : b.getAnno().toString();
+        String editore = b.getEditore() == null ? "" : b.getEditore();
+        String categoria = b.getCategoria() == null ? "" : b.getCategoria();
+        w.write(b.getId() + ";" + b.getTitolo() + ";" + autori + ";" +
+                annoStr + ";" + editore + ";" + categoria);
+        w.newLine();
     }
 
     /**
      * Carica i libri:
-     * - se Libri.dati esiste, lo legge
+     * - se Libri.snap è aggiornato rispetto a Libri.dati, legge quello (molto più veloce)
+     * - se Libri.dati esiste, lo legge e riscrive Libri.snap
      * - altrimenti, se esiste BooksDatasetClean.csv, lo usa per generare Libri.dati e popolare i libri
      */
     public void load() throws IOException {
         books.clear();
+        posById = new int[0];
+        hashKeys = null;
+        hashPos = null;
         nextId = 1;
 
         if (Files.exists(file)) {
-            loadFromLibri();
+            if (!loadFromSnapshot()) {
+                loadFromLibri();
+                writeSnapshot();
+            }
         } else if (Files.exists(csvFile)) {
             System.out.println("Libri.dati non trovato, genero da BooksDatasetClean.csv...");
-            buildFromCsv();
-            save();           // scrive Libri.dati per le prossime esecuzioni
+            buildFromCsv();   // scrive anche Libri.dati per le prossime esecuzioni
         } else {
             throw new FileNotFoundException(
                     "Non trovo né " + file.toAbsolutePath() +
                     " né " + csvFile.toAbsolutePath());
         }
+        rebuildIndex();
     }
 
     //  METODI PRIVATI 
 
+    /** Carica da Libri.snap; false se manca, è vecchio o illeggibile (si userà il testo). */
+    private boolean loadFromSnapshot() {
+        try {
+            List<Book> snap = LibriSnapshot.read(snapFile, file);
+            if (snap == null) return false;
+            books.addAll(snap);
+            for (Book b : snap) nextId = Math.max(nextId, b.getId() + 1);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Copia binaria dei libri non utilizzabile, leggo Libri.dati: " + e.getMessage());
+            books.clear();
+            return false;
+        }
+    }
+
+    /** La copia binaria è solo un'accelerazione: se non si riesce a scriverla si prosegue. */
+    private void writeSnapshot() {
+        try {
+            LibriSnapshot.write(snapFile, file, books);
+        } catch (IOException e) {
+            System.err.println("Impossibile scrivere " + snapFile + ": " + e.getMessage());
+        }
+    }
+
+    private int positionOf(int id) {
+        if (hashKeys == null) {
+            return id >= 0 && id < posById.length ? posById[id] - 1 : -1;
+        }
+        int mask = hashKeys.length - 1;
+        for (int i = mix(id) & mask; hashPos[i] != 0; i = (i + 1) & mask) {
+            if (hashKeys[i] == id) return hashPos[i] - 1;
+        }
+        return -1;
+    }
+
+    /** Ricostruisce l'indice degli id; a parità di id vale il primo libro, come nel file. */
+    private void rebuildIndex() {
+        int maxId = -1;
+        boolean negative = false;
+        for (Book b : books) {
+            maxId = Math.max(maxId, b.getId());
+            negative |= b.getId() < 0;
+        }
+
+        // array denso finché non spreca più di ~4 int per libro
+        if (!negative && maxId < 4L * books.size() + 1024) {
+            hashKeys = null;
+            hashPos = null;
+            posById = new int[maxId + 1];
+            for (int i = 0; i < books.size(); i++) {
+                int id = books.get(i).getId();
+                if (posById[id] == 0) posById[id] = i + 1;
+            }
+            return;
+        }
+
+        posById = new int[0];
+        int cap = Integer.highestOneBit(Math.max(4, books.size() * 2 - 1)) << 1; // riempimento <= 50%
+        hashKeys = new int[cap];
+        hashPos = new int[cap];
+        int mask = cap - 1;
+        for (int p = 0; p < books.size(); p++) {
+            int id = books.get(p).getId();
+            int i = mix(id) & mask;
+            while (hashPos[i] != 0 && hashKeys[i] != id) i = (i + 1) & mask;
+            if (hashPos[i] == 0) {
+                hashKeys[i] = id;
+                hashPos[i] = p + 1;
+            }
+        }
+    }
+
+    private static int mix(int id) {
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
     /** Legge Libri.dati nel formato: idLibro;Titolo;Autori;Anno;Editore;Categoria */
     private void loadFromLibri() throws IOException {
         try (BufferedReader r = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
@@ -118,84 +227,27 @@ public class LibriRepository {
     }
 
     /**
-     * Costruisce la lista di libri a partire dal CSV originale BooksDatasetClean.csv.
-     * CSV atteso con colonne:
-     * 0: Title
-     * 1: Authors
-     * 2: Description
-     * 3: Category
-     * 4: Publisher
-     * 5: Price Starting With ($)
-     * 6: Publish Date (Month)
-     * 7: Publish Date (Year)
+     * Costruisce la lista di libri a partire dal CSV originale BooksDatasetClean.csv
+     * (import in parallelo, vedi CsvImporter) e intanto scrive Libri.dati,
+     * senza una seconda passata sull'elenco.
      */
     private void buildFromCsv() throws IOException {
-        try (BufferedReader br = Files.newBufferedReader(csvFile, StandardCharsets.UTF_8)) {
-            String line = br.readLine(); // header
-            if (line == null) return;
-
-            while ((line = br.readLine()) != null) {
-                if (line.isBlank()) continue;
-
-                List<String> cols = parseCSV(line);
-                if (cols.size() < 8) continue;
-
-                String title     = cols.get(0).trim();
-                String authors   = cols.get(1).trim();
-                String category  = cols.get(3).trim();
-                String publisher = cols.get(4).trim();
-                String yearStr   = cols.get(7).trim();
-
-                Integer year = null;
-                try {
-                    if (!yearStr.isEmpty()) {
-                        year = Integer.parseInt(yearStr);
-                    }
-                } catch (NumberFormatException ignored) {}
-
-                List<String> autori = normalizeAutori(authors);
-
-                Book b = new Book(nextId++, title, autori, year,
-                        publisher.isEmpty() ? null : publisher,
-                        category.isEmpty() ? null : category);
-
+        // su file temporaneo: un import interrotto non lascia un Libri.dati a metà
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            writeHeader(w);
+            nextId += CsvImporter.importCsv(csvFile, nextId, b -> {
                 books.add(b);
-            }
-        }
-    }
-
-    /** parsing CSV grezzo che gestisce virgolette e virgole nei campi */
-    private static List<String> parseCSV(String line) {
-        List<String> result = new ArrayList<>();
-        boolean inQuotes = false;
-        StringBuilder sb = new StringBuilder();
-
-        for (int i = 0; i < line.length(); i++) {
-            char c = line.charAt(i);
-            if (c == '\"') {
-                inQuotes = !inQuotes;
-            } else if (c == ',' && !inQuotes) {
-                result.add(sb.toString());
-                sb.setLength(0);
-            } else {
-                sb.append(c);
-            }
+                writeLine(w, b);
+            });
         }
-        result.add(sb.toString());
-        return result;
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        writeSnapshot();
     }
 
     /** Normalizza la stringa autori in una lista (split su virgole, punto e virgola e '|'). */
     private List<String> normalizeAutori(String raw) {
         if (raw == null) return Collections.emptyList();
-        String s = raw.trim();
-        // rimuovo eventuale prefisso "By "
-        if (s.toLowerCase().startsWith("by ")) s = s.substring(3);
-        // split su virgola, ';' o '|'
-        String[] parts = s.split("\\s*[;,|]\\s*");
-        return Arrays.stream(parts)
-                .map(String::trim)
-                .filter(p -> !p.isEmpty())
-                .collect(Collectors.toList());
+        return CsvImporter.splitAutori(raw);
     }
 }
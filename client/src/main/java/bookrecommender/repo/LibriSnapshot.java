@@ -0,0 +1,207 @@
+package bookrecommender.repo;
+
+import bookrecommender.model.Book;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Copia binaria di Libri.dati (file Libri.snap nella stessa cartella) per
+ * avviare il client senza rianalizzare il testo riga per riga.
+ *
+ * Formato (interi big-endian), versione FORMAT_VERSION:
+ *
+ *   magic, versione
+ *   dimensione e data di modifica di Libri.dati quando è stata scritta (long, long)
+ *   n libri, m stringhe, r riferimenti ad autori
+ *   id[n], anno[n]                      (NO_YEAR = anno assente)
+ *   titolo[n], editore[n], categoria[n] (indici nella tabella stringhe, NULL_REF = null)
+ *   autoriStart[n + 1], autoriRef[r]    (autori del libro i: autoriRef[autoriStart[i] .. autoriStart[i+1]))
+ *   offset[m + 1], poi i byte UTF-8 di tutte le stringhe di seguito
+ *
+ * Ogni stringa (autore, editore, categoria ripetuti migliaia di volte) è
+ * scritta e decodificata una volta sola. In lettura il file si carica con
+ * una sola lettura e le colonne si leggono come IntBuffer, senza split né regex.
+ * Se Libri.dati è cambiato dopo la scrittura (dimensione o data diverse) la
+ * copia è considerata vecchia e si torna al file di testo.
+ */
+final class LibriSnapshot {
+
+    private static final int MAGIC = 0x42524C53; // "BRLS"
+    private static final int FORMAT_VERSION = 1;
+    private static final int NO_YEAR = Integer.MIN_VALUE;
+    private static final int NULL_REF = -1;
+
+    private LibriSnapshot() {
+    }
+
+    /** Percorso della copia binaria per un dato Libri.dati. */
+    static Path pathFor(Path libriFile) {
+        String name = libriFile.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return libriFile.resolveSibling((dot < 0 ? name : name.substring(0, dot)) + ".snap");
+    }
+
+    /**
+     * Legge la copia binaria se esiste ed è aggiornata rispetto a source.
+     *
+     * @return i libri, oppure null se la copia manca, è vecchia o di un'altra versione
+     * @throws IOException se il file è illeggibile o danneggiato
+     */
+    static List<Book> read(Path snap, Path source) throws IOException {
+        if (!Files.exists(snap) || !Files.exists(source)) return null;
+
+        // letto tutto in memoria: la tabella delle stringhe va comunque
+        // decodificata per intero, e un file mappato resterebbe aperto
+        // fino al GC impedendo (su Windows) di sostituirlo in write()
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(snap));
+        try {
+            if (buf.getInt() != MAGIC || buf.getInt() != FORMAT_VERSION) return null;
+            long size = buf.getLong();
+            long modified = buf.getLong();
+            if (size != Files.size(source)
+                    || modified != Files.getLastModifiedTime(source).toMillis()) {
+                return null;
+            }
+
+            int n = buf.getInt();
+            int m = buf.getInt();
+            int r = buf.getInt();
+            IntBuffer ids = ints(buf, n);
+            IntBuffer anni = ints(buf, n);
+            IntBuffer titoli = ints(buf, n);
+            IntBuffer editori = ints(buf, n);
+            IntBuffer categorie = ints(buf, n);
+            IntBuffer autoriStart = ints(buf, n + 1);
+            IntBuffer autoriRef = ints(buf, r);
+            IntBuffer offsets = ints(buf, m + 1);
+            if (!ascending(autoriStart, r) || !ascending(offsets, buf.remaining())) {
+                throw new IOException("Copia binaria danneggiata: " + snap);
+            }
+            String[] strings = decodeStrings(buf, offsets, m);
+
+            List<Book> books = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                int from = autoriStart.get(i), to = autoriStart.get(i + 1);
+                List<String> autori = new ArrayList<>(to - from);
+                for (int k = from; k < to; k++) autori.add(strings[autoriRef.get(k)]);
+                int anno = anni.get(i);
+                books.add(new Book(ids.get(i), strings[titoli.get(i)], autori,
+                        anno == NO_YEAR ? null : anno,
+                        ref(strings, editori.get(i)), ref(strings, categorie.get(i))));
+            }
+            return books;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("Copia binaria danneggiata: " + snap, e);
+        }
+    }
+
+    /**
+     * Scrive la copia binaria dei libri, legata allo stato attuale di source.
+     * Scrive prima su un file temporaneo e poi lo sostituisce, così un
+     * client interrotto a metà non lascia una copia incompleta.
+     */
+    static void write(Path snap, Path source, List<Book> books) throws IOException {
+        int n = books.size();
+        Map<String, Integer> slot = new HashMap<>();
+        List<String> strings = new ArrayList<>();
+        int[] ids = new int[n], anni = new int[n], titoli = new int[n], editori = new int[n], categorie = new int[n];
+        int[] autoriStart = new int[n + 1];
+        int refs = 0;
+        for (Book b : books) refs += b.getAutori().size();
+        int[] autoriRef = new int[refs];
+
+        int k = 0;
+        for (int i = 0; i < n; i++) {
+            Book b = books.get(i);
+            ids[i] = b.getId();
+            anni[i] = b.getAnno() == null ? NO_YEAR : b.getAnno();
+            titoli[i] = intern(b.getTitolo(), slot, strings);
+            editori[i] = intern(b.getEditore(), slot, strings);
+            categorie[i] = intern(b.getCategoria(), slot, strings);
+            autoriStart[i] = k;
+            for (String a : b.getAutori()) autoriRef[k++] = intern(a, slot, strings);
+        }
+        autoriStart[n] = k;
+
+        ByteArrayOutputStream blob = new ByteArrayOutputStream();
+        int[] offsets = new int[strings.size() + 1];
+        for (int i = 0; i < strings.size(); i++) {
+            blob.writeBytes(strings.get(i).getBytes(StandardCharsets.UTF_8));
+            offsets[i + 1] = blob.size();
+        }
+
+        Path tmp = snap.resolveSibling(snap.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(Files.size(source));
+            out.writeLong(Files.getLastModifiedTime(source).toMillis());
+            out.writeInt(n);
+            out.writeInt(strings.size());
+            out.writeInt(refs);
+            for (int[] col : new int[][]{ids, anni, titoli, editori, categorie, autoriStart, autoriRef, offsets}) {
+                for (int v : col) out.writeInt(v);
+            }
+            blob.writeTo(out);
+        }
+        try {
+            Files.move(tmp, snap, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, snap, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // ==== SUPPORTO ====
+
+    private static int intern(String s, Map<String, Integer> slot, List<String> strings) {
+        if (s == null) return NULL_REF;
+        Integer i = slot.get(s);
+        if (i == null) {
+            i = strings.size();
+            slot.put(s, i);
+            strings.add(s);
+        }
+        return i;
+    }
+
+    private static String ref(String[] strings, int i) {
+        return i == NULL_REF ? null : strings[i];
+    }
+
+    /** Vista di count interi dalla posizione corrente; avanza la posizione del buffer. */
+    private static IntBuffer ints(ByteBuffer buf, int count) {
+        if (count < 0 || count > buf.remaining() / 4) throw new BufferUnderflowException();
+        IntBuffer view = buf.slice().limit(count * 4).asIntBuffer();
+        buf.position(buf.position() + count * 4);
+        return view;
+    }
+
+    /** true se i valori di b non sono negativi, non decrescono e l'ultimo non supera max. */
+    private static boolean ascending(IntBuffer b, int max) {
+        int prev = 0;
+        for (int i = 0, n = b.limit(); i < n; i++) {
+            int v = b.get(i);
+            if (v < prev) return false;
+            prev = v;
+        }
+        return prev <= max;
+    }
+
+    private static String[] decodeStrings(ByteBuffer buf, IntBuffer offsets, int m) {
+        byte[] bytes = buf.array();
+        int base = buf.arrayOffset() + buf.position();
+        String[] out = new String[m];
+        for (int i = 0; i < m; i++) {
+            int from = offsets.get(i);
+            out[i] = new String(bytes, base + from, offsets.get(i + 1) - from, StandardCharsets.UTF_8);
+        }
+        return out;
+    }
+}
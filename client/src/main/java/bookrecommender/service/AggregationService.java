@@ -30,6 +30,12 @@ public class AggregationService {
         public Map<Integer,Integer> suggeritiCount = new LinkedHashMap<>();
     }
 
+    /** Tutto ciò che serve al pannello di dettaglio di un libro. */
+    public static class BookStats {
+        public ReviewStats reviews = new ReviewStats();
+        public SuggestionsStats suggestions = new SuggestionsStats();
+    }
+
     public ReviewStats getReviewStats(int bookId) throws IOException {
         return serverApi.getReviewStats(bookId);
     }
@@ -37,4 +43,9 @@ public class AggregationService {
     public SuggestionsStats getSuggestionsStats(int bookId) throws IOException {
         return serverApi.getSuggestionsStats(bookId);
     }
+
+    /** Valutazioni + suggerimenti con un'unica richiesta in pipeline al server. */
+    public BookStats getBookStats(int bookId) throws IOException {
+        return serverApi.getBookStats(bookId);
+    }
 }
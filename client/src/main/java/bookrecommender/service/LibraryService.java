@@ -43,10 +43,8 @@ public class LibraryService {
         // Valida che i bookIds esistano nel dataset libri (come nel Lab A)
         Set<Integer> valid = new LinkedHashSet<>();
         if (libriRepo != null) {
-            Set<Integer> allIds = new HashSet<>();
-            libriRepo.all().forEach(b -> allIds.add(b.getId()));
             for (Integer id : lib.getBookIds()) {
-                if (allIds.contains(id)) {
+                if (libriRepo.contains(id)) {
                     valid.add(id);
                 }
             }
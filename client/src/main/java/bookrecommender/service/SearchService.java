@@ -4,11 +4,15 @@ import bookrecommender.client.net.ServerApi;
 import bookrecommender.model.Book;
 import bookrecommender.repo.LibriRepository;
 
+import java.io.IOException;
 import java.text.Normalizer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 /**
@@ -17,6 +21,50 @@ import java.util.stream.Collectors;
  * le ricerche per autore restano locali (file) per semplicità.
  */
 public class SearchService {
+
+    /** Righe per pagina nelle ricerche paginate. */
+    public static final int PAGE_SIZE = 100;
+
+    /** Risultati della ricerca per titolo, ordinati per pertinenza. */
+    public static final int RANKED_RESULTS = 100;
+
+    /**
+     * Una pagina di risultati. {@code nextCursor} va passato alla chiamata
+     * successiva per avere la pagina dopo; è null sull'ultima pagina
+     * (e sempre null per i risultati del fallback locale, che arrivano tutti insieme).
+     */
+    public static class Page {
+        public final List<Book> books;
+        public final String nextCursor;
+
+        public Page(List<Book> books, String nextCursor) {
+            this.books = books;
+            this.nextCursor = nextCursor;
+        }
+
+        public boolean hasNext() {
+            return nextCursor != null;
+        }
+    }
+
+    /**
+     * Risultato di una ricerca a faccette: i primi libri, quanti sono in
+     * tutto e, per faccetta ("categoria", "editore", "decennio"), i valori
+     * più frequenti con il numero di libri. Un valore può essere passato
+     * come filtro alla ricerca successiva per restringere i risultati.
+     */
+    public static class RisultatoFaccette {
+        public final List<Book> books;
+        public final int totale;
+        public final Map<String, LinkedHashMap<String, Integer>> faccette;
+
+        public RisultatoFaccette(List<Book> books, int totale, Map<String, LinkedHashMap<String, Integer>> faccette) {
+            this.books = books;
+            this.totale = totale;
+            this.faccette = faccette;
+        }
+    }
+
     private final LibriRepository libriRepo;
     private final ServerApi serverApi = new ServerApi("localhost", 5555);
 
@@ -26,7 +74,8 @@ public class SearchService {
 
     /**
      * Ricerca per titolo.
-     * Prova prima via server+DB; se fallisce, usa la vecchia ricerca locale.
+     * Prova prima via server (risultati ordinati per pertinenza, non per id);
+     * se fallisce, usa la vecchia ricerca locale.
      */
     public List<Book> cercaLibroPerTitolo(String q) {
         String query = q == null ? "" : q.trim();
@@ -37,7 +86,7 @@ public class SearchService {
 
         try {
             // tentativo via server
-            List<ServerApi.BookRow> rows = serverApi.searchByTitle(query);
+            List<ServerApi.BookRow> rows = serverApi.searchRanked(query, RANKED_RESULTS);
             if (!rows.isEmpty()) {
                 List<Book> books = new ArrayList<>();
                 for (ServerApi.BookRow r : rows) {
@@ -125,7 +174,153 @@ public class SearchService {
                 .filter(b -> b.getAutori().stream().anyMatch(x -> norm(x).contains(needle)))
                 .collect(Collectors.toList());
     }
+    /**
+     * Ricerca tollerante agli errori di battitura (titoli e autori insieme),
+     * ordinata per vicinanza. Senza server ripiega sulla ricerca locale per
+     * titolo o autore che contiene il testo, senza tolleranza.
+     */
+    public List<Book> cercaLibroTollerante(String q) {
+        String query = q == null ? "" : q.trim();
+        if (query.isEmpty()) return libriRepo.all();
+
+        try {
+            List<ServerApi.BookRow> rows = serverApi.searchFuzzy(query, RANKED_RESULTS);
+            return toBooks(rows);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        String needle = norm(query);
+        return libriRepo.all().stream()
+                .filter(b -> norm(b.getTitolo()).contains(needle)
+                        || b.getAutori().stream().anyMatch(x -> norm(x).contains(needle)))
+                .collect(Collectors.toList());
+    }
+
+    // ========= FACCETTE =========
+
+    /**
+     * Ricerca per titolo (o per autore) con i conteggi per categoria, editore
+     * e decennio. filtri: faccetta -> valore, vuota per la prima ricerca.
+     *
+     * @throws IOException se il server non è raggiungibile (le faccette non hanno un ripiego locale)
+     */
+    public RisultatoFaccette cercaConFaccette(String q, boolean perAutore, Map<String, String> filtri)
+            throws IOException {
+        String query = q == null ? "" : q.trim();
+        if (query.isEmpty()) return new RisultatoFaccette(List.of(), 0, Map.of());
+        ServerApi.FacetedPage p = serverApi.searchFacets(perAutore, query, filtri, PAGE_SIZE);
+        return new RisultatoFaccette(toBooks(p.rows), p.total, p.facets);
+    }
+
+    // ========= COMPLETAMENTI =========
+
+    /**
+     * Completamenti per il testo digitato finora (titoli e autori).
+     * Se il server non risponde restituisce una lista vuota: i suggerimenti
+     * sono solo un aiuto, la ricerca vera resta quella con Invio.
+     */
+    public List<ServerApi.Completion> completamenti(String prefisso, int n) {
+        String p = prefisso == null ? "" : prefisso.trim();
+        if (p.isEmpty()) return List.of();
+        try {
+            return serverApi.suggestPrefix(p, n);
+        } catch (Exception e) {
+            return List.of();
+        }
+    }
 
+    // ========= LIBRI PER ID =========
+
+    /**
+     * I libri con gli id dati (es. i libri consigliati nel dettaglio), risolti
+     * dal server in una sola richiesta; senza server si usa la copia locale.
+     * Gli id sconosciuti non compaiono nella mappa.
+     */
+    public Map<Integer, Book> libriPerId(Collection<Integer> ids) {
+        Map<Integer, Book> out = new LinkedHashMap<>();
+        if (ids.isEmpty()) return out;
+        try {
+            for (Book b : toBooks(new ArrayList<>(serverApi.getBooks(ids).values()))) out.put(b.getId(), b);
+            return out;
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        for (Integer id : ids) {
+            Book b = libriRepo.findById(id);
+            if (b != null) out.put(id, b);
+        }
+        return out;
+    }
+
+    // ========= RICERCHE PAGINATE =========
+
+    /**
+     * Ricerca per titolo a pagine. Con cursor null restituisce la prima pagina;
+     * se il server non risponde, la prima pagina ripiega sulla ricerca locale.
+     */
+    public Page paginaPerTitolo(String q, String cursor) {
+        String query = q == null ? "" : q.trim();
+        if (query.isEmpty()) return new Page(libriRepo.all(), null);
+        try {
+            return toPage(serverApi.searchPageByTitle(query, PAGE_SIZE, cursor));
+        } catch (Exception e) {
+            e.printStackTrace();
+            if (cursor != null) throw new IllegalStateException("Pagina successiva non disponibile", e);
+        }
+        return new Page(cercaLibroPerTitolo(query), null);
+    }
+
+    public Page paginaPerAutore(String a, String cursor) {
+        String query = a == null ? "" : a.trim();
+        if (query.isEmpty()) return new Page(libriRepo.all(), null);
+        try {
+            return toPage(serverApi.searchPageByAuthor(query, PAGE_SIZE, cursor));
+        } catch (Exception e) {
+            e.printStackTrace();
+            if (cursor != null) throw new IllegalStateException("Pagina successiva non disponibile", e);
+        }
+        return new Page(cercaLibroPerAutore(query), null);
+    }
+
+    public Page paginaPerAutoreEAnno(String a, int anno, String cursor) {
+        String query = a == null ? "" : a.trim();
+        if (query.isEmpty()) return new Page(List.of(), null);
+        try {
+            return toPage(serverApi.searchPageByAuthorAndYear(query, anno, PAGE_SIZE, cursor));
+        } catch (Exception e) {
+            e.printStackTrace();
+            if (cursor != null) throw new IllegalStateException("Pagina successiva non disponibile", e);
+        }
+        return new Page(cercaLibroPerAutoreEAnno(query, anno), null);
+    }
+
+    /**
+     * Ricerca avanzata (es. {@code author:eco year:1980..1989}), a pagine come
+     * le altre. Il linguaggio lo interpreta il server: non c'è ripiego locale.
+     *
+     * @throws IOException se il server non risponde o la query non è valida
+     */
+    public Page cerca(String q, String cursor) throws IOException {
+        String query = q == null ? "" : q.trim();
+        if (query.isEmpty()) return new Page(libriRepo.all(), null);
+        return toPage(serverApi.search(query, PAGE_SIZE, cursor));
+    }
+
+    private static Page toPage(ServerApi.BookPage p) {
+        return new Page(toBooks(p.rows), p.nextCursor);
+    }
+
+    private static List<Book> toBooks(List<ServerApi.BookRow> rows) {
+        List<Book> books = new ArrayList<>(rows.size());
+        for (ServerApi.BookRow r : rows) {
+            List<String> autori = (r.autori == null || r.autori.isBlank())
+                    ? List.of()
+                    : Arrays.asList(r.autori.split("\\s*,\\s*"));
+            books.add(new Book(r.id, r.titolo, autori, r.anno, r.editore, r.categoria));
+        }
+        return books;
+    }
 
     private static String norm(String s) {
         if (s == null) return "";
@@ -1,5 +1,7 @@
 package bookrecommender.ui;
 
+import bookrecommender.client.net.ConnectionManager;
+import bookrecommender.client.net.ServerApi;
 import bookrecommender.model.Book;
 import bookrecommender.model.Library;
 import bookrecommender.model.Review;
@@ -12,18 +14,23 @@ import bookrecommender.service.LibraryService;
 import bookrecommender.service.ReviewService;
 import bookrecommender.service.SearchService;
 import bookrecommender.service.SuggestionService;
+import javafx.animation.PauseTransition;
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.beans.binding.Bindings;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
+import javafx.geometry.Side;
 import javafx.scene.Node;
 import javafx.scene.Scene;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Button;
 import javafx.scene.control.ButtonType;
 import javafx.scene.control.ComboBox;
+import javafx.scene.control.ContextMenu;
+import javafx.scene.control.CustomMenuItem;
 import javafx.scene.control.Dialog;
 import javafx.scene.control.Label;
 import javafx.scene.control.PasswordField;
@@ -43,6 +50,7 @@ import javafx.scene.layout.HBox;
 import javafx.scene.layout.Priority;
 import javafx.scene.layout.VBox;
 import javafx.stage.Stage;
+import javafx.util.Duration;
 
 import java.net.URL;
 import java.nio.file.Files;
@@ -50,6 +58,8 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.DecimalFormat;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 
 /**
@@ -93,7 +103,9 @@ public class BookRecommenderFX extends Application {
     private enum SearchMode {
         TITLE("Titolo"),
         AUTHOR("Autore"),
-        AUTHOR_YEAR("Autore + anno");
+        AUTHOR_YEAR("Autore + anno"),
+        FUZZY("Titolo o autore (tollerante)"),
+        ADVANCED("Ricerca avanzata");
         private final String label;
         SearchMode(String l){ this.label = l; }
         @Override public String toString(){ return label; }
@@ -101,6 +113,21 @@ public class BookRecommenderFX extends Application {
 
     private final DecimalFormat DF1 = new DecimalFormat("0.0");
 
+    // --- completamenti durante la digitazione ---
+    private static final int SUGGEST_MIN_CHARS = 2;
+    private static final int SUGGEST_COUNT = 8;
+    private static final Duration SUGGEST_DEBOUNCE = Duration.millis(200);
+
+    private ContextMenu suggestMenu;
+    private PauseTransition suggestDebounce;
+    private long suggestSeq = 0;           // solo la risposta all'ultima richiesta viene mostrata
+    private boolean suppressSuggest = false;
+    private final ExecutorService suggestExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "typeahead");
+        t.setDaemon(true);
+        return t;
+    });
+
     @Override
     public void start(Stage stage) throws Exception {
         // === init dati ===
@@ -203,9 +230,11 @@ public class BookRecommenderFX extends Application {
         tfSearch.setPromptText("Titolo (es: Il signore degli anelli)");
         tfSearch.setPrefWidth(420);
         tfSearch.setOnAction(e -> performSearch());
+        setupTypeahead();
 
         cbSearchMode = new ComboBox<>();
-        cbSearchMode.getItems().addAll(SearchMode.TITLE, SearchMode.AUTHOR, SearchMode.AUTHOR_YEAR);
+        cbSearchMode.getItems().addAll(SearchMode.TITLE, SearchMode.AUTHOR, SearchMode.AUTHOR_YEAR, SearchMode.FUZZY,
+                SearchMode.ADVANCED);
         cbSearchMode.getSelectionModel().select(SearchMode.TITLE);
         cbSearchMode.valueProperty().addListener((obs,oldv,newv) -> updateSearchPrompt());
 
@@ -229,12 +258,82 @@ public class BookRecommenderFX extends Application {
         return header;
     }
 
+    /**
+     * Suggerimenti mentre l'utente scrive: si aspetta una pausa di
+     * SUGGEST_DEBOUNCE prima di interrogare il server (un solo SUGGEST_PREFIX
+     * per raffica di tasti), la richiesta gira fuori dal thread JavaFX e le
+     * risposte arrivate fuori tempo vengono ignorate.
+     */
+    private void setupTypeahead() {
+        suggestMenu = new ContextMenu();
+        suggestDebounce = new PauseTransition(SUGGEST_DEBOUNCE);
+        suggestDebounce.setOnFinished(e -> requestSuggestions());
+
+        tfSearch.textProperty().addListener((obs, oldv, newv) -> {
+            if (suppressSuggest) return;
+            suggestSeq++;
+            String q = newv == null ? "" : newv.trim();
+            SearchMode mode = cbSearchMode.getValue();
+            if (q.length() < SUGGEST_MIN_CHARS || mode == SearchMode.AUTHOR_YEAR || mode == SearchMode.ADVANCED) {
+                suggestDebounce.stop();
+                suggestMenu.hide();
+                return;
+            }
+            suggestDebounce.playFromStart();
+        });
+        tfSearch.focusedProperty().addListener((obs, oldv, focused) -> {
+            if (!focused) suggestMenu.hide();
+        });
+    }
+
+    private void requestSuggestions() {
+        long seq = ++suggestSeq;
+        String prefix = tfSearch.getText() == null ? "" : tfSearch.getText().trim();
+        suggestExecutor.execute(() -> {
+            List<ServerApi.Completion> items = searchService.completamenti(prefix, SUGGEST_COUNT);
+            Platform.runLater(() -> {
+                if (seq == suggestSeq) showSuggestions(items);
+            });
+        });
+    }
+
+    private void showSuggestions(List<ServerApi.Completion> items) {
+        suggestMenu.getItems().clear();
+        if (items.isEmpty() || !tfSearch.isFocused()) {
+            suggestMenu.hide();
+            return;
+        }
+        for (ServerApi.Completion c : items) {
+            Label l = new Label(c.author ? c.text + "  (autore)" : c.text);
+            CustomMenuItem item = new CustomMenuItem(l, true);
+            item.setOnAction(e -> applySuggestion(c));
+            suggestMenu.getItems().add(item);
+        }
+        if (!suggestMenu.isShowing()) suggestMenu.show(tfSearch, Side.BOTTOM, 0, 0);
+    }
+
+    private void applySuggestion(ServerApi.Completion c) {
+        suppressSuggest = true;
+        try {
+            cbSearchMode.getSelectionModel().select(c.author ? SearchMode.AUTHOR : SearchMode.TITLE);
+            tfSearch.setText(c.text);
+            tfSearch.positionCaret(c.text.length());
+        } finally {
+            suppressSuggest = false;
+        }
+        performSearch();
+    }
+
     private void updateSearchPrompt() {
         SearchMode m = cbSearchMode.getValue();
         if (m == SearchMode.TITLE) {
             tfSearch.setPromptText("Titolo (es: Il signore degli anelli)");
         } else if (m == SearchMode.AUTHOR) {
             tfSearch.setPromptText("Autore (es: Stephen King)");
+        } else if (m == SearchMode.FUZZY) {
+            tfSearch.setPromptText("Anche con errori (es: Stefen Kng)");
+        } else if (m == SearchMode.ADVANCED) {
+            tfSearch.setPromptText("es: author:eco year:1980..1989 (anche OR e parentesi)");
         } else {
             tfSearch.setPromptText("Autore e anno (es: Stephen King; 1986)");
         }
@@ -388,6 +487,11 @@ public class BookRecommenderFX extends Application {
     }
 
     private void performSearch() {
+        if (suggestDebounce != null) {
+            suggestDebounce.stop();
+            suggestSeq++;
+            suggestMenu.hide();
+        }
         String q = tfSearch.getText() == null ? "" : tfSearch.getText().trim();
         SearchMode m = cbSearchMode.getValue();
         List<Book> result;
@@ -410,6 +514,12 @@ public class BookRecommenderFX extends Application {
                     int anno = Integer.parseInt(annoStr);
                     result = searchService.cercaLibroPerAutoreEAnno(autore, anno);
                     break;
+                case FUZZY:
+                    result = searchService.cercaLibroTollerante(q);
+                    break;
+                case ADVANCED:
+                    result = searchService.cerca(q, null).books;
+                    break;
                 default:
                     result = libriRepo.all();
             }
@@ -447,8 +557,11 @@ public class BookRecommenderFX extends Application {
         }
 
         try {
+            // valutazioni e suggerimenti arrivano insieme (un solo round trip)
+            AggregationService.BookStats stats = aggregationService.getBookStats(b.getId());
+
             // --- Valutazioni ---
-            AggregationService.ReviewStats rs = aggregationService.getReviewStats(b.getId());
+            AggregationService.ReviewStats rs = stats.reviews;
             if (rs.count == 0) {
                 lblRatingHeader.setText("Nessuna valutazione ancora presente.");
                 lblRatingAverages.setText("");
@@ -478,15 +591,17 @@ public class BookRecommenderFX extends Application {
             }
 
             // --- Suggerimenti ---
-            AggregationService.SuggestionsStats ss = aggregationService.getSuggestionsStats(b.getId());
+            AggregationService.SuggestionsStats ss = stats.suggestions;
             boxSuggestions.getChildren().clear();
             if (ss.suggeritiCount.isEmpty()) {
                 Label noSug = new Label("Nessun suggerimento ancora presente.");
                 noSug.getStyleClass().add("muted");
                 boxSuggestions.getChildren().add(noSug);
             } else {
+                // tutti i libri consigliati in una sola richiesta al server
+                Map<Integer, Book> suggeriti = searchService.libriPerId(ss.suggeritiCount.keySet());
                 for (Map.Entry<Integer,Integer> e : ss.suggeritiCount.entrySet()) {
-                    Book sug = libriRepo.findById(e.getKey());
+                    Book sug = suggeriti.get(e.getKey());
                     String titolo = sug != null ? sug.getTitolo() : ("Libro ID " + e.getKey());
                     int count = e.getValue();
                     String labelUtenti = (count == 1) ? "utente" : "utenti";
@@ -907,6 +1022,13 @@ public class BookRecommenderFX extends Application {
         a.showAndWait();
     }
 
+    @Override
+    public void stop() {
+        // chiude le connessioni persistenti verso il server
+        suggestExecutor.shutdownNow();
+        ConnectionManager.closeAllShared();
+    }
+
     public static void main(String[] args) {
         launch(args);
     }
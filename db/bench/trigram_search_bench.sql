@@ -0,0 +1,85 @@
+-- Benchmark della ricerca per sottostringa: LIKE su LOWER() contro indici a trigrammi
+--
+-- Crea un catalogo sintetico in uno schema separato (bench), misura le query
+-- di LibriDao prima e dopo la creazione degli indici e lascia i piani in output.
+--
+--   psql -d bookrecommender -v righe=3000000 -f db/bench/trigram_search_bench.sql
+--
+-- Richiede pg_trgm, unaccent e bk_norm() (schema.sql o migrations/001).
+-- Alla fine lo schema bench viene eliminato.
+--
+-- Risultati (PostgreSQL 16.2, 1 vCPU, shared_buffers=1GB, tabella in cache,
+-- righe=3000000; Execution Time di EXPLAIN ANALYZE):
+--
+--   query                        prima (LOWER LIKE)   dopo (bk_norm + GIN)
+--   titolo '%giardino%'               10.3 ms              2.6 ms
+--   titolo '%silenzio caffe%'       2286.0 ms            242.8 ms
+--   autori '%nicolò de luca%'       2032.5 ms            116.0 ms
+--
+-- 'giardino' è frequente: entrambe le versioni si fermano presto scorrendo
+-- la chiave primaria, le 101 righe del LIMIT arrivano subito. Le altre due
+-- non trovano nulla: prima si leggono tutti i 3 milioni di righe, dopo
+-- solo le liste dei trigrammi (1808 e 1252 pagine invece di ~38000).
+-- Creare i due indici GIN ha richiesto 36.2 s (titolo) e 17.3 s (autori).
+
+\set ON_ERROR_STOP on
+\if :{?righe}
+\else
+  \set righe 3000000
+\endif
+\timing on
+
+DROP SCHEMA IF EXISTS bench CASCADE;
+CREATE SCHEMA bench;
+
+CREATE TABLE bench.libri (LIKE public.libri INCLUDING ALL EXCLUDING INDEXES);
+ALTER TABLE bench.libri ADD PRIMARY KEY (id);
+
+-- titoli e autori composti da parole prese da un piccolo vocabolario,
+-- con qualche accento, così la selettività somiglia a quella di un catalogo vero
+INSERT INTO bench.libri (id, titolo, autori, anno)
+SELECT g,
+       initcap(w[1 + (g * 7) % 20] || ' ' || w[1 + (g * 13) % 20] || ' ' || w[1 + (g * 31) % 20])
+           || ' ' || (g % 997),
+       initcap(n[1 + (g * 11) % 16]) || ' ' || initcap(c[1 + (g * 17) % 16]),
+       1900 + g % 125
+FROM generate_series(1, :righe) AS g,
+     LATERAL (SELECT ARRAY['città','notte','mare','perché','viaggio','storia','amore','guerra',
+                           'tempo','libro','vento','casa','ombra','fuoco','luna','strada',
+                           'caffè','memoria','silenzio','giardino'] AS w,
+                     ARRAY['mario','luca','anna','giulia','paolo','sara','marco','elena',
+                           'andrea','chiara','nicolò','francesca','pietro','laura','davide','irene'] AS n,
+                     ARRAY['rossi','bianchi','verdi','esposito','romano','colombo','ricci','marino',
+                           'greco','bruno','gallo','conti','de luca','mancini','costa','fabbri'] AS c) v;
+ANALYZE bench.libri;
+
+SET search_path = bench, public;
+
+\echo '=== PRIMA: LOWER(..) LIKE LOWER(..), nessun indice ==='
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT id, titolo, autori, anno FROM libri
+WHERE LOWER(titolo) LIKE LOWER('%giardino%') AND id > -1 ORDER BY id LIMIT 101;
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT id, titolo, autori, anno FROM libri
+WHERE LOWER(titolo) LIKE LOWER('%silenzio caffe%') AND id > -1 ORDER BY id LIMIT 101;
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT id, titolo, autori, anno FROM libri
+WHERE LOWER(autori) LIKE LOWER('%nicolò de luca%') AND id > -1 ORDER BY id LIMIT 101;
+
+CREATE INDEX ON libri USING gin (bk_norm(titolo) gin_trgm_ops);
+CREATE INDEX ON libri USING gin (bk_norm(autori) gin_trgm_ops);
+ANALYZE libri;
+
+\echo '=== DOPO: bk_norm(..) LIKE con indici GIN a trigrammi ==='
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT id, titolo, autori, anno FROM libri
+WHERE bk_norm(titolo) LIKE '%' || bk_norm('giardino') || '%' AND id > -1 ORDER BY id LIMIT 101;
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT id, titolo, autori, anno FROM libri
+WHERE bk_norm(titolo) LIKE '%' || bk_norm('silenzio caffe') || '%' AND id > -1 ORDER BY id LIMIT 101;
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT id, titolo, autori, anno FROM libri
+WHERE bk_norm(autori) LIKE '%' || bk_norm('nicolo de luca') || '%' AND id > -1 ORDER BY id LIMIT 101;
+
+RESET search_path;
+DROP SCHEMA bench CASCADE;
@@ -0,0 +1,25 @@
+-- Migrazione: ricerca per sottostringa indicizzata (trigrammi)
+--
+-- Per database creati con una versione di schema.sql precedente agli indici
+-- a trigrammi. Si può rilanciare senza danni (IF NOT EXISTS / OR REPLACE).
+--
+--   psql -d bookrecommender -f db/migrations/001_trigram_search.sql
+--
+-- Gli indici sono creati CONCURRENTLY per non bloccare le scritture sulla
+-- tabella libri mentre il server è in funzione: per questo lo script NON va
+-- eseguito dentro una transazione (niente psql --single-transaction).
+-- Serve un utente che possa creare estensioni (o estensioni già installate).
+
+CREATE EXTENSION IF NOT EXISTS pg_trgm;
+CREATE EXTENSION IF NOT EXISTS unaccent;
+
+CREATE OR REPLACE FUNCTION bk_norm(t TEXT) RETURNS TEXT
+    LANGUAGE sql IMMUTABLE PARALLEL SAFE STRICT
+    AS $$ SELECT lower(public.unaccent('public.unaccent'::regdictionary, t)) $$;
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS libri_titolo_trgm
+    ON libri USING gin (bk_norm(titolo) gin_trgm_ops);
+CREATE INDEX CONCURRENTLY IF NOT EXISTS libri_autori_trgm
+    ON libri USING gin (bk_norm(autori) gin_trgm_ops);
+
+ANALYZE libri;
@@ -0,0 +1,26 @@
+-- Migrazione: indici secondari per gli accessi dei DAO
+--
+-- Le chiavi primarie coprono solo le ricerche per la loro prima colonna;
+-- senza questi indici le query seguenti leggono tutta la tabella:
+--
+--   valutazioni_libri (id_libro)            ValutazioniDao.computeStats
+--   consigli_libri (id_libro_sorgente)      ConsigliDao.computeSuggestions
+--   librerie (userid, nome)                 LibrerieDao.listLibraries (anche ORDER BY nome),
+--                                           findOrCreateLibrary, loadOwnedBookIds,
+--                                           isBookInUserLibraries
+--   librerie_libri (id_libro)               popolarità dei libri e ON DELETE CASCADE da libri
+--
+-- Applicata all'avvio dal server (SchemaMigrator). Gli indici sono creati
+-- CONCURRENTLY per non bloccare le scritture: lo script NON va eseguito
+-- dentro una transazione e si può rilanciare senza danni (IF NOT EXISTS).
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS valutazioni_libri_libro
+    ON valutazioni_libri (id_libro);
+CREATE INDEX CONCURRENTLY IF NOT EXISTS consigli_libri_sorgente
+    ON consigli_libri (id_libro_sorgente, id_libro_consigliato);
+CREATE INDEX CONCURRENTLY IF NOT EXISTS librerie_utente
+    ON librerie (userid, nome);
+CREATE INDEX CONCURRENTLY IF NOT EXISTS librerie_libri_libro
+    ON librerie_libri (id_libro);
+
+ANALYZE valutazioni_libri, consigli_libri, librerie, librerie_libri;
@@ -0,0 +1,42 @@
+-- Migrazione: statistiche delle valutazioni per libro
+--
+-- Una riga per libro con numero di valutazioni, somme dei sei criteri e
+-- istogramma del voto finale: GET_REVIEW_STATS (ValutazioniDao.computeStats)
+-- diventa una lettura per chiave primaria invece di due scansioni delle
+-- valutazioni del libro. La tabella è aggiornata da insertReview nella stessa
+-- transazione dell'inserimento; ReviewStatsRebuild la ricostruisce da zero.
+--
+-- Applicata all'avvio dal server (SchemaMigrator), in una transazione. Il
+-- LOCK evita di perdere valutazioni inserite da un server ancora acceso
+-- mentre la tabella viene riempita.
+
+CREATE TABLE IF NOT EXISTS statistiche_valutazioni (
+    id_libro           INTEGER PRIMARY KEY REFERENCES libri(id) ON DELETE CASCADE,
+    n_valutazioni      INTEGER NOT NULL,
+    somma_stile        BIGINT  NOT NULL,
+    somma_contenuto    BIGINT  NOT NULL,
+    somma_gradevolezza BIGINT  NOT NULL,
+    somma_originalita  BIGINT  NOT NULL,
+    somma_edizione     BIGINT  NOT NULL,
+    somma_voto_finale  BIGINT  NOT NULL,
+    voto_1             INTEGER NOT NULL,
+    voto_2             INTEGER NOT NULL,
+    voto_3             INTEGER NOT NULL,
+    voto_4             INTEGER NOT NULL,
+    voto_5             INTEGER NOT NULL
+);
+
+LOCK TABLE valutazioni_libri IN SHARE MODE;
+
+INSERT INTO statistiche_valutazioni
+    (id_libro, n_valutazioni, somma_stile, somma_contenuto, somma_gradevolezza,
+     somma_originalita, somma_edizione, somma_voto_finale,
+     voto_1, voto_2, voto_3, voto_4, voto_5)
+SELECT v.id_libro, COUNT(*), SUM(v.stile), SUM(v.contenuto), SUM(v.gradevolezza),
+       SUM(v.originalita), SUM(v.edizione), SUM(v.voto_finale),
+       COUNT(*) FILTER (WHERE v.voto_finale = 1), COUNT(*) FILTER (WHERE v.voto_finale = 2),
+       COUNT(*) FILTER (WHERE v.voto_finale = 3), COUNT(*) FILTER (WHERE v.voto_finale = 4),
+       COUNT(*) FILTER (WHERE v.voto_finale = 5)
+FROM valutazioni_libri v
+GROUP BY v.id_libro
+ON CONFLICT (id_libro) DO NOTHING;
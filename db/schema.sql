@@ -8,6 +8,19 @@
 -- Usa il database
 -- \c bookrecommender;
 
+-- ========== ESTENSIONI ==========
+-- pg_trgm: indici a trigrammi per la ricerca per sottostringa (LIKE '%...%')
+-- unaccent: toglie gli accenti, così "perche" trova anche "perché"
+CREATE EXTENSION IF NOT EXISTS pg_trgm;
+CREATE EXTENSION IF NOT EXISTS unaccent;
+
+-- Forma normalizzata usata sia negli indici sia nelle query di ricerca:
+-- minuscolo e senza accenti. unaccent() da sola non è IMMUTABLE (dipende dal
+-- dizionario di default), per questo il dizionario è indicato esplicitamente.
+CREATE OR REPLACE FUNCTION bk_norm(t TEXT) RETURNS TEXT
+    LANGUAGE sql IMMUTABLE PARALLEL SAFE STRICT
+    AS $$ SELECT lower(public.unaccent('public.unaccent'::regdictionary, t)) $$;
+
 -- ========== TABELLA LIBRI ==========
 CREATE TABLE libri (
     id            INTEGER PRIMARY KEY,
@@ -19,6 +32,12 @@ CREATE TABLE libri (
     -- se vuoi puoi aggiungere altre colonne in base al CSV
 );
 
+-- Ricerca per sottostringa su titolo e autori (vedi LibriDao):
+-- WHERE bk_norm(titolo) LIKE '%' || bk_norm(?) || '%' usa questi indici GIN
+-- invece di leggere tutta la tabella.
+CREATE INDEX libri_titolo_trgm ON libri USING gin (bk_norm(titolo) gin_trgm_ops);
+CREATE INDEX libri_autori_trgm ON libri USING gin (bk_norm(autori) gin_trgm_ops);
+
 -- ========== TABELLA UTENTI ==========
 CREATE TABLE utenti_registrati (
     userid        VARCHAR(50) PRIMARY KEY,
@@ -36,6 +55,8 @@ CREATE TABLE librerie (
     userid   VARCHAR(50) NOT NULL REFERENCES utenti_registrati(userid) ON DELETE CASCADE,
     nome     VARCHAR(100) NOT NULL
 );
+-- librerie di un utente (LibrerieDao, ConsigliDao, ValutazioniDao)
+CREATE INDEX librerie_utente ON librerie (userid, nome);
 
 -- Tabella di collegamento libreria ↔ libri (N:M)
 CREATE TABLE librerie_libri (
@@ -43,6 +64,7 @@ CREATE TABLE librerie_libri (
     id_libro    INTEGER NOT NULL REFERENCES libri(id) ON DELETE CASCADE,
     PRIMARY KEY (id_libreria, id_libro)
 );
+CREATE INDEX librerie_libri_libro ON librerie_libri (id_libro);
 
 -- ========== TABELLA VALUTAZIONI ==========
 -- Una sola valutazione per coppia (utente, libro)
@@ -61,6 +83,27 @@ CREATE TABLE valutazioni_libri (
 
     PRIMARY KEY (userid, id_libro)
 );
+-- statistiche delle valutazioni di un libro (ValutazioniDao.computeStats)
+CREATE INDEX valutazioni_libri_libro ON valutazioni_libri (id_libro);
+
+-- Statistiche per libro, aggiornate da ValutazioniDao.insertReview nella
+-- stessa transazione (GET_REVIEW_STATS legge solo questa riga);
+-- ReviewStatsRebuild le ricostruisce da valutazioni_libri
+CREATE TABLE statistiche_valutazioni (
+    id_libro           INTEGER PRIMARY KEY REFERENCES libri(id) ON DELETE CASCADE,
+    n_valutazioni      INTEGER NOT NULL,
+    somma_stile        BIGINT  NOT NULL,
+    somma_contenuto    BIGINT  NOT NULL,
+    somma_gradevolezza BIGINT  NOT NULL,
+    somma_originalita  BIGINT  NOT NULL,
+    somma_edizione     BIGINT  NOT NULL,
+    somma_voto_finale  BIGINT  NOT NULL,
+    voto_1             INTEGER NOT NULL,
+    voto_2             INTEGER NOT NULL,
+    voto_3             INTEGER NOT NULL,
+    voto_4             INTEGER NOT NULL,
+    voto_5             INTEGER NOT NULL
+);
 
 -- ========== TABELLE SUGGERIMENTI ==========
 -- libro_sorgente = libro visualizzato
@@ -72,3 +115,5 @@ CREATE TABLE consigli_libri (
 
     PRIMARY KEY (userid, id_libro_sorgente, id_libro_consigliato)
 );
+-- suggerimenti per un libro (ConsigliDao.computeSuggestions)
+CREATE INDEX consigli_libri_sorgente ON consigli_libri (id_libro_sorgente, id_libro_consigliato);
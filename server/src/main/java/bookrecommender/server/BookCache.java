@@ -0,0 +1,133 @@
+package bookrecommender.server;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache read-through dei libri per id (GET_BOOK / GET_BOOKS), davanti alla
+ * tabella libri.
+ *
+ * È una tabella a indirizzamento diretto: ogni id finisce in uno slot
+ * calcolato dal suo hash e, se lo slot è occupato da un altro libro, lo
+ * sostituisce. Niente mappa con chiavi Integer, niente lock: uno slot
+ * contiene un Book immutabile (campi final, quindi pubblicato in modo sicuro
+ * anche senza sincronizzazione) e una lettura concorrente vede il libro
+ * vecchio o quello nuovo, mai uno a metà. Nel caso peggiore si ha un miss
+ * in più.
+ *
+ * Gli id mancanti di una richiesta vengono letti dal DB con una sola query
+ * (id = ANY(?)). Si svuota insieme a SearchCache quando il controllo
+ * periodico di SearchIndex vede cambiare il catalogo; in più ogni libro
+ * scade dopo BOOK_CACHE_TTL_MS, come le voci di SearchCache, così anche
+ * una modifica sfuggita al controllo resta visibile al più per quel tempo.
+ */
+final class BookCache {
+
+    /** Riga completa di libri. */
+    static final class Book {
+        final int id;
+        final String titolo;
+        final String autori;
+        final Integer anno;
+        final String editore;
+        final String categoria;
+        final long loadedMs;
+
+        Book(int id, String titolo, String autori, Integer anno, String editore, String categoria) {
+            this.loadedMs = System.currentTimeMillis();
+            this.id = id;
+            this.titolo = titolo;
+            this.autori = autori;
+            this.anno = anno;
+            this.editore = editore;
+            this.categoria = categoria;
+        }
+    }
+
+    private static final BookCache SHARED = new BookCache(ServerConfig.BOOK_CACHE_SLOTS);
+
+    private final int mask;
+    private volatile Book[] slots;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /** @param capacity numero di slot, arrotondato alla potenza di due successiva */
+    BookCache(int capacity) {
+        int n = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = n - 1;
+        this.slots = new Book[n];
+    }
+
+    static BookCache shared() {
+        return SHARED;
+    }
+
+    static void invalidateAll() {
+        SHARED.clear();
+    }
+
+    void clear() {
+        slots = new Book[mask + 1];
+    }
+
+    /**
+     * I libri con gli id richiesti, nello stesso ordine; gli id che non
+     * esistono vengono saltati.
+     */
+    List<Book> getAll(int[] ids, LibriDao dao) throws SQLException {
+        Book[] table = slots;
+        long oldest = System.currentTimeMillis() - ServerConfig.BOOK_CACHE_TTL_MS;
+        Book[] found = new Book[ids.length];
+        int[] missing = new int[ids.length];
+        int nMissing = 0;
+
+        for (int i = 0; i < ids.length; i++) {
+            Book b = table[slot(ids[i])];
+            if (b != null && b.id == ids[i] && b.loadedMs >= oldest) {
+                found[i] = b;
+            } else {
+                missing[nMissing++] = ids[i];
+            }
+        }
+        hits.addAndGet(ids.length - nMissing);
+        misses.addAndGet(nMissing);
+
+        if (nMissing > 0) {
+            // ordinati e senza ripetizioni: la posizione di ogni riga letta si trova per ricerca binaria
+            int[] toLoad = Arrays.stream(missing, 0, nMissing).sorted().distinct().toArray();
+            Book[] loaded = new Book[toLoad.length];
+            dao.findByIds(toLoad, (id, titolo, autori, anno, editore, categoria) -> {
+                Book b = new Book(id, titolo, autori, anno, editore, categoria);
+                loaded[Arrays.binarySearch(toLoad, id)] = b;
+                table[slot(id)] = b;
+            });
+            for (int i = 0; i < ids.length; i++) {
+                if (found[i] != null) continue;
+                int k = Arrays.binarySearch(toLoad, ids[i]);
+                found[i] = loaded[k];
+            }
+        }
+
+        List<Book> out = new ArrayList<>(ids.length);
+        for (Book b : found) {
+            if (b != null) out.add(b);
+        }
+        return out;
+    }
+
+    private int slot(int id) {
+        int h = id * 0x9E3779B9; // hash moltiplicativo: id consecutivi finiscono lontani
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    String stats() {
+        long h = hits.get(), m = misses.get();
+        long ratio = h + m == 0 ? 0 : h * 100 / (h + m);
+        return "bookHits=" + h + " bookMisses=" + m + " bookHitRatio=" + ratio + "%"
+                + " bookSlots=" + (mask + 1);
+    }
+}
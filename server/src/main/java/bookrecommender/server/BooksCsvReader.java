@@ -0,0 +1,157 @@
+package bookrecommender.server;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Lettura in streaming di BooksDatasetClean.csv, un record alla volta.
+ *
+ * Stesse regole dell'import del client (CsvImporter), così gli id assegnati
+ * in ordine di file coincidono: le virgolette aprono e chiudono un campo
+ * ovunque compaiano, dentro le virgolette "" vale una virgoletta e un a capo
+ * fa parte del campo; i campi vengono ripuliti dagli spazi; le righe con meno
+ * di 8 colonne vengono saltate. Solo le colonne usate vengono decodificate.
+ *
+ * Colonne: 0 Title, 1 Authors, 2 Description, 3 Category, 4 Publisher,
+ * 5 Price, 6 Publish Date (Month), 7 Publish Date (Year).
+ */
+final class BooksCsvReader implements Closeable {
+
+    private static final int MIN_COLUMNS = 8;
+    private static final int COL_TITLE = 0;
+    private static final int COL_AUTHORS = 1;
+    private static final int COL_CATEGORY = 3;
+    private static final int COL_PUBLISHER = 4;
+    private static final int COL_YEAR = 7;
+    private static final long USED_COLUMNS = 1L << COL_TITLE | 1L << COL_AUTHORS | 1L << COL_CATEGORY
+            | 1L << COL_PUBLISHER | 1L << COL_YEAR;
+
+    private final InputStream in;
+    private final String[] cols = new String[MIN_COLUMNS];
+    private byte[] field = new byte[256];
+    private long bytesRead = 0;
+    private boolean headerSkipped = false;
+
+    // record corrente
+    String titolo;
+    String autori;     // autori separati da ", " (formato della tabella libri)
+    Integer anno;
+    String editore;
+    String categoria;
+
+    BooksCsvReader(Path csv) throws IOException {
+        this.in = new BufferedInputStream(Files.newInputStream(csv), 1 << 16);
+    }
+
+    /** Passa al record valido successivo; false a fine file. */
+    boolean next() throws IOException {
+        while (true) {
+            int col = readRecord();
+            if (col < 0) return false;
+            if (!headerSkipped) {
+                headerSkipped = true;
+                continue;
+            }
+            if (col < MIN_COLUMNS) continue;
+
+            titolo = cols[COL_TITLE];
+            autori = joinAutori(cols[COL_AUTHORS]);
+            anno = null;
+            try {
+                if (!cols[COL_YEAR].isEmpty()) anno = Integer.parseInt(cols[COL_YEAR]);
+            } catch (NumberFormatException ignored) {}
+            editore = cols[COL_PUBLISHER].isEmpty() ? null : cols[COL_PUBLISHER];
+            categoria = cols[COL_CATEGORY].isEmpty() ? null : cols[COL_CATEGORY];
+            return true;
+        }
+    }
+
+    /** Byte letti finora (per il progresso). */
+    long bytesRead() {
+        return bytesRead;
+    }
+
+    /** Legge un record in cols; restituisce il numero di colonne, -1 a fine file. */
+    private int readRecord() throws IOException {
+        Arrays.fill(cols, null);
+        int col = 0;
+        int flen = 0;
+        boolean inQuotes = false;
+        boolean keep = true;
+        boolean any = false;
+
+        int b = in.read();
+        while (true) {
+            if (b < 0) {
+                if (!any) return -1;
+                if (keep) cols[col] = decode(flen, true);
+                return col + 1;
+            }
+            bytesRead++;
+            any = true;
+            if (b == '"') {
+                int nb = in.read();
+                if (inQuotes && nb == '"') {
+                    bytesRead++;
+                    b = '"'; // virgoletta letterale, cade nel caso generale sotto
+                } else {
+                    inQuotes = !inQuotes;
+                    b = nb;
+                    continue;
+                }
+            } else if (!inQuotes && (b == ',' || b == '\n')) {
+                if (keep) cols[col] = decode(flen, b == '\n');
+                col++;
+                flen = 0;
+                keep = col < MIN_COLUMNS && (USED_COLUMNS >>> col & 1) != 0;
+                if (b == '\n') return col;
+                b = in.read();
+                continue;
+            }
+            if (keep) {
+                if (flen == field.length) field = Arrays.copyOf(field, flen * 2);
+                field[flen++] = (byte) b;
+            }
+            b = in.read();
+        }
+    }
+
+    private String decode(int len, boolean endOfLine) {
+        if (endOfLine && len > 0 && field[len - 1] == '\r') len--;
+        // come il client: un a capo dentro un campo tra virgolette diventa uno spazio
+        for (int i = 0; i < len; i++) {
+            if (field[i] == '\n' || field[i] == '\r') field[i] = ' ';
+        }
+        return new String(field, 0, len, StandardCharsets.UTF_8).trim();
+    }
+
+    /** Toglie "By " iniziale e divide su ',', ';' e '|' come il client; unisce con ", ". */
+    private static String joinAutori(String raw) {
+        String s = raw;
+        if (s.regionMatches(true, 0, "by ", 0, 3)) s = s.substring(3);
+        StringBuilder out = new StringBuilder(s.length());
+        int start = 0;
+        for (int i = 0; i <= s.length(); i++) {
+            if (i == s.length() || s.charAt(i) == ',' || s.charAt(i) == ';' || s.charAt(i) == '|') {
+                String part = s.substring(start, i).trim();
+                if (!part.isEmpty()) {
+                    if (out.length() > 0) out.append(", ");
+                    out.append(part);
+                }
+                start = i + 1;
+            }
+        }
+        return out.length() == 0 ? null : out.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
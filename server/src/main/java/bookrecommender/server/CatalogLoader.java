@@ -0,0 +1,235 @@
+package bookrecommender.server;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Caricamento della tabella libri da BooksDatasetClean.csv con COPY.
+ *
+ *   java -cp ... bookrecommender.server.CatalogLoader BooksDatasetClean.csv [--replace]
+ *
+ * Il CSV viene letto in streaming (BooksCsvReader) da un thread che codifica
+ * le righe nel formato di COPY (CopyEncoder); il thread principale invia i
+ * blocchi al server con CopyManager. Lettura e invio procedono insieme e la
+ * memoria usata non dipende dalla dimensione del file.
+ *
+ * Tutto avviene in una sola transazione:
+ *  - con --replace la tabella viene svuotata (TRUNCATE ... CASCADE: anche
+ *    valutazioni, consigli e librerie che puntano ai libri) e il COPY usa
+ *    FREEZE; gli id partono da 1 come nell'import del client. Senza
+ *    --replace i libri vengono aggiunti dopo l'id più alto già presente;
+ *  - con --replace, o se il CSV è grande rispetto alla tabella (almeno
+ *    LOADER_DEFER_INDEX_RATIO volte la sua dimensione), gli indici
+ *    secondari di libri (es. i GIN a trigrammi) vengono eliminati prima del
+ *    COPY e ricreati alla fine: costruirli una volta sui dati già caricati
+ *    costa molto meno che aggiornarli riga per riga. Per poche righe in
+ *    più conviene invece aggiornarli. La chiave primaria resta sempre,
+ *    serve alle chiavi esterne.
+ *
+ * Blocchi: TRUNCATE e DROP INDEX tengono libri in ACCESS EXCLUSIVE fino al
+ * commit, quindi con --replace o con gli indici rinviati le ricerche, i
+ * GET_BOOKS non in cache e gli inserimenti di valutazioni di un server in
+ * esecuzione restano in attesa per tutto il caricamento. Una semplice
+ * aggiunta prende solo ROW EXCLUSIVE e non ferma le letture.
+ *
+ * Se qualcosa va storto la transazione viene annullata, indici compresi.
+ * Un server in esecuzione si accorge del nuovo catalogo al successivo
+ * controllo di SearchIndex.
+ */
+public final class CatalogLoader {
+
+    private static final String COPY_SQL =
+            "COPY libri (id, titolo, autori, anno, editore, categoria) FROM STDIN";
+
+    /** Blocco vuoto che segnala la fine del file al thread che invia. */
+    private static final byte[] END_OF_DATA = new byte[0];
+
+    private CatalogLoader() {
+    }
+
+    public static void main(String[] args) {
+        List<String> opts = Arrays.asList(args);
+        if (args.length < 1 || args[0].startsWith("--")) {
+            System.err.println("Uso: CatalogLoader <BooksDatasetClean.csv> [--replace]");
+            System.exit(2);
+        }
+        Path csv = Paths.get(args[0]);
+        boolean replace = opts.contains("--replace");
+        if (!Files.isRegularFile(csv)) {
+            System.err.println("[ERRORE] File non trovato: " + csv.toAbsolutePath());
+            System.exit(2);
+        }
+
+        try {
+            load(csv, replace);
+        } catch (Exception e) {
+            System.err.println("[ERRORE] Caricamento annullato: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        } finally {
+            DbManager.shutdown();
+        }
+    }
+
+    static void load(Path csv, boolean replace) throws SQLException, IOException, InterruptedException {
+        try (Connection conn = DbManager.getConnection()) {
+            conn.setAutoCommit(false);
+            try (Statement st = conn.createStatement()) {
+                st.execute("SET LOCAL maintenance_work_mem = '" + ServerConfig.LOADER_MAINTENANCE_WORK_MEM + "'");
+
+                int firstId = 1;
+                if (replace) {
+                    System.out.println("[..] Svuoto libri (e le tabelle collegate)");
+                    st.execute("TRUNCATE libri CASCADE");
+                } else {
+                    try (ResultSet rs = st.executeQuery("SELECT COALESCE(MAX(id), 0) + 1 FROM libri")) {
+                        rs.next();
+                        firstId = rs.getInt(1);
+                    }
+                }
+
+                Map<String, String> indexes = deferIndexes(st, csv, replace)
+                        ? secondaryIndexes(st) : Map.of();
+                for (String name : indexes.keySet()) {
+                    st.execute("DROP INDEX " + name);
+                }
+                if (!indexes.isEmpty()) {
+                    System.out.println("[..] Indici rinviati a fine caricamento: " + indexes.keySet());
+                }
+
+                long t0 = System.nanoTime();
+                long rows = copy(conn, csv, firstId, replace);
+                long t1 = System.nanoTime();
+                System.out.printf("[OK] %d libri copiati in %.1f s (%.0f righe/s)%n",
+                        rows, (t1 - t0) / 1e9, rows / ((t1 - t0) / 1e9));
+
+                for (Map.Entry<String, String> e : indexes.entrySet()) {
+                    long i0 = System.nanoTime();
+                    st.execute(e.getValue());
+                    System.out.printf("[OK] Indice %s ricreato in %.1f s%n", e.getKey(), (System.nanoTime() - i0) / 1e9);
+                }
+                conn.commit();
+                System.out.printf("[OK] Caricamento completato in %.1f s%n", (System.nanoTime() - t0) / 1e9);
+            } catch (SQLException | IOException | InterruptedException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+
+            // statistiche aggiornate per il planner (fuori dalla transazione)
+            try (Statement st = conn.createStatement()) {
+                st.execute("ANALYZE libri");
+            }
+        }
+    }
+
+    /**
+     * true se conviene ricreare gli indici dopo il COPY invece di aggiornarli:
+     * con --replace o se il CSV è almeno LOADER_DEFER_INDEX_RATIO volte la
+     * tabella (stima grezza delle righe aggiunte rispetto a quelle presenti).
+     */
+    private static boolean deferIndexes(Statement st, Path csv, boolean replace) throws SQLException, IOException {
+        if (replace) return true;
+        try (ResultSet rs = st.executeQuery("SELECT pg_relation_size('libri')")) {
+            rs.next();
+            return Files.size(csv) >= ServerConfig.LOADER_DEFER_INDEX_RATIO * rs.getLong(1);
+        }
+    }
+
+    /** Indici di libri non legati a vincoli (PK, UNIQUE): nome -> CREATE INDEX. */
+    private static Map<String, String> secondaryIndexes(Statement st) throws SQLException {
+        String sql = """
+                SELECT quote_ident(n.nspname) || '.' || quote_ident(i.relname), pg_get_indexdef(i.oid)
+                FROM pg_index x
+                JOIN pg_class i ON i.oid = x.indexrelid
+                JOIN pg_namespace n ON n.oid = i.relnamespace
+                WHERE x.indrelid = 'libri'::regclass
+                  AND NOT EXISTS (SELECT 1 FROM pg_constraint c WHERE c.conindid = x.indexrelid)
+                ORDER BY i.relname
+                """;
+        Map<String, String> out = new LinkedHashMap<>();
+        try (ResultSet rs = st.executeQuery(sql)) {
+            while (rs.next()) out.put(rs.getString(1), rs.getString(2));
+        }
+        return out;
+    }
+
+    /**
+     * Legge il CSV su un thread a parte e invia i blocchi codificati con COPY.
+     *
+     * @return righe caricate
+     */
+    private static long copy(Connection conn, Path csv, int firstId, boolean freeze)
+            throws SQLException, IOException, InterruptedException {
+        BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(ServerConfig.LOADER_QUEUE_CHUNKS);
+        Throwable[] readerError = new Throwable[1];
+
+        Thread reader = new Thread(() -> {
+            try (BooksCsvReader r = new BooksCsvReader(csv)) {
+                CopyEncoder enc = new CopyEncoder((buf, len) -> put(chunks, Arrays.copyOf(buf, len)));
+                int id = firstId;
+                while (r.next()) {
+                    enc.add(id++).add(r.titolo).add(r.autori).add(r.anno).add(r.editore).add(r.categoria);
+                    enc.endRow();
+                }
+                enc.flush();
+            } catch (Throwable t) {
+                readerError[0] = t;
+            } finally {
+                put(chunks, END_OF_DATA);
+            }
+        }, "CatalogLoader-reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        CopyManager copy = conn.unwrap(PGConnection.class).getCopyAPI();
+        CopyIn in = copy.copyIn(freeze ? COPY_SQL + " WITH (FREEZE)" : COPY_SQL);
+        long sent = 0;
+        long lastReport = System.nanoTime();
+        try {
+            for (byte[] chunk = chunks.take(); chunk != END_OF_DATA; chunk = chunks.take()) {
+                in.writeToCopy(chunk, 0, chunk.length);
+                sent += chunk.length;
+                if (System.nanoTime() - lastReport > 5_000_000_000L) {
+                    System.out.printf("[..] %d MB inviati%n", sent >> 20);
+                    lastReport = System.nanoTime();
+                }
+            }
+            reader.join();
+            if (readerError[0] != null) {
+                throw new IOException("Lettura del CSV fallita: " + readerError[0].getMessage(), readerError[0]);
+            }
+            return in.endCopy();
+        } finally {
+            if (in.isActive()) in.cancelCopy();
+            reader.interrupt();
+        }
+    }
+
+    /** put() che non lascia il thread lettore bloccato se quello che invia si è fermato. */
+    private static void put(BlockingQueue<byte[]> q, byte[] chunk) {
+        try {
+            q.put(chunk);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Caricamento interrotto", e);
+        }
+    }
+}
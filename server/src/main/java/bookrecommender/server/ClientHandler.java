@@ -2,6 +2,7 @@ package bookrecommender.server;
 
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.sql.SQLException;
 import java.util.*;
 import java.util.stream.Collectors;
@@ -14,9 +15,19 @@ import java.util.stream.Collectors;
  *  PING
  *  QUIT
  *
+ *  SEARCH:dimensione;cursore;query             (query strutturata, vedi SearchQuery;
+ *                                               es. author:eco year:1980..1989)
  *  SEARCH_TITLE:query
  *  SEARCH_AUTHOR:autore
  *  SEARCH_AUTHOR_YEAR:autore;anno
+ *  SEARCH_PAGE:tipo;dimensione;cursore;query   (tipo = TITLE | AUTHOR | AUTHOR_YEAR,
+ *                                               cursore vuoto = prima pagina)
+ *  SEARCH_RANKED:k;query                       (i k più pertinenti, k vuoto = default)
+ *  SEARCH_FUZZY:k;query                        (come SEARCH_RANKED, tollera errori di battitura)
+ *  SEARCH_FACETS:tipo;k;filtri;query          (tipo = TITLE | AUTHOR, filtri = categoria=..|editore=..|decennio=1990)
+ *  SUGGEST_PREFIX:n;prefisso                   (completamenti: righe T;titolo / A;autore)
+ *  GET_BOOK:id
+ *  GET_BOOKS:id1,id2,id3                       (più libri in una richiesta, dalla cache in memoria)
  *
  *  LIST_LIBRARIES:userid
  *  SAVE_LIBRARY:userid;nome;id1,id2,id3
@@ -29,11 +40,54 @@ import java.util.stream.Collectors;
  *
  *  LOGIN:userid;passwordHash
  *  REGISTER:userid;passwordHash;nome;cognome;codiceFiscale;email
+ *
+ *  CACHE_STATS                                 (contatori di SearchCache e BookCache)
+ *
+ * Un comando preceduto da "NOCACHE " (es. "NOCACHE SEARCH_PAGE:...") non
+ * usa la cache dei risultati: utile per misure e verifiche.
+ *
+ * Le risposte sono una riga "OK ..." / "ERR ..." oppure, per ricerche,
+ * librerie e statistiche, un'intestazione "OK ..." seguita da righe di
+ * dati e chiusa da "END". Il protocollo ammette il pipelining: si possono
+ * inviare più comandi senza attendere le risposte, che arrivano nello
+ * stesso ordine.
  */
 public class ClientHandler implements Runnable {
 
+    /** Prima riga inviata a ogni client appena connesso. */
+    static final String WELCOME = "OK Benvenuto nel BookRecommenderServer\n";
+
+    /** Tabella dei comandi: per aggiungerne uno basta registrarlo qui. */
+    private static final CommandRegistry COMMANDS = new CommandRegistry()
+            .registerBare("PING", ClientHandler::handlePing)
+            .registerBare("QUIT", ClientHandler::handleQuit)
+            .register("SEARCH", ClientHandler::handleSearch)
+            .register("SEARCH_TITLE", ClientHandler::handleSearchTitle)
+            .register("SEARCH_AUTHOR", ClientHandler::handleSearchAuthor)
+            .register("SEARCH_AUTHOR_YEAR", ClientHandler::handleSearchAuthorYear)
+            .register("SEARCH_PAGE", ClientHandler::handleSearchPage)
+            .register("SEARCH_RANKED", ClientHandler::handleSearchRanked)
+            .register("SEARCH_FUZZY", ClientHandler::handleSearchFuzzy)
+            .register("SEARCH_FACETS", ClientHandler::handleSearchFacets)
+            .register("SUGGEST_PREFIX", ClientHandler::handleSuggestPrefix)
+            .register("GET_BOOK", ClientHandler::handleGetBook)
+            .register("GET_BOOKS", ClientHandler::handleGetBooks)
+            .register("LIST_LIBRARIES", ClientHandler::handleListLibraries)
+            .register("SAVE_LIBRARY", ClientHandler::handleSaveLibrary)
+            .register("ADD_REVIEW", ClientHandler::handleAddReview)
+            .register("ADD_SUGGESTION", ClientHandler::handleAddSuggestion)
+            .register("GET_REVIEW_STATS", ClientHandler::handleGetReviewStats)
+            .register("GET_SUGGESTIONS_STATS", ClientHandler::handleGetSuggestionsStats)
+            .register("LOGIN", ClientHandler::handleLogin)
+            .register("REGISTER", ClientHandler::handleRegister)
+            .registerBare("CACHE_STATS", ClientHandler::handleCacheStats);
+
+    /** Prefisso che fa saltare SearchCache al comando che segue. */
+    private static final String NO_CACHE_PREFIX = "NOCACHE ";
+
     private final Socket socket;
     private final int clientId;
+    private boolean quitRequested = false;
 
     private final LibriDao libriDao       = new LibriDao();
     private final UtentiDao utentiDao     = new UtentiDao();
@@ -46,9 +100,22 @@ public class ClientHandler implements Runnable {
         this.clientId = clientId;
     }
 
+    /**
+     * Handler senza socket proprio: usato dal NioServer, che legge e scrive
+     * sul canale in autonomia e chiama solo processLine().
+     */
+    ClientHandler(int clientId) {
+        this(null, clientId);
+    }
+
     @Override
     public void run() {
-        System.out.println("[Client " + clientId + "] Connesso da " + socket.getRemoteSocketAddress());
+        ServerLog.info("[Client " + clientId + "] Connesso da " + socket.getRemoteSocketAddress());
+
+        try {
+            // le connessioni dei client sono persistenti: libera il thread se restano inattive
+            socket.setSoTimeout(ServerConfig.SERVER_IDLE_TIMEOUT_MS);
+        } catch (IOException ignored) {}
 
         try (
                 BufferedReader in = new BufferedReader(
@@ -56,91 +123,77 @@ public class ClientHandler implements Runnable {
                 BufferedWriter out = new BufferedWriter(
                         new OutputStreamWriter(socket.getOutputStream(), "UTF-8"))
         ) {
-            out.write("OK Benvenuto nel BookRecommenderServer\n");
+            out.write(WELCOME);
             out.flush();
 
+            // Pipelining: il client può inviare più comandi di fila senza
+            // aspettare le risposte. Si eseguono in ordine e si fa flush solo
+            // quando non ci sono altri comandi già arrivati nel buffer.
             String line;
             while ((line = in.readLine()) != null) {
-                String raw = line.trim();
-                if (raw.isEmpty()) continue;
-
-                System.out.println("[Client " + clientId + "] Comando: " + raw);
-
-                if (raw.equalsIgnoreCase("PING")) {
-                    out.write("PONG\n");
-                    out.flush();
-                    continue;
-                }
-                if (raw.equalsIgnoreCase("QUIT")) {
-                    out.write("BYE\n");
-                    out.flush();
-                    break;
-                }
-
-                String upper = raw.toUpperCase(Locale.ITALIAN);
-
-                try {
-                    if (upper.startsWith("SEARCH_TITLE:")) {
-                        String query = raw.substring("SEARCH_TITLE:".length()).trim();
-                        handleSearchTitle(query, out);
-
-                    } else if (upper.startsWith("SEARCH_AUTHOR_YEAR:")) {
-                        String payload = raw.substring("SEARCH_AUTHOR_YEAR:".length()).trim();
-                        handleSearchAuthorYear(payload, out);
-
-                    } else if (upper.startsWith("SEARCH_AUTHOR:")) {
-                        String author = raw.substring("SEARCH_AUTHOR:".length()).trim();
-                        handleSearchAuthor(author, out);
-
-                    } else if (upper.startsWith("LIST_LIBRARIES:")) {
-                        String userid = raw.substring("LIST_LIBRARIES:".length()).trim();
-                        handleListLibraries(userid, out);
-
-                    } else if (upper.startsWith("SAVE_LIBRARY:")) {
-                        String payload = raw.substring("SAVE_LIBRARY:".length()).trim();
-                        handleSaveLibrary(payload, out);
-
-                    } else if (upper.startsWith("ADD_REVIEW:")) {
-                        String payload = raw.substring("ADD_REVIEW:".length()).trim();
-                        handleAddReview(payload, out);
+                if (!processLine(line, out)) break;
+                if (!in.ready()) out.flush();
+            }
+            out.flush();
 
-                    } else if (upper.startsWith("ADD_SUGGESTION:")) {
-                        String payload = raw.substring("ADD_SUGGESTION:".length()).trim();
-                        handleAddSuggestion(payload, out);
+        } catch (SocketTimeoutException e) {
+            ServerLog.info("[Client " + clientId + "] Inattivo da troppo tempo, chiudo la sessione.");
+        } catch (IOException e) {
+            ServerLog.warn("[Client " + clientId + "] Errore I/O: " + e.getMessage());
+        } finally {
+            try { socket.close(); } catch (IOException ignored) {}
+            ServerLog.info("[Client " + clientId + "] Disconnesso.");
+        }
+    }
 
-                    } else if (upper.startsWith("GET_REVIEW_STATS:")) {
-                        String payload = raw.substring("GET_REVIEW_STATS:".length()).trim();
-                        handleGetReviewStats(payload, out);
+    /**
+     * Esegue una singola riga di protocollo scrivendo la risposta su out.
+     * Usato sia dalla modalità a thread (run) sia dal NioServer.
+     * Non fa flush: decide il chiamante, così le risposte a comandi
+     * in pipeline partono insieme.
+     *
+     * @return false se il client ha chiesto QUIT e la sessione va chiusa
+     */
+    boolean processLine(String line, BufferedWriter out) throws IOException {
+        String raw = line.trim();
+        if (raw.isEmpty()) return true;
+
+        ServerLog.command(clientId, raw);
+
+        boolean noCache = raw.regionMatches(true, 0, NO_CACHE_PREFIX, 0, NO_CACHE_PREFIX.length());
+        if (noCache) raw = raw.substring(NO_CACHE_PREFIX.length()).trim();
+
+        CommandRegistry.Parsed cmd = COMMANDS.parse(raw);
+        if (cmd == null) {
+            out.write("ERR Comando non riconosciuto.\n");
+            return true;
+        }
 
-                    } else if (upper.startsWith("GET_SUGGESTIONS_STATS:")) {
-                        String payload = raw.substring("GET_SUGGESTIONS_STATS:".length()).trim();
-                        handleGetSuggestionsStats(payload, out);
+        libriDao.setCacheEnabled(!noCache);
+        try {
+            cmd.command.handler.handle(this, cmd.payload, out);
+        } catch (Exception e) {
+            ServerLog.error("[Client " + clientId + "] Errore comando: " + e.getMessage());
+            out.write("ERR Errore interno\n");
+        } finally {
+            libriDao.setCacheEnabled(true);
+        }
+        return !quitRequested;
+    }
 
-                    } else if (upper.startsWith("LOGIN:")) {
-                        String payload = raw.substring("LOGIN:".length()).trim();
-                        handleLogin(payload, out);
+    // ==== BASE ====
 
-                    } else if (upper.startsWith("REGISTER:")) {
-                        String payload = raw.substring("REGISTER:".length()).trim();
-                        handleRegister(payload, out);
+    private void handlePing(String payload, BufferedWriter out) throws IOException {
+        out.write("PONG\n");
+    }
 
-                    } else {
-                        out.write("ERR Comando non riconosciuto.\n");
-                        out.flush();
-                    }
-                } catch (Exception e) {
-                    System.err.println("[Client " + clientId + "] Errore comando: " + e.getMessage());
-                    out.write("ERR Errore interno\n");
-                    out.flush();
-                }
-            }
+    private void handleQuit(String payload, BufferedWriter out) throws IOException {
+        out.write("BYE\n");
+        quitRequested = true;
+    }
 
-        } catch (IOException e) {
-            System.err.println("[Client " + clientId + "] Errore I/O: " + e.getMessage());
-        } finally {
-            try { socket.close(); } catch (IOException ignored) {}
-            System.out.println("[Client " + clientId + "] Disconnesso.");
-        }
+    private void handleCacheStats(String payload, BufferedWriter out) throws IOException {
+        out.write("OK CACHE_STATS " + SearchCache.shared().stats() + " " + BookCache.shared().stats() + "\n");
     }
 
     // ==== SEARCH ====
@@ -148,26 +201,23 @@ public class ClientHandler implements Runnable {
     private void handleSearchTitle(String query, BufferedWriter out) throws IOException, SQLException {
         if (query.isEmpty()) {
             out.write("ERR Query di ricerca vuota.\n");
-            out.flush();
             return;
         }
-        writeBookResults(libriDao.searchByTitle(query), out);
+        streamBookResults(sink -> libriDao.searchByTitle(query, sink), out);
     }
 
     private void handleSearchAuthor(String author, BufferedWriter out) throws IOException, SQLException {
         if (author.isEmpty()) {
             out.write("ERR Autore vuoto.\n");
-            out.flush();
             return;
         }
-        writeBookResults(libriDao.searchByAuthor(author), out);
+        streamBookResults(sink -> libriDao.searchByAuthor(author, sink), out);
     }
 
     private void handleSearchAuthorYear(String payload, BufferedWriter out) throws IOException, SQLException {
         String[] parts = payload.split(";", 2);
         if (parts.length < 2) {
             out.write("ERR Formato per SEARCH_AUTHOR_YEAR non valido. Usa autore;anno\n");
-            out.flush();
             return;
         }
         String author = parts[0].trim();
@@ -177,24 +227,453 @@ public class ClientHandler implements Runnable {
             anno = Integer.parseInt(annoStr);
         } catch (NumberFormatException nfe) {
             out.write("ERR Anno non valido\n");
-            out.flush();
             return;
         }
 
-        writeBookResults(libriDao.searchByAuthorAndYear(author, anno), out);
+        streamBookResults(sink -> libriDao.searchByAuthorAndYear(author, anno, sink), out);
+    }
+
+    /**
+     * Ricerca per rilevanza: SEARCH_RANKED:k;query. Stesso formato di risposta
+     * delle altre ricerche, ma le righe BOOK arrivano dalla più pertinente.
+     */
+    private void handleSearchRanked(String payload, BufferedWriter out) throws IOException, SQLException {
+        handleTopK("SEARCH_RANKED", payload, out, (query, k) ->
+                sink -> libriDao.searchRanked(query, k, sink));
+    }
+
+    /** Ricerca tollerante agli errori: SEARCH_FUZZY:k;query, stesso formato di SEARCH_RANKED. */
+    private void handleSearchFuzzy(String payload, BufferedWriter out) throws IOException, SQLException {
+        handleTopK("SEARCH_FUZZY", payload, out, (query, k) ->
+                sink -> libriDao.searchFuzzy(query, k, sink));
+    }
+
+    /** Costruisce la ricerca per una query e un numero di risultati già validati. */
+    @FunctionalInterface
+    private interface TopKSearch {
+        BookSearch of(String query, int k);
     }
 
-    private void writeBookResults(List<String[]> rows, BufferedWriter out) throws IOException {
-        out.write("OK SEARCH_RESULTS " + rows.size() + "\n");
-        for (String[] row : rows) {
-            String id = escape(row[0]);
-            String titolo = escape(row[1]);
-            String autori = escape(row[2]);
-            String anno = escape(row[3]);
-            out.write("BOOK;" + id + ";" + titolo + ";" + autori + ";" + anno + "\n");
+    /** Parte comune dei comandi "k;query" che restituiscono i k risultati migliori. */
+    private void handleTopK(String verb, String payload, BufferedWriter out, TopKSearch search)
+            throws IOException, SQLException {
+        String[] parts = payload.split(";", 2);
+        if (parts.length < 2) {
+            out.write("ERR Formato per " + verb + " non valido. Usa k;query\n");
+            return;
+        }
+        String kStr = parts[0].trim();
+        String query = parts[1].trim();
+
+        int k;
+        try {
+            k = kStr.isEmpty() ? ServerConfig.SEARCH_RANKED_DEFAULT_K : Integer.parseInt(kStr);
+        } catch (NumberFormatException nfe) {
+            out.write("ERR " + verb + " k non valido\n");
+            return;
+        }
+        if (k < 1 || k > ServerConfig.SEARCH_MAX_PAGE_SIZE) {
+            out.write("ERR " + verb + " k fuori intervallo (1-" + ServerConfig.SEARCH_MAX_PAGE_SIZE + ")\n");
+            return;
+        }
+        if (query.isEmpty()) {
+            out.write("ERR Query di ricerca vuota.\n");
+            return;
+        }
+
+        streamBookResults(search.of(query, k), out);
+    }
+
+    /**
+     * Ricerca a faccette: SEARCH_FACETS:tipo;k;filtri;query.
+     *
+     *   OK SEARCH_RESULTS FACETS
+     *   BOOK;id;titolo;autori;anno;editore;categoria   (i primi k per id)
+     *   FACET;categoria|editore|decennio;valore;conteggio
+     *   COUNT;righe BOOK inviate
+     *   TOTAL;libri trovati dopo i filtri
+     *   END
+     *
+     * I filtri (separati da '|') restringono il risultato a un valore di
+     * faccetta, per il drill-down senza altre query. I valori, nelle righe
+     * FACET e nei filtri, sono codificati con FacetedResult.encodeValue
+     * (%XX per '%', ';', '|', '=' e gli a capo). Richiede l'indice in memoria.
+     */
+    private void handleSearchFacets(String payload, BufferedWriter out) throws IOException {
+        String[] parts = payload.split(";", 4);
+        if (parts.length < 4) {
+            out.write("ERR Formato per SEARCH_FACETS non valido. Usa tipo;k;filtri;query\n");
+            return;
+        }
+        String tipo = parts[0].trim().toUpperCase(Locale.ROOT);
+        if (!tipo.equals("TITLE") && !tipo.equals("AUTHOR")) {
+            out.write("ERR SEARCH_FACETS tipo non valido (TITLE, AUTHOR)\n");
+            return;
+        }
+        int k;
+        try {
+            k = parts[1].trim().isEmpty() ? ServerConfig.SEARCH_DEFAULT_PAGE_SIZE : Integer.parseInt(parts[1].trim());
+        } catch (NumberFormatException nfe) {
+            out.write("ERR SEARCH_FACETS k non valido\n");
+            return;
+        }
+        if (k < 0 || k > ServerConfig.SEARCH_MAX_PAGE_SIZE) {
+            out.write("ERR SEARCH_FACETS k fuori intervallo (0-" + ServerConfig.SEARCH_MAX_PAGE_SIZE + ")\n");
+            return;
+        }
+
+        String categoria = null, editore = null;
+        Integer decennio = null;
+        for (String f : parts[2].split("\\|")) {
+            if (f.isBlank()) continue;
+            int eq = f.indexOf('=');
+            if (eq < 0) {
+                out.write("ERR SEARCH_FACETS filtro non valido: " + escape(f) + "\n");
+                return;
+            }
+            String key = f.substring(0, eq).trim().toLowerCase(Locale.ROOT);
+            String value = FacetedResult.decodeValue(f.substring(eq + 1));
+            switch (key) {
+                case FacetedResult.CATEGORIA: categoria = value; break;
+                case FacetedResult.EDITORE: editore = value; break;
+                case FacetedResult.DECENNIO:
+                    try {
+                        decennio = Integer.parseInt(value.trim());
+                    } catch (NumberFormatException nfe) {
+                        out.write("ERR SEARCH_FACETS decennio non valido\n");
+                        return;
+                    }
+                    break;
+                default:
+                    out.write("ERR SEARCH_FACETS faccetta sconosciuta: " + escape(key) + "\n");
+                    return;
+            }
+        }
+
+        String query = parts[3].trim();
+        if (query.isEmpty()) {
+            out.write("ERR Query di ricerca vuota.\n");
+            return;
+        }
+        SearchIndex idx = SearchIndex.current();
+        if (idx == null) {
+            out.write("ERR SEARCH_FACETS non disponibile: indice di ricerca non pronto\n");
+            return;
+        }
+
+        FacetedResult r = idx.searchFaceted(tipo.equals("AUTHOR"), query,
+                new FacetedResult.Filter(categoria, editore, decennio), k, ServerConfig.SEARCH_FACET_VALUES);
+
+        out.write("OK SEARCH_RESULTS FACETS\n");
+        for (FacetedResult.Hit h : r.hits) {
+            out.write("BOOK;" + h.id + ";" + escape(h.titolo) + ";" + escape(h.autori) + ";"
+                    + (h.anno == null ? "" : h.anno) + ";" + escape(h.editore) + ";" + escape(h.categoria) + "\n");
+        }
+        for (Map.Entry<String, List<FacetedResult.Value>> e : r.facets.entrySet()) {
+            for (FacetedResult.Value v : e.getValue()) {
+                out.write("FACET;" + e.getKey() + ";" + FacetedResult.encodeValue(v.value) + ";" + v.count + "\n");
+            }
+        }
+        out.write("COUNT;" + r.hits.size() + "\n");
+        out.write("TOTAL;" + r.total + "\n");
+        out.write("END\n");
+    }
+
+    /**
+     * Completamenti mentre l'utente scrive: SUGGEST_PREFIX:n;prefisso.
+     *
+     *   OK COMPLETIONS
+     *   T;titolo | A;autore     (al massimo n, dal più popolare)
+     *   END
+     *
+     * n va da 1 a SuggestIndex.MAX_N. Serve l'indice in memoria; se non è
+     * disponibile la lista è vuota (meglio nessun suggerimento che una
+     * query sul DB a ogni tasto).
+     */
+    private void handleSuggestPrefix(String payload, BufferedWriter out) throws IOException {
+        String[] parts = payload.split(";", 2);
+        if (parts.length < 2) {
+            out.write("ERR Formato per SUGGEST_PREFIX non valido. Usa n;prefisso\n");
+            return;
+        }
+        int n;
+        try {
+            n = parts[0].trim().isEmpty() ? ServerConfig.SUGGEST_DEFAULT_N : Integer.parseInt(parts[0].trim());
+        } catch (NumberFormatException nfe) {
+            out.write("ERR SUGGEST_PREFIX n non valido\n");
+            return;
+        }
+        if (n < 1 || n > SuggestIndex.MAX_N) {
+            out.write("ERR SUGGEST_PREFIX n fuori intervallo (1-" + SuggestIndex.MAX_N + ")\n");
+            return;
+        }
+
+        out.write("OK COMPLETIONS\n");
+        SearchIndex idx = SearchIndex.current();
+        if (idx != null) {
+            for (SuggestIndex.Completion c : idx.suggest(parts[1], n)) {
+                out.write(c.author ? "A;" : "T;");
+                writeEscaped(c.text, out);
+                out.write('\n');
+            }
+        }
+        out.write("END\n");
+    }
+
+    /**
+     * Ricerca con il linguaggio di interrogazione: SEARCH:dimensione;cursore;query.
+     * Risposta e cursori come SEARCH_PAGE; una query non valida dà
+     * "ERR SEARCH <motivo>".
+     */
+    private void handleSearch(String payload, BufferedWriter out) throws IOException, SQLException {
+        String[] parts = payload.split(";", 3);
+        if (parts.length < 3) {
+            out.write("ERR Formato per SEARCH non valido. Usa dimensione;cursore;query\n");
+            return;
+        }
+        int pageSize = parsePageSize("SEARCH", parts[0].trim(), out);
+        if (pageSize < 0) return;
+        long afterId = parseCursor("SEARCH", parts[1].trim(), out);
+        if (afterId == BAD_CURSOR) return;
+
+        SearchQuery query;
+        try {
+            query = SearchQuery.parse(parts[2]);
+        } catch (IllegalArgumentException iae) {
+            out.write("ERR SEARCH " + escape(iae.getMessage()) + "\n");
+            return;
+        }
+        streamBookResults(sink -> libriDao.search(query, afterId, pageSize + 1, sink), pageSize, out);
+    }
+
+    /** Valore di ritorno di parseCursor quando il cursore non è valido (ERR già inviato). */
+    private static final long BAD_CURSOR = Long.MAX_VALUE;
+
+    /** Dimensione di pagina (vuota = default); -1 se non valida, con ERR già inviato. */
+    private static int parsePageSize(String verb, String sizeStr, BufferedWriter out) throws IOException {
+        int pageSize;
+        try {
+            pageSize = sizeStr.isEmpty() ? ServerConfig.SEARCH_DEFAULT_PAGE_SIZE : Integer.parseInt(sizeStr);
+        } catch (NumberFormatException nfe) {
+            out.write("ERR " + verb + " dimensione non valida\n");
+            return -1;
+        }
+        if (pageSize < 1 || pageSize > ServerConfig.SEARCH_MAX_PAGE_SIZE) {
+            out.write("ERR " + verb + " dimensione fuori intervallo (1-"
+                    + ServerConfig.SEARCH_MAX_PAGE_SIZE + ")\n");
+            return -1;
+        }
+        return pageSize;
+    }
+
+    /** Ultimo id dal cursore (vuoto = prima pagina); BAD_CURSOR con ERR già inviato. */
+    private static long parseCursor(String verb, String cursor, BufferedWriter out) throws IOException {
+        try {
+            return cursor.isEmpty() ? LibriDao.FIRST_PAGE : SearchCursor.decode(cursor);
+        } catch (IllegalArgumentException iae) {
+            out.write("ERR " + verb + " cursore non valido\n");
+            return BAD_CURSOR;
+        }
+    }
+
+    /**
+     * Ricerca paginata con cursore: SEARCH_PAGE:tipo;dimensione;cursore;query.
+     * Per AUTHOR_YEAR la query è "autore;anno". Se ci sono altre righe, prima
+     * di END arriva "NEXT;token" da rimandare come cursore per la pagina dopo.
+     */
+    private void handleSearchPage(String payload, BufferedWriter out) throws IOException, SQLException {
+        String[] parts = payload.split(";", 4);
+        if (parts.length < 4) {
+            out.write("ERR SEARCH_PAGE formato non valido. Usa tipo;dimensione;cursore;query\n");
+            return;
+        }
+
+        String tipo = parts[0].trim().toUpperCase(Locale.ROOT);
+        String sizeStr = parts[1].trim();
+        String cursor = parts[2].trim();
+        String query = parts[3].trim();
+
+        int pageSize = parsePageSize("SEARCH_PAGE", sizeStr, out);
+        if (pageSize < 0) return;
+        long afterId = parseCursor("SEARCH_PAGE", cursor, out);
+        if (afterId == BAD_CURSOR) return;
+
+        if (query.isEmpty()) {
+            out.write("ERR SEARCH_PAGE query vuota\n");
+            return;
+        }
+
+        // si chiede una riga in più per sapere se esiste una pagina successiva
+        int fetch = pageSize + 1;
+        switch (tipo) {
+            case "TITLE":
+                streamBookResults(sink -> libriDao.searchByTitle(query, afterId, fetch, sink), pageSize, out);
+                break;
+            case "AUTHOR":
+                streamBookResults(sink -> libriDao.searchByAuthor(query, afterId, fetch, sink), pageSize, out);
+                break;
+            case "AUTHOR_YEAR": {
+                String[] ay = query.split(";", 2);
+                int anno;
+                try {
+                    anno = Integer.parseInt(ay.length < 2 ? "" : ay[1].trim());
+                } catch (NumberFormatException nfe) {
+                    out.write("ERR Anno non valido\n");
+                    return;
+                }
+                String author = ay[0].trim();
+                streamBookResults(sink -> libriDao.searchByAuthorAndYear(author, anno, afterId, fetch, sink),
+                        pageSize, out);
+                break;
+            }
+            default:
+                out.write("ERR SEARCH_PAGE tipo non valido (TITLE, AUTHOR, AUTHOR_YEAR)\n");
+        }
+    }
+
+    /** Ricerca che consegna le righe a un BookSink e restituisce quante ne ha prodotte. */
+    @FunctionalInterface
+    private interface BookSearch {
+        int run(LibriDao.BookSink sink) throws SQLException, IOException;
+    }
+
+    private void streamBookResults(BookSearch search, BufferedWriter out) throws IOException, SQLException {
+        streamBookResults(search, Integer.MAX_VALUE, out);
+    }
+
+    /**
+     * Invia i risultati di una ricerca man mano che arrivano dal DB:
+     *
+     *   OK SEARCH_RESULTS STREAM
+     *   BOOK;id;titolo;autori;anno      (zero o più, al massimo limit)
+     *   COUNT;n
+     *   NEXT;cursore                    (solo se ci sono altre righe)
+     *   END
+     *
+     * Il numero di righe, non noto in anticipo, arriva in coda (COUNT).
+     * Se la ricerca fallisce a metà (DB, indice, cache o scrittura di una
+     * riga), dentro il blocco compare una riga ERR seguita da END, così il
+     * client resta allineato con le risposte successive.
+     */
+    private void streamBookResults(BookSearch search, int limit, BufferedWriter out)
+            throws IOException, SQLException {
+        BookRowWriter rows = new BookRowWriter(out, limit);
+        try {
+            search.run(rows);
+        } catch (Exception e) {
+            if (!rows.headerSent) throw e; // nulla inviato: risposta ERR normale
+            ServerLog.error("[Client " + clientId + "] Errore durante la ricerca: " + e);
+            out.write("ERR Errore interno\n");
+            out.write("END\n");
+            return;
+        }
+        rows.sendHeader();
+        out.write("COUNT;" + rows.written + "\n");
+        if (rows.more) {
+            out.write("NEXT;" + SearchCursor.encode(rows.lastId) + "\n");
+        }
+        out.write("END\n");
+    }
+
+    /** Codifica ogni riga direttamente sul writer, senza stringhe intermedie per riga. */
+    private static final class BookRowWriter implements LibriDao.BookSink {
+        private final BufferedWriter out;
+        private final int limit;
+        private boolean headerSent = false;
+        private int written = 0;
+        private long lastId;
+        private boolean more = false;
+
+        BookRowWriter(BufferedWriter out, int limit) {
+            this.out = out;
+            this.limit = limit;
+        }
+
+        void sendHeader() throws IOException {
+            if (headerSent) return;
+            out.write("OK SEARCH_RESULTS STREAM\n");
+            headerSent = true;
+        }
+
+        @Override
+        public void accept(int id, String titolo, String autori, Integer anno) throws IOException {
+            if (written >= limit) {
+                more = true; // riga di controllo: esiste una pagina successiva
+                return;
+            }
+            sendHeader();
+            out.write("BOOK;");
+            out.write(Integer.toString(id));
+            out.write(';');
+            writeEscaped(titolo, out);
+            out.write(';');
+            writeEscaped(autori, out);
+            out.write(';');
+            if (anno != null) out.write(Integer.toString(anno));
+            out.write('\n');
+            lastId = id;
+
+            // la prima riga e poi un blocco ogni FETCH_SIZE partono subito verso il client
+            if (written++ % LibriDao.FETCH_SIZE == 0) out.flush();
+        }
+    }
+
+    // ==== LIBRI PER ID ====
+
+    /** GET_BOOK:id, stessa risposta di GET_BOOKS con una sola riga. */
+    private void handleGetBook(String payload, BufferedWriter out) throws IOException, SQLException {
+        int id;
+        try {
+            id = Integer.parseInt(payload);
+        } catch (NumberFormatException nfe) {
+            out.write("ERR GET_BOOK id non valido\n");
+            return;
+        }
+        List<BookCache.Book> books = BookCache.shared().getAll(new int[]{id}, libriDao);
+        if (books.isEmpty()) {
+            out.write("ERR GET_BOOK libro non trovato\n");
+            return;
+        }
+        writeBooks(books, out);
+    }
+
+    /**
+     * GET_BOOKS:id1,id2,... risponde
+     *
+     *   OK BOOKS n
+     *   BOOK;id;titolo;autori;anno;editore;categoria   (nell'ordine richiesto)
+     *   END
+     *
+     * Gli id inesistenti vengono saltati: il client confronta gli id ricevuti.
+     */
+    private void handleGetBooks(String payload, BufferedWriter out) throws IOException, SQLException {
+        String[] toks = payload.split(",");
+        int[] ids = new int[toks.length];
+        int n = 0;
+        for (String tok : toks) {
+            tok = tok.trim();
+            if (tok.isEmpty()) continue;
+            try {
+                ids[n++] = Integer.parseInt(tok);
+            } catch (NumberFormatException nfe) {
+                out.write("ERR GET_BOOKS id non valido: " + escape(tok) + "\n");
+                return;
+            }
+        }
+        if (n > ServerConfig.GET_BOOKS_MAX_IDS) {
+            out.write("ERR GET_BOOKS troppi id (massimo " + ServerConfig.GET_BOOKS_MAX_IDS + ")\n");
+            return;
+        }
+        writeBooks(BookCache.shared().getAll(Arrays.copyOf(ids, n), libriDao), out);
+    }
+
+    private void writeBooks(List<BookCache.Book> books, BufferedWriter out) throws IOException {
+        out.write("OK BOOKS " + books.size() + "\n");
+        for (BookCache.Book b : books) {
+            out.write("BOOK;" + b.id + ";" + escape(b.titolo) + ";" + escape(b.autori) + ";"
+                    + (b.anno == null ? "" : b.anno) + ";" + escape(b.editore) + ";" + escape(b.categoria) + "\n");
         }
         out.write("END\n");
-        out.flush();
     }
 
     // ==== LIBRERIE ====
@@ -202,7 +681,6 @@ public class ClientHandler implements Runnable {
     private void handleListLibraries(String userid, BufferedWriter out) throws IOException, SQLException {
         if (userid.isEmpty()) {
             out.write("ERR LIST_LIBRARIES userid mancante\n");
-            out.flush();
             return;
         }
 
@@ -214,14 +692,12 @@ public class ClientHandler implements Runnable {
             out.write("LIB;" + escape(r.nome) + ";" + idsStr + "\n");
         }
         out.write("END\n");
-        out.flush();
     }
 
     private void handleSaveLibrary(String payload, BufferedWriter out) throws IOException, SQLException {
         String[] parts = payload.split(";", 3);
         if (parts.length < 2) {
             out.write("ERR SAVE_LIBRARY formato non valido\n");
-            out.flush();
             return;
         }
 
@@ -231,7 +707,6 @@ public class ClientHandler implements Runnable {
 
         if (userid.isEmpty() || nome.isEmpty()) {
             out.write("ERR SAVE_LIBRARY userid o nome vuoti\n");
-            out.flush();
             return;
         }
 
@@ -248,7 +723,6 @@ public class ClientHandler implements Runnable {
 
         boolean ok = librerieDao.upsertLibrary(userid, nome, ids);
         out.write(ok ? "OK SAVE_LIBRARY\n" : "ERR SAVE_LIBRARY errore DB\n");
-        out.flush();
     }
 
     // ==== VALUTAZIONI ====
@@ -257,7 +731,6 @@ public class ClientHandler implements Runnable {
         String[] parts = payload.split(";", 9);
         if (parts.length < 8) {
             out.write("ERR ADD_REVIEW formato non valido\n");
-            out.flush();
             return;
         }
 
@@ -274,14 +747,12 @@ public class ClientHandler implements Runnable {
             votoFinale   = Integer.parseInt(parts[7].trim());
         } catch (NumberFormatException nfe) {
             out.write("ERR ADD_REVIEW valori numerici non validi\n");
-            out.flush();
             return;
         }
 
         String commento = parts.length == 9 ? parts[8] : "";
         if (commento.length() > 256) {
             out.write("ERR ADD_REVIEW commento troppo lungo\n");
-            out.flush();
             return;
         }
 
@@ -289,7 +760,6 @@ public class ClientHandler implements Runnable {
                 gradevolezza, originalita, edizione, votoFinale, commento);
 
         out.write(ok ? "OK ADD_REVIEW\n" : "ERR ADD_REVIEW\n");
-        out.flush();
     }
 
     private void handleGetReviewStats(String payload, BufferedWriter out) throws IOException, SQLException {
@@ -298,7 +768,6 @@ public class ClientHandler implements Runnable {
             bookId = Integer.parseInt(payload.trim());
         } catch (NumberFormatException nfe) {
             out.write("ERR GET_REVIEW_STATS id non valido\n");
-            out.flush();
             return;
         }
 
@@ -306,7 +775,6 @@ public class ClientHandler implements Runnable {
         if (rs.count == 0) {
             out.write("OK REVIEW_STATS 0\n");
             out.write("END\n");
-            out.flush();
             return;
         }
 
@@ -331,7 +799,6 @@ public class ClientHandler implements Runnable {
         }
         out.write(dist.toString() + "\n");
         out.write("END\n");
-        out.flush();
     }
 
     // ==== SUGGERIMENTI ====
@@ -340,7 +807,6 @@ public class ClientHandler implements Runnable {
         String[] parts = payload.split(";", 3);
         if (parts.length < 3) {
             out.write("ERR ADD_SUGGESTION formato non valido\n");
-            out.flush();
             return;
         }
 
@@ -350,7 +816,6 @@ public class ClientHandler implements Runnable {
             bookId = Integer.parseInt(parts[1].trim());
         } catch (NumberFormatException nfe) {
             out.write("ERR ADD_SUGGESTION idLibro non valido\n");
-            out.flush();
             return;
         }
 
@@ -368,7 +833,6 @@ public class ClientHandler implements Runnable {
 
         boolean ok = consDao.insertSuggestion(userid, bookId, ids);
         out.write(ok ? "OK ADD_SUGGESTION\n" : "ERR ADD_SUGGESTION\n");
-        out.flush();
     }
 
     private void handleGetSuggestionsStats(String payload, BufferedWriter out) throws IOException, SQLException {
@@ -377,7 +841,6 @@ public class ClientHandler implements Runnable {
             bookId = Integer.parseInt(payload.trim());
         } catch (NumberFormatException nfe) {
             out.write("ERR GET_SUGGESTIONS_STATS id non valido\n");
-            out.flush();
             return;
         }
 
@@ -387,7 +850,6 @@ public class ClientHandler implements Runnable {
             out.write("SUG;" + e.getKey() + ";" + e.getValue() + "\n");
         }
         out.write("END\n");
-        out.flush();
     }
 
     // ==== LOGIN / REGISTER ====
@@ -396,7 +858,6 @@ public class ClientHandler implements Runnable {
         String[] parts = payload.split(";", 2);
         if (parts.length < 2) {
             out.write("ERR LOGIN formato non valido\n");
-            out.flush();
             return;
         }
 
@@ -405,14 +866,12 @@ public class ClientHandler implements Runnable {
 
         boolean ok = utentiDao.verificaLogin(userid, passwordHash);
         out.write(ok ? "OK LOGIN\n" : "ERR LOGIN\n");
-        out.flush();
     }
 
     private void handleRegister(String payload, BufferedWriter out) throws IOException, SQLException {
         String[] parts = payload.split(";", 6);
         if (parts.length < 6) {
             out.write("ERR REGISTER dati insufficienti\n");
-            out.flush();
             return;
         }
 
@@ -425,14 +884,12 @@ public class ClientHandler implements Runnable {
 
         if (utentiDao.esisteUserid(userid)) {
             out.write("ERR REGISTER userid esistente\n");
-            out.flush();
             return;
         }
 
         boolean ok = utentiDao.registraNuovoUtente(
                 userid, passwordHash, nome, cognome, codiceFiscale, email);
         out.write(ok ? "OK REGISTER\n" : "ERR REGISTER errore DB\n");
-        out.flush();
     }
 
     // ==== UTIL ====
@@ -441,4 +898,18 @@ public class ClientHandler implements Runnable {
         if (s == null) return "";
         return s.replace("\n"," ").replace("\r"," ").replace(";", ",");
     }
+
+    /** Come escape(), ma scrive direttamente sul writer senza allocare copie. */
+    private static void writeEscaped(String s, Writer out) throws IOException {
+        if (s == null) return;
+        int start = 0;
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c != '\n' && c != '\r' && c != ';') continue;
+            out.write(s, start, i - start);
+            out.write(c == ';' ? ',' : ' ');
+            start = i + 1;
+        }
+        out.write(s, start, s.length() - start);
+    }
 }
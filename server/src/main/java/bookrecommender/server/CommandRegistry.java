@@ -0,0 +1,92 @@
+package bookrecommender.server;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tabella dei comandi del protocollo testuale.
+ *
+ * Ogni comando si registra con il suo verbo ("SEARCH_TITLE", "PING", ...).
+ * Per trovare il comando di una riga si estrae solo il verbo (fino al primo
+ * ':'), lo si porta in maiuscolo e lo si cerca in una HashMap: il costo non
+ * cresce con il numero di comandi e il payload non viene mai copiato in
+ * maiuscolo.
+ */
+public class CommandRegistry {
+
+    /** Implementazione di un comando; riceve il payload già ripulito dagli spazi. */
+    @FunctionalInterface
+    public interface CommandHandler {
+        void handle(ClientHandler session, String payload, BufferedWriter out)
+                throws IOException, SQLException;
+    }
+
+    /** Comando registrato. */
+    public static final class Command {
+        public final String verb;
+        public final boolean hasPayload;
+        public final CommandHandler handler;
+
+        private Command(String verb, boolean hasPayload, CommandHandler handler) {
+            this.verb = verb;
+            this.hasPayload = hasPayload;
+            this.handler = handler;
+        }
+    }
+
+    /** Risultato della decodifica di una riga: comando + payload. */
+    public static final class Parsed {
+        public final Command command;
+        public final String payload;
+
+        private Parsed(Command command, String payload) {
+            this.command = command;
+            this.payload = payload;
+        }
+    }
+
+    private final Map<String, Command> commands = new HashMap<>();
+
+    /** Registra un comando nella forma "VERBO:payload". */
+    public CommandRegistry register(String verb, CommandHandler handler) {
+        return add(verb, true, handler);
+    }
+
+    /** Registra un comando senza payload (es. "PING"). */
+    public CommandRegistry registerBare(String verb, CommandHandler handler) {
+        return add(verb, false, handler);
+    }
+
+    private CommandRegistry add(String verb, boolean hasPayload, CommandHandler handler) {
+        String key = verb.toUpperCase(Locale.ROOT);
+        if (commands.putIfAbsent(key, new Command(key, hasPayload, handler)) != null) {
+            throw new IllegalStateException("Comando già registrato: " + key);
+        }
+        return this;
+    }
+
+    /**
+     * Decodifica una riga già trim-mata. Restituisce null se il verbo non è
+     * registrato o se la forma (con/senza ':') non corrisponde al comando.
+     */
+    public Parsed parse(String raw) {
+        int colon = raw.indexOf(':');
+        String verb = colon < 0 ? raw : raw.substring(0, colon);
+        Command c = commands.get(verb.toUpperCase(Locale.ROOT));
+        if (c == null || c.hasPayload != (colon >= 0)) return null;
+
+        String payload = colon < 0 ? "" : raw.substring(colon + 1).trim();
+        return new Parsed(c, payload);
+    }
+
+    /** Verbi registrati (per diagnostica). */
+    public Set<String> verbs() {
+        return Collections.unmodifiableSet(commands.keySet());
+    }
+}
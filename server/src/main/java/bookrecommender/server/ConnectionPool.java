@@ -0,0 +1,306 @@
+package bookrecommender.server;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool limitato di connessioni JDBC.
+ *
+ * - al massimo {@code max} connessioni fisiche prestate contemporaneamente
+ *   (un Semaphore fa da limite e da coda per chi aspetta)
+ * - le connessioni restituite finiscono in una pila LIFO di inattive,
+ *   così la prossima richiesta riusa la connessione "più calda"
+ * - una connessione rimasta ferma troppo a lungo viene validata con isValid()
+ *   prima di essere riconsegnata
+ * - un thread di manutenzione chiude le inattive oltre l'idle timeout e
+ *   riporta il pool ad almeno {@code min} connessioni aperte
+ *
+ * I DAO non cambiano: ricevono un proxy di Connection il cui close()
+ * restituisce la connessione al pool invece di chiuderla.
+ */
+public class ConnectionPool {
+
+    /** Connessione fisica inattiva con l'istante dell'ultimo utilizzo. */
+    private static final class IdleConn {
+        final Connection physical;
+        final long lastUsedMs;
+
+        IdleConn(Connection physical, long lastUsedMs) {
+            this.physical = physical;
+            this.lastUsedMs = lastUsedMs;
+        }
+    }
+
+    private final String url;
+    private final String user;
+    private final String pass;
+
+    private final int min;
+    private final int max;
+    private final long borrowTimeoutMs;
+    private final long idleTimeoutMs;
+    private final long validateAfterMs;
+    private final int validateTimeoutS;
+
+    private final Semaphore permits;
+    private final ConcurrentLinkedDeque<IdleConn> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger physicalCount = new AtomicInteger();
+    private final ScheduledExecutorService maintenance;
+
+    private volatile boolean closed = false;
+
+    public ConnectionPool(String url, String user, String pass,
+                          int min, int max,
+                          long borrowTimeoutMs, long idleTimeoutMs,
+                          long validateAfterMs, int validateTimeoutS,
+                          long evictIntervalMs) {
+        if (max <= 0 || min < 0 || min > max) {
+            throw new IllegalArgumentException("Dimensioni del pool non valide: min=" + min + " max=" + max);
+        }
+        this.url = url;
+        this.user = user;
+        this.pass = pass;
+        this.min = min;
+        this.max = max;
+        this.borrowTimeoutMs = borrowTimeoutMs;
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.validateAfterMs = validateAfterMs;
+        this.validateTimeoutS = validateTimeoutS;
+        this.permits = new Semaphore(max, true);
+
+        this.maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "DbPool-maintenance");
+            t.setDaemon(true);
+            return t;
+        });
+        this.maintenance.scheduleWithFixedDelay(this::maintain,
+                evictIntervalMs, evictIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Prende in prestito una connessione, aspettando al massimo borrowTimeoutMs.
+     * Il chiamante la restituisce chiamando close() (try-with-resources).
+     */
+    public Connection borrow() throws SQLException {
+        if (closed) throw new SQLException("Pool di connessioni chiuso");
+
+        try {
+            if (!permits.tryAcquire(borrowTimeoutMs, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("Timeout: nessuna connessione libera nel pool dopo "
+                        + borrowTimeoutMs + " ms (attive=" + getActive() + ", max=" + max + ")");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrotto in attesa di una connessione", e);
+        }
+
+        try {
+            return wrap(takePhysical());
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /** Riusa una connessione inattiva valida oppure ne apre una nuova. */
+    private Connection takePhysical() throws SQLException {
+        IdleConn ic;
+        while ((ic = idle.pollFirst()) != null) {
+            long idleFor = System.currentTimeMillis() - ic.lastUsedMs;
+            if (idleFor < validateAfterMs || isAlive(ic.physical)) {
+                return ic.physical;
+            }
+            discard(ic.physical);
+        }
+        return openPhysical();
+    }
+
+    private Connection openPhysical() throws SQLException {
+        Connection c = DriverManager.getConnection(url, user, pass);
+        physicalCount.incrementAndGet();
+        return c;
+    }
+
+    private boolean isAlive(Connection c) {
+        try {
+            return c.isValid(validateTimeoutS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void discard(Connection c) {
+        physicalCount.decrementAndGet();
+        try { c.close(); } catch (SQLException ignored) {}
+    }
+
+    /** Chiamato dal proxy quando il DAO chiude la connessione. */
+    private void giveBack(Connection physical, boolean broken) {
+        try {
+            if (!broken && !closed) {
+                try {
+                    if (!physical.getAutoCommit()) {
+                        physical.rollback();
+                        physical.setAutoCommit(true);
+                    }
+                    physical.clearWarnings();
+                } catch (SQLException e) {
+                    broken = true;
+                }
+            }
+            if (broken || closed || physical.isClosed()) {
+                discard(physical);
+            } else {
+                idle.offerFirst(new IdleConn(physical, System.currentTimeMillis()));
+            }
+        } catch (SQLException e) {
+            discard(physical);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /** Chiude le inattive scadute (tenendone almeno min) e riempie fino a min. */
+    private void maintain() {
+        if (closed) return;
+        try {
+            long now = System.currentTimeMillis();
+            // le più vecchie stanno in fondo alla pila
+            Iterator<IdleConn> it = idle.descendingIterator();
+            while (it.hasNext() && physicalCount.get() > min) {
+                IdleConn ic = it.next();
+                if (now - ic.lastUsedMs < idleTimeoutMs) break;
+                if (idle.removeLastOccurrence(ic)) {
+                    discard(ic.physical);
+                }
+            }
+            while (physicalCount.get() < min && permits.tryAcquire()) {
+                try {
+                    idle.offerLast(new IdleConn(openPhysical(), now));
+                } finally {
+                    permits.release();
+                }
+            }
+        } catch (SQLException e) {
+            ServerLog.warn("[DbPool] Impossibile aprire connessioni minime: " + e.getMessage());
+        } catch (RuntimeException e) {
+            ServerLog.warn("[DbPool] Errore nella manutenzione del pool: " + e.getMessage());
+        }
+    }
+
+    /** Chiude il pool e tutte le connessioni inattive. */
+    public void close() {
+        closed = true;
+        maintenance.shutdownNow();
+        IdleConn ic;
+        while ((ic = idle.pollFirst()) != null) {
+            discard(ic.physical);
+        }
+    }
+
+    // ==== Gauge ====
+
+    /** Connessioni attualmente prestate ai DAO. */
+    public int getActive() {
+        return max - permits.availablePermits();
+    }
+
+    /** Connessioni fisiche aperte e pronte al riuso. */
+    public int getIdle() {
+        return idle.size();
+    }
+
+    /** Thread in attesa di una connessione. */
+    public int getWaiters() {
+        return permits.getQueueLength();
+    }
+
+    /** Connessioni fisiche aperte in totale (prestate + inattive). */
+    public int getTotal() {
+        return physicalCount.get();
+    }
+
+    public int getMax() {
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return "active=" + getActive() + " idle=" + getIdle()
+                + " waiters=" + getWaiters() + " total=" + getTotal() + " max=" + max;
+    }
+
+    // ==== Proxy ====
+
+    private Connection wrap(Connection physical) {
+        return (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                new PooledHandler(physical));
+    }
+
+    /**
+     * Intercetta close()/isClosed() e segna come rotta la connessione
+     * se il driver segnala un errore di comunicazione (SQLState 08xxx).
+     */
+    private final class PooledHandler implements InvocationHandler {
+        private final Connection physical;
+        private boolean returned = false;
+        private boolean broken = false;
+
+        PooledHandler(Connection physical) {
+            this.physical = physical;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            switch (name) {
+                case "close":
+                    if (!returned) {
+                        returned = true;
+                        giveBack(physical, broken);
+                    }
+                    return null;
+                case "isClosed":
+                    return returned || physical.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "PooledConnection[" + physical + "]";
+                default:
+                    break;
+            }
+
+            if (returned) {
+                throw new SQLException("Connessione già restituita al pool");
+            }
+            try {
+                return method.invoke(physical, args);
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof SQLException) {
+                    String state = ((SQLException) cause).getSQLState();
+                    if (state != null && state.startsWith("08")) {
+                        broken = true;
+                    }
+                }
+                throw cause;
+            }
+        }
+    }
+}
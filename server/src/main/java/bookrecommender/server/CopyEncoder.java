@@ -0,0 +1,115 @@
+package bookrecommender.server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ * Codifica righe nel formato testo di COPY di PostgreSQL (campi separati da
+ * tab, righe da '\n', \N per NULL, con escape di \ tab e a capo) in blocchi
+ * di byte pronti da inviare con CopyManager. Quando il buffer supera
+ * CHUNK_BYTES il blocco passa al ChunkSink, così la memoria usata resta
+ * costante qualunque sia il numero di righe.
+ */
+final class CopyEncoder {
+
+    /** Riceve un blocco di righe complete (buf[0..len)). */
+    @FunctionalInterface
+    interface ChunkSink {
+        void write(byte[] buf, int len) throws IOException, SQLException;
+    }
+
+    static final int CHUNK_BYTES = 1 << 20;
+
+    private final ChunkSink sink;
+    private byte[] buf = new byte[CHUNK_BYTES + (CHUNK_BYTES >> 2)];
+    private int len = 0;
+    private boolean firstField = true;
+    private long rows = 0;
+    private final StringBuilder field = new StringBuilder(256);
+
+    CopyEncoder(ChunkSink sink) {
+        this.sink = sink;
+    }
+
+    CopyEncoder add(int v) {
+        separator();
+        put(Integer.toString(v));
+        return this;
+    }
+
+    CopyEncoder add(long v) {
+        separator();
+        put(Long.toString(v));
+        return this;
+    }
+
+    CopyEncoder add(Integer v) {
+        if (v == null) return addNull();
+        return add(v.intValue());
+    }
+
+    CopyEncoder add(String s) {
+        if (s == null) return addNull();
+        separator();
+        field.setLength(0);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\': field.append("\\\\"); break;
+                case '\t': field.append("\\t"); break;
+                case '\n': field.append("\\n"); break;
+                case '\r': field.append("\\r"); break;
+                default: field.append(c);
+            }
+        }
+        put(field.toString());
+        return this;
+    }
+
+    CopyEncoder addNull() {
+        separator();
+        put("\\N");
+        return this;
+    }
+
+    /** Chiude la riga; se il buffer è pieno lo consegna al sink. */
+    void endRow() throws IOException, SQLException {
+        ensure(1);
+        buf[len++] = '\n';
+        firstField = true;
+        rows++;
+        if (len >= CHUNK_BYTES) flush();
+    }
+
+    /** Consegna le righe ancora nel buffer. */
+    void flush() throws IOException, SQLException {
+        if (len == 0) return;
+        sink.write(buf, len);
+        len = 0;
+    }
+
+    long rows() {
+        return rows;
+    }
+
+    private void separator() {
+        if (!firstField) {
+            ensure(1);
+            buf[len++] = '\t';
+        }
+        firstField = false;
+    }
+
+    private void put(String s) {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        ensure(b.length);
+        System.arraycopy(b, 0, buf, len, b.length);
+        len += b.length;
+    }
+
+    private void ensure(int extra) {
+        if (len + extra > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + extra));
+    }
+}
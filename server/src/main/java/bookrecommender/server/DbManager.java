@@ -1,11 +1,13 @@
 package bookrecommender.server;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
 
 /**
  * Classe di utilità per ottenere connessioni JDBC a PostgreSQL.
+ * Le connessioni arrivano da un ConnectionPool condiviso: chi le usa
+ * continua a chiuderle con try-with-resources, ma il close() le
+ * restituisce al pool invece di chiudere il socket verso il DB.
  */
 public class DbManager {
 
@@ -19,11 +21,48 @@ public class DbManager {
         }
     }
 
+    private static final ConnectionPool POOL = new ConnectionPool(
+            ServerConfig.DB_URL,
+            ServerConfig.DB_USER,
+            ServerConfig.DB_PASS,
+            ServerConfig.DB_POOL_MIN,
+            ServerConfig.DB_POOL_MAX,
+            ServerConfig.DB_POOL_BORROW_TIMEOUT_MS,
+            ServerConfig.DB_POOL_IDLE_TIMEOUT_MS,
+            ServerConfig.DB_POOL_VALIDATE_AFTER_MS,
+            ServerConfig.DB_POOL_VALIDATE_TIMEOUT_S,
+            ServerConfig.DB_POOL_EVICT_INTERVAL_MS
+    );
+
+    private DbManager() {
+        // utility class
+    }
+
     public static Connection getConnection() throws SQLException {
-        return DriverManager.getConnection(
-                ServerConfig.DB_URL,
-                ServerConfig.DB_USER,
-                ServerConfig.DB_PASS
-        );
+        return POOL.borrow();
+    }
+
+    // ==== Gauge del pool, leggibili a runtime ====
+
+    public static int getActiveConnections() {
+        return POOL.getActive();
+    }
+
+    public static int getIdleConnections() {
+        return POOL.getIdle();
+    }
+
+    public static int getWaitingThreads() {
+        return POOL.getWaiters();
+    }
+
+    /** Riga riassuntiva dello stato del pool (per log e diagnostica). */
+    public static String poolStats() {
+        return POOL.toString();
+    }
+
+    /** Chiude il pool: da chiamare allo spegnimento del server. */
+    public static void shutdown() {
+        POOL.close();
     }
 }
@@ -0,0 +1,113 @@
+package bookrecommender.server;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Risultato di una ricerca a faccette (SEARCH_FACETS): i primi libri
+ * trovati, il numero totale dopo i filtri e, per ogni faccetta
+ * (categoria, editore, decennio), i valori più frequenti con i conteggi.
+ */
+public final class FacetedResult {
+
+    public static final String CATEGORIA = "categoria";
+    public static final String EDITORE = "editore";
+    public static final String DECENNIO = "decennio";
+
+    /** Filtri di drill-down; null = nessun filtro su quella faccetta. */
+    public static final class Filter {
+        public final String categoria;
+        public final String editore;
+        public final Integer decennio;
+
+        public Filter(String categoria, String editore, Integer decennio) {
+            this.categoria = categoria;
+            this.editore = editore;
+            this.decennio = decennio;
+        }
+    }
+
+    /** Un libro nel risultato, con i campi delle faccette. */
+    public static final class Hit {
+        public final int id;
+        public final String titolo;
+        public final String autori;
+        public final Integer anno;
+        public final String editore;
+        public final String categoria;
+
+        Hit(int id, String titolo, String autori, Integer anno, String editore, String categoria) {
+            this.id = id;
+            this.titolo = titolo;
+            this.autori = autori;
+            this.anno = anno;
+            this.editore = editore;
+            this.categoria = categoria;
+        }
+    }
+
+    /** Un valore di faccetta e quanti libri del risultato lo hanno. */
+    public static final class Value {
+        public final String value;
+        public final int count;
+
+        Value(String value, int count) {
+            this.value = value;
+            this.count = count;
+        }
+    }
+
+    public final int total;
+    public final List<Hit> hits;
+    /** faccetta -> valori, dal più frequente (ordine: categoria, editore, decennio) */
+    public final Map<String, List<Value>> facets;
+
+    FacetedResult(int total, List<Hit> hits, Map<String, List<Value>> facets) {
+        this.total = total;
+        this.hits = hits;
+        this.facets = facets;
+    }
+
+    // ==== Codifica dei valori nel protocollo ====
+    //
+    // I valori di faccetta viaggiano in righe FACET (campi separati da ';')
+    // e tornano indietro nei filtri (separati da '|' e '='): '%' e quei
+    // separatori, più gli a capo, vengono scritti come %XX, così un valore
+    // torna al server identico e trova il suo codice in categoriaCodes/editoreCodes.
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    /** Valore di faccetta -> forma sicura per il protocollo. */
+    public static String encodeValue(String v) {
+        if (v == null) return "";
+        StringBuilder sb = null;
+        for (int i = 0, n = v.length(); i < n; i++) {
+            char c = v.charAt(i);
+            boolean special = c == '%' || c == ';' || c == '|' || c == '=' || c == '\n' || c == '\r';
+            if (special && sb == null) sb = new StringBuilder(n + 8).append(v, 0, i);
+            if (sb == null) continue;
+            if (special) sb.append('%').append(HEX[c >> 4]).append(HEX[c & 0xF]);
+            else sb.append(c);
+        }
+        return sb == null ? v : sb.toString();
+    }
+
+    /** Inverso di encodeValue(); un '%' non seguito da due cifre esadecimali resta com'è. */
+    public static String decodeValue(String v) {
+        int i = v.indexOf('%');
+        if (i < 0) return v;
+        StringBuilder sb = new StringBuilder(v.length()).append(v, 0, i);
+        for (int n = v.length(); i < n; i++) {
+            char c = v.charAt(i);
+            int hi = c == '%' && i + 2 < n ? Character.digit(v.charAt(i + 1), 16) : -1;
+            int lo = hi < 0 ? -1 : Character.digit(v.charAt(i + 2), 16);
+            if (lo < 0) {
+                sb.append(c);
+            } else {
+                sb.append((char) (hi << 4 | lo));
+                i += 2;
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,451 @@
+package bookrecommender.server;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Migrazione dei file .dati del client (formato Lab A) nel database.
+ *
+ *   java -cp ... bookrecommender.server.LegacyMigrator [cartella dati] [--restart]
+ *
+ * I file vengono letti in ordine di dipendenza, così le chiavi esterne
+ * trovano sempre le righe a cui puntano:
+ *
+ *   UtentiRegistrati.dati -> utenti_registrati
+ *   Librerie.dati         -> librerie, librerie_libri
+ *   ValutazioniLibri.dati -> valutazioni_libri, statistiche_valutazioni
+ *   ConsigliLibri.dati    -> consigli_libri
+ *
+ * Il catalogo (tabella libri) deve essere già caricato, ad esempio con
+ * CatalogLoader: le righe che citano libri o utenti inesistenti vengono
+ * scartate e contate.
+ *
+ * Ogni file è letto in streaming a blocchi di MIGRATION_BATCH_LINES righe.
+ * Un blocco viene copiato con COPY in una tabella temporanea e poi travasato
+ * nelle tabelle vere con una sola INSERT ... SELECT, che scarta i duplicati
+ * e i riferimenti mancanti; nella stessa transazione si salva in
+ * migrazione_dati la posizione raggiunta nel file, con la dimensione e la
+ * data di modifica del file. Se la migrazione si interrompe, il comando
+ * rilanciato riparte dall'ultimo blocco confermato; se nel frattempo il file
+ * è cambiato (dimensione o data diverse), o con --restart, riparte
+ * dall'inizio. Le INSERT non creano doppioni, quindi rileggere un file già
+ * migrato non cambia i dati.
+ *
+ * Le regole di lettura delle righe sono quelle dei repository del client
+ * (UtentiRepository, LibrerieRepository, ValutazioniRepository,
+ * ConsigliRepository). Per le coppie duplicate vale la prima riga del file,
+ * come per il server, che rifiuta una seconda valutazione dello stesso libro.
+ */
+public final class LegacyMigrator {
+
+    private static final String CHECKPOINT_DDL = """
+            CREATE TABLE IF NOT EXISTS migrazione_dati (
+                file        TEXT PRIMARY KEY,
+                offset_byte BIGINT NOT NULL,
+                righe       BIGINT NOT NULL,
+                dimensione  BIGINT,
+                modificato  BIGINT,
+                aggiornato  TIMESTAMPTZ NOT NULL DEFAULT now()
+            );
+            ALTER TABLE migrazione_dati
+                ADD COLUMN IF NOT EXISTS dimensione BIGINT,
+                ADD COLUMN IF NOT EXISTS modificato BIGINT
+            """;
+
+    /** Tabella scritta da una INSERT di Sorgente.merge, per i conteggi. */
+    private static final Pattern INSERT_TARGET = Pattern.compile("^\\s*INSERT INTO (\\w+)");
+
+    /** Un file .dati: come leggerne le righe e come travasarle. */
+    private enum Sorgente {
+
+        UTENTI("UtentiRegistrati.dati",
+                "stg_utenti (riga BIGINT, userid TEXT, password_hash TEXT, nome TEXT, cognome TEXT,"
+                        + " codice_fiscale TEXT, email TEXT)",
+                List.of("""
+                        INSERT INTO utenti_registrati (userid, password_hash, nome, cognome, codice_fiscale, email)
+                        SELECT DISTINCT ON (userid) userid, password_hash, nome, cognome, codice_fiscale, email
+                        FROM stg_utenti
+                        ORDER BY userid, riga
+                        ON CONFLICT (userid) DO NOTHING
+                        """)) {
+            @Override
+            int encode(String line, long riga, CopyEncoder enc) throws IOException, SQLException {
+                String[] c = line.split(";", -1);
+                if (c.length < 6 || !validUserid(c[0]) || c[1].isEmpty() || c[1].length() > 64) return 0;
+                enc.add(riga).add(c[0]).add(c[1])
+                        .add(cut(c[2], 100)).add(cut(c[3], 100)).add(cut(c[4], 16)).add(cut(c[5], 255));
+                enc.endRow();
+                return 1;
+            }
+        },
+
+        LIBRERIE("Librerie.dati",
+                "stg_librerie (riga BIGINT, userid TEXT, nome TEXT, libri INTEGER[])",
+                List.of("""
+                        INSERT INTO librerie (userid, nome)
+                        SELECT DISTINCT ON (s.userid, s.nome) s.userid, s.nome
+                        FROM stg_librerie s
+                        JOIN utenti_registrati u ON u.userid = s.userid
+                        WHERE NOT EXISTS (SELECT 1 FROM librerie l WHERE l.userid = s.userid AND l.nome = s.nome)
+                        ORDER BY s.userid, s.nome, s.riga
+                        """, """
+                        INSERT INTO librerie_libri (id_libreria, id_libro)
+                        SELECT DISTINCT l.id, b.id_libro
+                        FROM stg_librerie s
+                        JOIN librerie l ON l.userid = s.userid AND l.nome = s.nome
+                        CROSS JOIN LATERAL unnest(s.libri) AS b(id_libro)
+                        JOIN libri k ON k.id = b.id_libro
+                        ON CONFLICT (id_libreria, id_libro) DO NOTHING
+                        """)) {
+            @Override
+            int encode(String line, long riga, CopyEncoder enc) throws IOException, SQLException {
+                // formato: userid;nomeLibreria;id1|id2|id3
+                line = line.trim();
+                String[] parts = line.split(";", 3);
+                if (parts.length < 2) return 0;
+                String userid = parts[0].trim();
+                if (!validUserid(userid)) return 0;
+
+                StringBuilder libri = new StringBuilder("{");
+                if (parts.length == 3) {
+                    for (String s : parts[2].split("\\|")) {
+                        s = s.trim();
+                        if (s.isEmpty()) continue;
+                        try {
+                            int id = Integer.parseInt(s);
+                            if (libri.length() > 1) libri.append(',');
+                            libri.append(id);
+                        } catch (NumberFormatException ignored) {
+                        }
+                    }
+                }
+                enc.add(riga).add(userid).add(cut(parts[1].trim(), 100)).add(libri.append('}').toString());
+                enc.endRow();
+                return 1;
+            }
+        },
+
+        VALUTAZIONI("ValutazioniLibri.dati",
+                "stg_valutazioni (riga BIGINT, userid TEXT, id_libro INTEGER, stile INTEGER, contenuto INTEGER,"
+                        + " gradevolezza INTEGER, originalita INTEGER, edizione INTEGER, voto_finale INTEGER,"
+                        + " commento TEXT)",
+                List.of(
+                        // nessun insertReview concorrente tra l'inserimento e il ricalcolo delle statistiche
+                        "LOCK TABLE valutazioni_libri IN SHARE ROW EXCLUSIVE MODE",
+                        """
+                        INSERT INTO valutazioni_libri (userid, id_libro, stile, contenuto, gradevolezza,
+                                                       originalita, edizione, voto_finale, commento)
+                        SELECT DISTINCT ON (s.userid, s.id_libro)
+                               s.userid, s.id_libro, s.stile, s.contenuto, s.gradevolezza,
+                               s.originalita, s.edizione, s.voto_finale, s.commento
+                        FROM stg_valutazioni s
+                        JOIN utenti_registrati u ON u.userid = s.userid
+                        JOIN libri k ON k.id = s.id_libro
+                        WHERE LEAST(s.stile, s.contenuto, s.gradevolezza, s.originalita, s.edizione, s.voto_finale) >= 1
+                          AND GREATEST(s.stile, s.contenuto, s.gradevolezza, s.originalita, s.edizione, s.voto_finale) <= 5
+                        ORDER BY s.userid, s.id_libro, s.riga
+                        ON CONFLICT (userid, id_libro) DO NOTHING
+                        """,
+                        // statistiche_valutazioni dei libri toccati dal blocco
+                        ValutazioniDao.recomputeStatsSql("v.id_libro IN (SELECT id_libro FROM stg_valutazioni)"))) {
+            @Override
+            int encode(String line, long riga, CopyEncoder enc) throws IOException, SQLException {
+                String[] c = line.split(";", -1);
+                if (c.length < 9 || !validUserid(c[0])) return 0;
+                int[] v = new int[7];
+                try {
+                    for (int i = 0; i < 7; i++) v[i] = Integer.parseInt(c[i + 1]);
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+                enc.add(riga).add(c[0]);
+                for (int x : v) enc.add(x);
+                enc.add(cut(c[8], 256));
+                enc.endRow();
+                return 1;
+            }
+        },
+
+        CONSIGLI("ConsigliLibri.dati",
+                "stg_consigli (riga BIGINT, userid TEXT, id_libro INTEGER, id_suggerito INTEGER)",
+                List.of("""
+                        INSERT INTO consigli_libri (userid, id_libro_sorgente, id_libro_consigliato)
+                        SELECT DISTINCT s.userid, s.id_libro, s.id_suggerito
+                        FROM stg_consigli s
+                        JOIN utenti_registrati u ON u.userid = s.userid
+                        JOIN libri a ON a.id = s.id_libro
+                        JOIN libri b ON b.id = s.id_suggerito
+                        ON CONFLICT (userid, id_libro_sorgente, id_libro_consigliato) DO NOTHING
+                        """)) {
+            @Override
+            int encode(String line, long riga, CopyEncoder enc) throws IOException, SQLException {
+                String[] c = line.split(";", -1);
+                if (c.length < 5 || !validUserid(c[0])) return 0;
+                int bId;
+                try { bId = Integer.parseInt(c[1]); } catch (NumberFormatException e) { return 0; }
+                int staged = 0;
+                for (int i = 2; i <= 4; i++) {
+                    if (c[i].isEmpty()) continue;
+                    try {
+                        int sug = Integer.parseInt(c[i]);
+                        enc.add(riga).add(c[0]).add(bId).add(sug);
+                        enc.endRow();
+                        staged++;
+                    } catch (NumberFormatException ignored) {}
+                }
+                return staged;
+            }
+        };
+
+        final String fileName;
+        final String stagingTable;
+        final String stagingDdl;
+        final List<String> merge;
+
+        Sorgente(String fileName, String stagingDdl, List<String> merge) {
+            this.fileName = fileName;
+            this.stagingTable = stagingDdl.substring(0, stagingDdl.indexOf(' '));
+            this.stagingDdl = "CREATE TEMP TABLE IF NOT EXISTS " + stagingDdl + " ON COMMIT DELETE ROWS";
+            this.merge = merge;
+        }
+
+        /**
+         * Codifica una riga del file come righe della tabella temporanea.
+         *
+         * @return righe prodotte, 0 se la riga non è valida
+         */
+        abstract int encode(String line, long riga, CopyEncoder enc) throws IOException, SQLException;
+    }
+
+    private LegacyMigrator() {
+    }
+
+    public static void main(String[] args) {
+        List<String> opts = Arrays.asList(args);
+        boolean restart = opts.contains("--restart");
+        Path dir = Paths.get(args.length > 0 && !args[0].startsWith("--") ? args[0] : "data");
+        if (!Files.isDirectory(dir)) {
+            System.err.println("Uso: LegacyMigrator [cartella dati] [--restart]");
+            System.err.println("[ERRORE] Cartella non trovata: " + dir.toAbsolutePath());
+            System.exit(2);
+        }
+
+        try {
+            migrate(dir, restart);
+        } catch (Exception e) {
+            System.err.println("[ERRORE] Migrazione interrotta: " + e.getMessage()
+                    + " (rilanciare per riprendere dall'ultimo blocco confermato)");
+            e.printStackTrace();
+            System.exit(1);
+        } finally {
+            DbManager.shutdown();
+        }
+    }
+
+    static void migrate(Path dir, boolean restart) throws SQLException, IOException {
+        try (Connection conn = DbManager.getConnection()) {
+            try (Statement st = conn.createStatement()) {
+                st.execute(CHECKPOINT_DDL);
+                if (restart) st.execute("DELETE FROM migrazione_dati");
+            }
+            conn.setAutoCommit(false);
+            try {
+                for (Sorgente src : Sorgente.values()) {
+                    Path file = dir.resolve(src.fileName);
+                    if (!Files.isRegularFile(file)) {
+                        System.out.println("[--] " + src.fileName + " assente, saltato");
+                        continue;
+                    }
+                    migrateFile(conn, src, file);
+                }
+            } catch (SQLException | IOException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+
+            try (Statement st = conn.createStatement()) {
+                st.execute("ANALYZE utenti_registrati, librerie, librerie_libri, valutazioni_libri, consigli_libri");
+            }
+        }
+    }
+
+    /** Migra un file a blocchi, ripartendo dal checkpoint salvato. */
+    private static void migrateFile(Connection conn, Sorgente src, Path file) throws SQLException, IOException {
+        long offset = 0;
+        long riga = 0;
+        long size = Files.size(file);
+        long modified = Files.getLastModifiedTime(file).toMillis();
+        try (PreparedStatement ps = conn.prepareStatement(
+                "SELECT offset_byte, righe, dimensione, modificato FROM migrazione_dati WHERE file = ?")) {
+            ps.setString(1, src.fileName);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    offset = rs.getLong(1);
+                    riga = rs.getLong(2);
+                    if (rs.getLong(3) != size || rs.wasNull() || rs.getLong(4) != modified || rs.wasNull()) {
+                        // il file è stato riscritto dopo il checkpoint: la posizione salvata non vale
+                        // più, si rilegge tutto (le INSERT non creano doppioni)
+                        System.out.println("[..] " + src.fileName + " cambiato dopo il checkpoint, riparto dall'inizio");
+                        offset = 0;
+                        riga = 0;
+                    }
+                }
+            }
+        }
+        if (offset == size) {
+            System.out.println("[OK] " + src.fileName + " già migrato");
+            return;
+        }
+        if (offset > 0) System.out.printf("[..] %s: riprendo dal byte %d (riga %d)%n", src.fileName, offset, riga);
+
+        try (Statement st = conn.createStatement()) {
+            st.execute(src.stagingDdl);
+        }
+        conn.commit();
+
+        CopyManager copyApi = conn.unwrap(PGConnection.class).getCopyAPI();
+        String copySql = "COPY " + src.stagingTable + " FROM STDIN";
+        CopyIn[] copy = {null};
+        CopyEncoder enc = new CopyEncoder((buf, len) -> {
+            if (copy[0] == null) copy[0] = copyApi.copyIn(copySql);
+            copy[0].writeToCopy(buf, 0, len);
+        });
+
+        long t0 = System.nanoTime();
+        long lette = 0, scartate = 0;
+        Map<String, Long> inserite = new LinkedHashMap<>();  // tabella -> righe scritte
+        try (LineReader in = new LineReader(file, offset)) {
+            boolean eof = false;
+            while (!eof) {
+                int batch = 0;
+                String line;
+                while (batch < ServerConfig.MIGRATION_BATCH_LINES && (line = in.readLine()) != null) {
+                    if (riga++ == 0 && line.startsWith("userid;")) continue; // intestazione
+                    if (line.isBlank()) continue;
+                    batch++;
+                    if (src.encode(line, riga, enc) == 0) scartate++;
+                }
+                eof = batch < ServerConfig.MIGRATION_BATCH_LINES;
+                lette += batch;
+
+                try {
+                    enc.flush();
+                    if (copy[0] != null) {
+                        copy[0].endCopy();
+                        copy[0] = null;
+                    }
+                    try (Statement st = conn.createStatement()) {
+                        for (String sql : src.merge) {
+                            int n = st.executeUpdate(sql);
+                            Matcher m = INSERT_TARGET.matcher(sql);
+                            if (m.find()) inserite.merge(m.group(1), (long) n, Long::sum);
+                        }
+                    }
+                    try (PreparedStatement ps = conn.prepareStatement("""
+                            INSERT INTO migrazione_dati (file, offset_byte, righe, dimensione, modificato)
+                            VALUES (?, ?, ?, ?, ?)
+                            ON CONFLICT (file) DO UPDATE
+                            SET offset_byte = EXCLUDED.offset_byte, righe = EXCLUDED.righe,
+                                dimensione = EXCLUDED.dimensione, modificato = EXCLUDED.modificato, aggiornato = now()
+                            """)) {
+                        ps.setString(1, src.fileName);
+                        ps.setLong(2, in.offset());
+                        ps.setLong(3, riga);
+                        ps.setLong(4, size);
+                        ps.setLong(5, modified);
+                        ps.executeUpdate();
+                    }
+                    conn.commit();
+                } finally {
+                    if (copy[0] != null && copy[0].isActive()) copy[0].cancelCopy();
+                    copy[0] = null;
+                }
+                if (!eof) System.out.printf("[..] %s: %d righe%n", src.fileName, lette);
+            }
+        }
+
+        double s = (System.nanoTime() - t0) / 1e9;
+        // statistiche_valutazioni conta i libri ricalcolati (upsert), non valutazioni
+        System.out.printf("[OK] %s: %d righe lette, %d scartate, righe scritte %s in %.1f s (%.0f righe/s)%n",
+                src.fileName, lette, scartate, inserite, s, lette / Math.max(s, 1e-9));
+    }
+
+    // ==== SUPPORTO ====
+
+    private static boolean validUserid(String userid) {
+        return !userid.isEmpty() && userid.length() <= 50;
+    }
+
+    /** Tronca alla lunghezza della colonna VARCHAR corrispondente. */
+    private static String cut(String s, int max) {
+        return s.length() <= max ? s : s.substring(0, max);
+    }
+
+    /**
+     * Lettura per righe (UTF-8, '\n' o "\r\n") che tiene il conto dei byte
+     * letti, per salvare e ritrovare la posizione nel file.
+     */
+    private static final class LineReader implements Closeable {
+        private final InputStream in;
+        private byte[] line = new byte[256];
+        private long offset;
+
+        LineReader(Path file, long offset) throws IOException {
+            FileChannel ch = FileChannel.open(file, StandardOpenOption.READ);
+            ch.position(offset);
+            this.in = new BufferedInputStream(Channels.newInputStream(ch), 1 << 16);
+            this.offset = offset;
+        }
+
+        /** Riga successiva senza terminatore, null a fine file. */
+        String readLine() throws IOException {
+            int len = 0;
+            int b;
+            while ((b = in.read()) >= 0) {
+                offset++;
+                if (b == '\n') break;
+                if (len == line.length) line = Arrays.copyOf(line, len * 2);
+                line[len++] = (byte) b;
+            }
+            if (b < 0 && len == 0) return null;
+            if (len > 0 && line[len - 1] == '\r') len--;
+            return new String(line, 0, len, StandardCharsets.UTF_8);
+        }
+
+        /** Byte dall'inizio del file fino alla fine dell'ultima riga letta. */
+        long offset() {
+            return offset;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -1,109 +1,463 @@
 package bookrecommender.server;
 
+import java.io.IOException;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * DAO per accedere alla tabella "libri".
+ *
+ * Le ricerche non costruiscono una lista di risultati: ogni riga del
+ * ResultSet viene passata subito a un BookSink (di solito ClientHandler,
+ * che la codifica direttamente sul socket). Con autocommit disattivato e
+ * fetch size impostata, il driver PostgreSQL legge le righe a blocchi
+ * tramite cursore, quindi la memoria usata non dipende dalla dimensione
+ * della pagina e le prime righe partono prima che la query sia finita.
+ *
+ * Il confronto per sottostringa avviene su bk_norm() (minuscolo, senza
+ * accenti), la stessa espressione degli indici GIN a trigrammi definiti in
+ * db/schema.sql: così "%...%" non obbliga più a leggere tutta la tabella.
+ *
+ * Quando l'indice in memoria (SearchIndex) è pronto, le ricerche vengono
+ * servite da lì con la stessa semantica e lo stesso ordine; il DB resta
+ * il ripiego finché l'indice non è stato costruito.
+ *
+ * Davanti a entrambi c'è SearchCache: la stessa ricerca ripetuta (stessi
+ * parametri normalizzati, stessa pagina) viene servita dalla memoria.
  */
 public class LibriDao {
 
+    /** Numero di righe lette per volta dal cursore JDBC. */
+    static final int FETCH_SIZE = 50;
+
+    /** Righe per blocco nella lettura completa della tabella (scanAll). */
+    private static final int SCAN_FETCH_SIZE = 5_000;
+
+    /** Riceve le righe di una ricerca man mano che arrivano dal DB. */
+    @FunctionalInterface
+    public interface BookSink {
+        /**
+         * @param anno null se l'anno non è presente
+         */
+        void accept(int id, String titolo, String autori, Integer anno) throws IOException;
+    }
+
+    /** Riceve una riga completa del catalogo (anche editore e categoria). */
+    @FunctionalInterface
+    public interface CatalogSink {
+        void accept(int id, String titolo, String autori, Integer anno, String editore, String categoria);
+    }
+
+    /** Prepara i parametri di una query. */
+    @FunctionalInterface
+    private interface Binder {
+        void bind(PreparedStatement ps) throws SQLException;
+    }
+
+    /** Limite storico dei comandi SEARCH_* senza paginazione. */
+    static final int DEFAULT_LIMIT = 100;
+
+    /** Valore di afterId per partire dalla prima pagina. */
+    public static final long FIRST_PAGE = Long.MIN_VALUE;
+
     /**
      * Cerca libri il cui titolo contiene (case-insensitive) la stringa data.
-     * Restituisce una lista di righe, ognuna con:
-     *  [0] = id
-     *  [1] = titolo
-     *  [2] = autori
-     *  [3] = anno (può essere stringa vuota)
+     * Per ogni riga chiama sink con id, titolo, autori e anno.
+     *
+     * @return numero di righe inviate al sink
+     */
+    public int searchByTitle(String query, BookSink sink) throws SQLException, IOException {
+        return searchByTitle(query, FIRST_PAGE, DEFAULT_LIMIT, sink);
+    }
+
+    /**
+     * Cerca libri per autore (qualsiasi autore contenga la stringa data).
      */
-    public List<String[]> searchByTitle(String query) throws SQLException {
+    public int searchByAuthor(String author, BookSink sink) throws SQLException, IOException {
+        return searchByAuthor(author, FIRST_PAGE, DEFAULT_LIMIT, sink);
+    }
+
+    /**
+     * Cerca libri per autore e anno preciso.
+     */
+    public int searchByAuthorAndYear(String author, int year, BookSink sink) throws SQLException, IOException {
+        return searchByAuthorAndYear(author, year, FIRST_PAGE, DEFAULT_LIMIT, sink);
+    }
+
+    // ---------- CACHE DEI RISULTATI ----------
+
+    /** false = questa richiesta salta SearchCache (comando con prefisso NOCACHE). */
+    private boolean cacheEnabled = true;
+
+    public void setCacheEnabled(boolean enabled) {
+        this.cacheEnabled = enabled;
+    }
+
+    private int cached(String key, BookSink sink, SearchCache.Loader loader) throws SQLException, IOException {
+        if (!cacheEnabled) return loader.run(sink);
+        return SearchCache.shared().get(key, sink, loader);
+    }
+
+    /** Chiave di cache: tipo di ricerca, parametri normalizzati, pagina. */
+    private static String cacheKey(String kind, String params, long afterId, int limit) {
+        return kind + '\n' + params + '\n' + afterId + '\n' + limit;
+    }
+
+    // ---------- PAGINAZIONE A CHIAVE (keyset) ----------
+    //
+    // Invece di OFFSET (che rilegge e scarta tutte le righe precedenti) ogni
+    // pagina riparte dall'ultimo id visto: "id > afterId ORDER BY id LIMIT n".
+    // Con l'indice della chiave primaria la pagina 1000 costa come la prima.
+
+    /** Pagina di ricerca per titolo: al massimo limit righe con id > afterId. */
+    public int searchByTitle(String query, long afterId, int limit, BookSink sink)
+            throws SQLException, IOException {
+        return cached(cacheKey("TITLE", SearchIndex.normalize(query), afterId, limit), sink,
+                s -> loadByTitle(query, afterId, limit, s));
+    }
+
+    private int loadByTitle(String query, long afterId, int limit, BookSink sink)
+            throws SQLException, IOException {
+        SearchIndex idx = SearchIndex.current();
+        if (idx != null) return idx.searchByTitle(query, afterId, limit, sink);
+
+        String sql = """
+                SELECT id, titolo, autori, anno
+                FROM libri
+                WHERE bk_norm(titolo) LIKE '%' || bk_norm(?) || '%'
+                  AND id > ?
+                ORDER BY id
+                LIMIT ?
+                """;
+
+        return streamLibriQuery(sql, ps -> {
+            ps.setString(1, likeLiteral(query));
+            ps.setLong(2, afterId);
+            ps.setInt(3, limit);
+        }, sink);
+    }
+
+    /** Pagina di ricerca per autore. */
+    public int searchByAuthor(String author, long afterId, int limit, BookSink sink)
+            throws SQLException, IOException {
+        return cached(cacheKey("AUTHOR", SearchIndex.normalize(author), afterId, limit), sink,
+                s -> loadByAuthor(author, afterId, limit, s));
+    }
+
+    private int loadByAuthor(String author, long afterId, int limit, BookSink sink)
+            throws SQLException, IOException {
+        SearchIndex idx = SearchIndex.current();
+        if (idx != null) return idx.searchByAuthor(author, afterId, limit, sink);
+
         String sql = """
                 SELECT id, titolo, autori, anno
                 FROM libri
-                WHERE LOWER(titolo) LIKE LOWER(?)
+                WHERE bk_norm(autori) LIKE '%' || bk_norm(?) || '%'
+                  AND id > ?
                 ORDER BY id
-                LIMIT 100
+                LIMIT ?
                 """;
 
-        return runLibriQuery(sql, "%" + query + "%");
+        return streamLibriQuery(sql, ps -> {
+            ps.setString(1, likeLiteral(author));
+            ps.setLong(2, afterId);
+            ps.setInt(3, limit);
+        }, sink);
     }
 
+    /** Pagina di ricerca per autore e anno. */
+    public int searchByAuthorAndYear(String author, int year, long afterId, int limit, BookSink sink)
+            throws SQLException, IOException {
+        return cached(cacheKey("AUTHOR_YEAR", SearchIndex.normalize(author) + "\n" + year, afterId, limit), sink,
+                s -> loadByAuthorAndYear(author, year, afterId, limit, s));
+    }
+
+    private int loadByAuthorAndYear(String author, int year, long afterId, int limit, BookSink sink)
+            throws SQLException, IOException {
+        SearchIndex idx = SearchIndex.current();
+        if (idx != null) return idx.searchByAuthorAndYear(author, year, afterId, limit, sink);
+
+        String sql = """
+                SELECT id, titolo, autori, anno
+                FROM libri
+                WHERE bk_norm(autori) LIKE '%' || bk_norm(?) || '%'
+                  AND anno = ?
+                  AND id > ?
+                ORDER BY id
+                LIMIT ?
+                """;
+
+        return streamLibriQuery(sql, ps -> {
+            ps.setString(1, likeLiteral(author));
+            ps.setInt(2, year);
+            ps.setLong(3, afterId);
+            ps.setInt(4, limit);
+        }, sink);
+    }
+
+    // ---------- LINGUAGGIO DI INTERROGAZIONE ----------
+
     /**
-     * Cerca libri per autore (qualsiasi autore contenga la stringa data).
+     * Esegue una query strutturata (vedi SearchQuery) con paginazione a chiave.
+     * Con l'indice in memoria la pianifica SearchIndex; altrimenti l'albero
+     * viene tradotto in una sola clausola WHERE parametrica.
      */
-    public List<String[]> searchByAuthor(String author) throws SQLException {
+    public int search(SearchQuery query, long afterId, int limit, BookSink sink)
+            throws SQLException, IOException {
+        return cached(cacheKey("QUERY", query.toString(), afterId, limit), sink,
+                s -> loadQuery(query, afterId, limit, s));
+    }
+
+    private int loadQuery(SearchQuery query, long afterId, int limit, BookSink sink)
+            throws SQLException, IOException {
+        SearchIndex idx = SearchIndex.current();
+        if (idx != null) return idx.search(query, afterId, limit, sink);
+
+        List<Object> params = new ArrayList<>();
+        String where = toSql(query.root, params);
+        String sql = "SELECT id, titolo, autori, anno FROM libri WHERE (" + where + ")"
+                + " AND id > ? ORDER BY id LIMIT ?";
+
+        return streamLibriQuery(sql, ps -> {
+            int i = 1;
+            for (Object p : params) {
+                if (p instanceof Integer) ps.setInt(i++, (Integer) p);
+                else ps.setString(i++, (String) p);
+            }
+            ps.setLong(i++, afterId);
+            ps.setInt(i, limit);
+        }, sink);
+    }
+
+    /** Traduce un nodo della query in SQL; i valori finiscono in params, mai nel testo. */
+    private static String toSql(SearchQuery.Node node, List<Object> params) {
+        if (node instanceof SearchQuery.And || node instanceof SearchQuery.Or) {
+            boolean and = node instanceof SearchQuery.And;
+            List<SearchQuery.Node> children = and
+                    ? ((SearchQuery.And) node).children
+                    : ((SearchQuery.Or) node).children;
+            StringBuilder sb = new StringBuilder("(");
+            for (int i = 0; i < children.size(); i++) {
+                if (i > 0) sb.append(and ? " AND " : " OR ");
+                sb.append(toSql(children.get(i), params));
+            }
+            return sb.append(')').toString();
+        }
+        if (node instanceof SearchQuery.YearRange) {
+            SearchQuery.YearRange y = (SearchQuery.YearRange) node;
+            params.add(y.from);
+            params.add(y.to);
+            return "(anno BETWEEN ? AND ?)";
+        }
+
+        SearchQuery.Text t = (SearchQuery.Text) node;
+        switch (t.field) {
+            case TITLE:
+                params.add(likeLiteral(t.value));
+                return "bk_norm(titolo) LIKE '%' || bk_norm(?) || '%'";
+            case AUTHOR:
+                params.add(likeLiteral(t.value));
+                return "bk_norm(autori) LIKE '%' || bk_norm(?) || '%'";
+            case CATEGORY:
+                params.add(t.value);
+                return "bk_norm(categoria) = bk_norm(?)";
+            case PUBLISHER:
+                params.add(t.value);
+                return "bk_norm(editore) = bk_norm(?)";
+            default:
+                params.add(likeLiteral(t.value));
+                params.add(likeLiteral(t.value));
+                return "(bk_norm(titolo) LIKE '%' || bk_norm(?) || '%'"
+                        + " OR bk_norm(autori) LIKE '%' || bk_norm(?) || '%')";
+        }
+    }
+
+    // ---------- RICERCA PER RILEVANZA ----------
+
+    /**
+     * I k libri più pertinenti per la query, dal più pertinente.
+     * Con l'indice in memoria il punteggio è BM25 (vedi SearchIndex); sul DB
+     * si ripiega sulla word_similarity di pg_trgm, che usa gli stessi indici GIN.
+     */
+    public int searchRanked(String query, int k, BookSink sink) throws SQLException, IOException {
+        return cached(cacheKey("RANKED", SearchIndex.normalize(query), FIRST_PAGE, k), sink,
+                s -> loadRanked(query, k, s));
+    }
+
+    private int loadRanked(String query, int k, BookSink sink)
+            throws SQLException, IOException {
+        SearchIndex idx = SearchIndex.current();
+        if (idx != null) return idx.searchRanked(query, k, sink);
+
         String sql = """
                 SELECT id, titolo, autori, anno
                 FROM libri
-                WHERE LOWER(autori) LIKE LOWER(?)
-                ORDER BY id
-                LIMIT 100
+                WHERE bk_norm(?) <% bk_norm(titolo)
+                   OR bk_norm(?) <% bk_norm(autori)
+                ORDER BY GREATEST(word_similarity(bk_norm(?), bk_norm(titolo)),
+                                  word_similarity(bk_norm(?), bk_norm(autori)) * 0.5) DESC,
+                         id
+                LIMIT ?
                 """;
 
-        return runLibriQuery(sql, "%" + author + "%");
+        return streamLibriQuery(sql, ps -> {
+            for (int i = 1; i <= 4; i++) ps.setString(i, query);
+            ps.setInt(5, k);
+        }, sink);
     }
 
     /**
-     * Cerca libri per autore e anno preciso.
+     * Ricerca tollerante agli errori di battitura, dal risultato più vicino.
+     * Con l'indice in memoria usa la distanza di modifica sulle parole; sul DB
+     * si ripiega sulla similarità a trigrammi di pg_trgm (operatore %).
      */
-    public List<String[]> searchByAuthorAndYear(String author, int year) throws SQLException {
+    public int searchFuzzy(String query, int k, BookSink sink) throws SQLException, IOException {
+        return cached(cacheKey("FUZZY", SearchIndex.normalize(query), FIRST_PAGE, k), sink,
+                s -> loadFuzzy(query, k, s));
+    }
+
+    private int loadFuzzy(String query, int k, BookSink sink)
+            throws SQLException, IOException {
+        SearchIndex idx = SearchIndex.current();
+        if (idx != null) return idx.searchFuzzy(query, k, sink);
+
         String sql = """
                 SELECT id, titolo, autori, anno
                 FROM libri
-                WHERE LOWER(autori) LIKE LOWER(?)
-                  AND anno = ?
-                ORDER BY id
-                LIMIT 100
+                WHERE bk_norm(titolo) % bk_norm(?)
+                   OR bk_norm(autori) % bk_norm(?)
+                ORDER BY GREATEST(similarity(bk_norm(titolo), bk_norm(?)),
+                                  similarity(bk_norm(autori), bk_norm(?))) DESC,
+                         id
+                LIMIT ?
                 """;
 
-        List<String[]> results = new ArrayList<>();
+        return streamLibriQuery(sql, ps -> {
+            for (int i = 1; i <= 4; i++) ps.setString(i, query);
+            ps.setInt(5, k);
+        }, sink);
+    }
 
-        try (Connection conn = DbManager.getConnection();
-             PreparedStatement ps = conn.prepareStatement(sql)) {
+    /**
+     * Righe complete dei libri con gli id dati, con una sola query
+     * (usato da BookCache per gli id non in cache). Gli id inesistenti
+     * non producono righe.
+     */
+    public void findByIds(int[] ids, CatalogSink sink) throws SQLException {
+        if (ids.length == 0) return;
+        String sql = "SELECT id, titolo, autori, anno, editore, categoria FROM libri WHERE id = ANY(?)";
 
-            ps.setString(1, "%" + author + "%");
-            ps.setInt(2, year);
+        Integer[] boxed = new Integer[ids.length];
+        for (int i = 0; i < ids.length; i++) boxed[i] = ids[i];
 
+        try (Connection conn = DbManager.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setArray(1, conn.createArrayOf("integer", boxed));
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
-                    String idStr = String.valueOf(rs.getInt("id"));
-                    String titolo = rs.getString("titolo");
-                    String autori = rs.getString("autori");
-                    int anno = rs.getInt("anno");
-                    String annoStr = rs.wasNull() ? "" : String.valueOf(anno);
+                    int anno = rs.getInt(4);
+                    Integer annoOrNull = rs.wasNull() ? null : anno;
+                    sink.accept(rs.getInt(1), rs.getString(2), rs.getString(3), annoOrNull,
+                            rs.getString(5), rs.getString(6));
+                }
+            }
+        }
+    }
+
+    /**
+     * Legge tutti i libri in ordine di id, a blocchi (usato per costruire SearchIndex).
+     */
+    public int scanAll(CatalogSink sink) throws SQLException {
+        String sql = "SELECT id, titolo, autori, anno, editore, categoria FROM libri ORDER BY id";
+        int count = 0;
 
-                    results.add(new String[]{idStr, titolo, autori, annoStr});
+        try (Connection conn = DbManager.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                ps.setFetchSize(SCAN_FETCH_SIZE);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        int anno = rs.getInt(4);
+                        Integer annoOrNull = rs.wasNull() ? null : anno;
+                        sink.accept(rs.getInt(1), rs.getString(2), rs.getString(3), annoOrNull,
+                                rs.getString(5), rs.getString(6));
+                        count++;
+                    }
                 }
             }
         }
+        return count;
+    }
+
+    /**
+     * Popolarità di ogni libro: valutazioni + presenze nelle librerie +
+     * volte in cui è stato consigliato. I libri mai usati non compaiono.
+     */
+    public Map<Integer, Integer> loadPopularity() throws SQLException {
+        String sql = """
+                SELECT id_libro, SUM(n)
+                FROM (SELECT id_libro, COUNT(*) AS n FROM valutazioni_libri GROUP BY id_libro
+                      UNION ALL
+                      SELECT id_libro, COUNT(*) FROM librerie_libri GROUP BY id_libro
+                      UNION ALL
+                      SELECT id_libro_consigliato, COUNT(*) FROM consigli_libri GROUP BY id_libro_consigliato) p
+                GROUP BY id_libro
+                """;
 
-        return results;
+        Map<Integer, Integer> out = new HashMap<>();
+        try (Connection conn = DbManager.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql);
+             ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                out.put(rs.getInt(1), rs.getInt(2));
+            }
+        }
+        return out;
     }
 
     // ---------- UTIL COMUNE ----------
 
-    private List<String[]> runLibriQuery(String sql, String param1) throws SQLException {
-        List<String[]> results = new ArrayList<>();
-
-        try (Connection conn = DbManager.getConnection();
-             PreparedStatement ps = conn.prepareStatement(sql)) {
+    /**
+     * Protegge i caratteri speciali di LIKE, così '%' e '_' digitati
+     * dall'utente vengono cercati come testo e non come jolly.
+     */
+    static String likeLiteral(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 8);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' || c == '%' || c == '_') sb.append('\\');
+            sb.append(c);
+        }
+        return sb.toString();
+    }
 
-            ps.setString(1, param1);
+    private int streamLibriQuery(String sql, Binder binder, BookSink sink) throws SQLException, IOException {
+        int count = 0;
 
-            try (ResultSet rs = ps.executeQuery()) {
-                while (rs.next()) {
-                    String idStr = String.valueOf(rs.getInt("id"));
-                    String titolo = rs.getString("titolo");
-                    String autori = rs.getString("autori");
-                    int anno = rs.getInt("anno");
-                    String annoStr = rs.wasNull() ? "" : String.valueOf(anno);
+        // senza transazione il driver PostgreSQL ignora la fetch size e carica tutto;
+        // la transazione (di sola lettura) viene chiusa dal pool alla restituzione
+        try (Connection conn = DbManager.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                ps.setFetchSize(FETCH_SIZE);
+                binder.bind(ps);
 
-                    results.add(new String[]{idStr, titolo, autori, annoStr});
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        int id = rs.getInt(1);
+                        String titolo = rs.getString(2);
+                        String autori = rs.getString(3);
+                        int anno = rs.getInt(4);
+                        sink.accept(id, titolo, autori, rs.wasNull() ? null : anno);
+                        count++;
+                    }
                 }
             }
         }
 
-        return results;
+        return count;
     }
 }
@@ -0,0 +1,363 @@
+package bookrecommender.server;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Modalità server non bloccante (opzionale, si attiva con --nio).
+ *
+ * Un solo thread "selector" accetta le connessioni, legge i byte dai
+ * SocketChannel non bloccanti, li spezza in righe e scrive le risposte.
+ * I comandi decodificati passano a un pool di worker (fisso, piccolo) che
+ * li esegue con ClientHandler.processLine(): così migliaia di client
+ * inattivi non occupano un thread ciascuno.
+ *
+ * Regole:
+ *  - per ogni sessione i comandi sono eseguiti uno alla volta e in ordine
+ *  - se una sessione accumula troppi byte da inviare, si smette di leggere
+ *    da quel client finché il buffer in uscita non si svuota
+ *  - oltre NIO_MAX_CONNECTIONS il client riceve "ERR BUSY" come in modalità classica
+ */
+public class NioServer {
+
+    /** Dimensione oltre la quale le risposte accumulate vengono inviate comunque. */
+    private static final int OUT_CHUNK = 32 * 1024;
+
+    private final int port;
+    private final int backlog;
+    private final int maxConnections;
+    private final int maxLineBytes;
+    private final long maxPendingOutBytes;
+
+    private final ExecutorService workers;
+    private final Selector selector;
+    private final Queue<Session> dirty = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuf = ByteBuffer.allocateDirect(64 * 1024);
+    private final AtomicInteger clientCounter = new AtomicInteger(1);
+
+    private int openConnections = 0; // solo thread selector
+
+    public NioServer(int port, int backlog, int maxConnections, int workerThreads,
+                     int maxLineBytes, long maxPendingOutBytes) throws IOException {
+        this.port = port;
+        this.backlog = backlog;
+        this.maxConnections = maxConnections;
+        this.maxLineBytes = maxLineBytes;
+        this.maxPendingOutBytes = maxPendingOutBytes;
+        this.selector = Selector.open();
+
+        AtomicInteger threadCounter = new AtomicInteger(1);
+        this.workers = Executors.newFixedThreadPool(workerThreads, r -> {
+            Thread t = new Thread(r, "NioWorker-" + threadCounter.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /** Stato di una connessione. */
+    private final class Session {
+        final int id;
+        final SocketChannel ch;
+        final ClientHandler handler;
+        SelectionKey key;
+
+        // input: scritto solo dal thread selector
+        byte[] inBuf = new byte[1024];
+        int inLen = 0;
+        volatile boolean eof = false;
+
+        // comandi in attesa: protetti da "this"
+        final ArrayDeque<String> pending = new ArrayDeque<>();
+        boolean running = false;
+
+        // output: prodotto dai worker, consumato dal selector
+        final Queue<ByteBuffer> outQ = new ConcurrentLinkedQueue<>();
+        final AtomicLong outBytes = new AtomicLong();
+        final AtomicBoolean markedDirty = new AtomicBoolean();
+        volatile boolean closeAfterFlush = false;
+        boolean closed = false;
+
+        Session(int id, SocketChannel ch) {
+            this.id = id;
+            this.ch = ch;
+            this.handler = new ClientHandler(id);
+        }
+    }
+
+    /** Ciclo principale: non ritorna finché il selector resta aperto. */
+    public void run() throws IOException {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.configureBlocking(false);
+            server.bind(new InetSocketAddress(port), backlog);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+            System.out.println("[OK] Server NIO in ascolto sulla porta " + port
+                    + " (max connessioni " + maxConnections + ")");
+
+            while (selector.isOpen()) {
+                selector.select();
+                applyDirty();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey k = it.next();
+                    it.remove();
+                    if (!k.isValid()) continue;
+
+                    if (k.isAcceptable()) {
+                        onAccept(server);
+                        continue;
+                    }
+                    Session s = (Session) k.attachment();
+                    try {
+                        if (k.isReadable()) onRead(s);
+                        if (k.isValid() && k.isWritable()) onWrite(s);
+                        if (!s.closed) updateInterest(s);
+                    } catch (IOException e) {
+                        ServerLog.warn("[Client " + s.id + "] Errore I/O: " + e.getMessage());
+                        close(s);
+                    }
+                }
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    // ==== ACCEPT / READ / WRITE (thread selector) ====
+
+    private void onAccept(ServerSocketChannel server) throws IOException {
+        SocketChannel ch;
+        while ((ch = server.accept()) != null) {
+            int id = clientCounter.getAndIncrement();
+            if (openConnections >= maxConnections) {
+                ServerLog.warn("[Client " + id + "] Rifiutato: limite di "
+                        + maxConnections + " connessioni raggiunto");
+                try (SocketChannel rejected = ch) {
+                    rejected.configureBlocking(false);
+                    rejected.write(ByteBuffer.wrap("ERR BUSY\n".getBytes(StandardCharsets.UTF_8)));
+                } catch (IOException ignored) {}
+                continue;
+            }
+
+            ch.configureBlocking(false);
+            Session s = new Session(id, ch);
+            try {
+                s.key = ch.register(selector, SelectionKey.OP_READ, s);
+            } catch (ClosedChannelException e) {
+                continue;
+            }
+            openConnections++;
+            ServerLog.info("[Client " + id + "] Connesso da " + ch.getRemoteAddress() + " (NIO)");
+            enqueue(s, ClientHandler.WELCOME);
+            updateInterest(s);
+        }
+    }
+
+    private void onRead(Session s) throws IOException {
+        while (true) {
+            readBuf.clear();
+            int n = s.ch.read(readBuf);
+            if (n < 0) {
+                s.eof = true;
+                break;
+            }
+            if (n == 0) break;
+
+            readBuf.flip();
+            ensureCapacity(s, s.inLen + n);
+            readBuf.get(s.inBuf, s.inLen, n);
+            int scanFrom = s.inLen;
+            s.inLen += n;
+            extractLines(s, scanFrom);
+            if (s.closeAfterFlush) break;
+        }
+
+        if (s.eof) {
+            synchronized (s) {
+                if (!s.running) s.closeAfterFlush = true;
+            }
+        }
+    }
+
+    /** Estrae le righe complete da inBuf e le passa ai worker. */
+    private void extractLines(Session s, int scanFrom) {
+        int start = 0;
+        ArrayDeque<String> lines = null;
+        for (int i = scanFrom; i < s.inLen; i++) {
+            if (s.inBuf[i] != '\n') continue;
+            int end = i;
+            if (end > start && s.inBuf[end - 1] == '\r') end--;
+            if (lines == null) lines = new ArrayDeque<>();
+            lines.add(new String(s.inBuf, start, end - start, StandardCharsets.UTF_8));
+            start = i + 1;
+        }
+
+        if (start > 0) {
+            System.arraycopy(s.inBuf, start, s.inBuf, 0, s.inLen - start);
+            s.inLen -= start;
+        }
+        if (s.inLen > maxLineBytes) {
+            enqueue(s, "ERR Riga troppo lunga\n");
+            s.inLen = 0;
+            s.closeAfterFlush = true;
+        }
+        if (lines != null) submit(s, lines);
+    }
+
+    private void ensureCapacity(Session s, int needed) {
+        if (needed <= s.inBuf.length) return;
+        int cap = s.inBuf.length;
+        while (cap < needed) cap *= 2;
+        byte[] bigger = new byte[cap];
+        System.arraycopy(s.inBuf, 0, bigger, 0, s.inLen);
+        s.inBuf = bigger;
+    }
+
+    private void onWrite(Session s) throws IOException {
+        ByteBuffer b;
+        while ((b = s.outQ.peek()) != null) {
+            int before = b.remaining();
+            s.ch.write(b);
+            s.outBytes.addAndGet(b.remaining() - before);
+            if (b.hasRemaining()) return; // socket pieno: riprova al prossimo OP_WRITE
+            s.outQ.poll();
+        }
+    }
+
+    /** Ricalcola gli interest ops in base allo stato della sessione. */
+    private void updateInterest(Session s) {
+        if (s.closed || !s.key.isValid()) return;
+        boolean hasOut = !s.outQ.isEmpty();
+        if (!hasOut && s.closeAfterFlush) {
+            close(s);
+            return;
+        }
+        int ops = 0;
+        if (!s.eof && !s.closeAfterFlush && s.outBytes.get() < maxPendingOutBytes) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (hasOut) ops |= SelectionKey.OP_WRITE;
+        s.key.interestOps(ops);
+    }
+
+    private void applyDirty() {
+        Session s;
+        while ((s = dirty.poll()) != null) {
+            s.markedDirty.set(false);
+            updateInterest(s);
+        }
+    }
+
+    private void close(Session s) {
+        if (s.closed) return;
+        s.closed = true;
+        openConnections--;
+        synchronized (s) {
+            s.pending.clear();
+        }
+        s.key.cancel();
+        try { s.ch.close(); } catch (IOException ignored) {}
+        ServerLog.info("[Client " + s.id + "] Disconnesso.");
+    }
+
+    // ==== WORKER ====
+
+    private void submit(Session s, ArrayDeque<String> lines) {
+        synchronized (s) {
+            s.pending.addAll(lines);
+            if (s.running) return;
+            s.running = true;
+        }
+        try {
+            workers.execute(() -> drain(s));
+        } catch (RejectedExecutionException e) {
+            synchronized (s) {
+                s.running = false;
+            }
+        }
+    }
+
+    /**
+     * Esegue in ordine i comandi in attesa della sessione. Le risposte di
+     * comandi arrivati in pipeline vengono accodate in un unico blocco,
+     * che parte quando non restano comandi (o supera OUT_CHUNK caratteri).
+     */
+    private void drain(Session s) {
+        StringWriter sw = new StringWriter();
+        BufferedWriter out = new BufferedWriter(sw);
+        while (true) {
+            String line;
+            synchronized (s) {
+                line = s.pending.poll();
+                if (line == null) {
+                    s.running = false;
+                    if (s.eof) s.closeAfterFlush = true;
+                }
+            }
+            if (line == null) break;
+
+            boolean keepOpen;
+            try {
+                keepOpen = s.handler.processLine(line, out);
+                out.flush();
+            } catch (IOException e) {
+                keepOpen = false;
+            }
+
+            boolean more;
+            synchronized (s) {
+                more = !s.pending.isEmpty();
+            }
+            if (!more || !keepOpen || sw.getBuffer().length() >= OUT_CHUNK) {
+                enqueue(s, sw.toString());
+                sw.getBuffer().setLength(0);
+                markDirty(s);
+            }
+
+            if (!keepOpen) {
+                synchronized (s) {
+                    s.pending.clear();
+                    s.running = false;
+                }
+                s.closeAfterFlush = true;
+                break;
+            }
+        }
+        enqueue(s, sw.toString());
+        markDirty(s);
+    }
+
+    private void enqueue(Session s, String text) {
+        if (text.isEmpty()) return;
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        s.outBytes.addAndGet(bytes.length);
+        s.outQ.add(ByteBuffer.wrap(bytes));
+    }
+
+    /** Chiede al thread selector di ricalcolare gli interest ops della sessione. */
+    private void markDirty(Session s) {
+        if (s.markedDirty.compareAndSet(false, true)) {
+            dirty.add(s);
+            selector.wakeup();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package bookrecommender.server;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ricostruzione completa di statistiche_valutazioni da valutazioni_libri.
+ *
+ *   java -cp ... bookrecommender.server.ReviewStatsRebuild [thread]
+ *
+ * Di norma la tabella è aggiornata da ValutazioniDao.insertReview; questo
+ * comando serve dopo import massivi o modifiche fatte a mano alle
+ * valutazioni. L'intervallo degli id dei libri viene diviso in fette
+ * ricalcolate in parallelo, ognuna con la sua connessione e la sua
+ * transazione (vedi ValutazioniDao.rebuildStats): ogni fetta blocca gli
+ * inserimenti di valutazioni solo per il tempo del suo ricalcolo e il
+ * server può restare acceso.
+ */
+public final class ReviewStatsRebuild {
+
+    private static final int SLICES_PER_THREAD = 4;
+
+    private ReviewStatsRebuild() {
+    }
+
+    public static void main(String[] args) {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : ServerConfig.REVIEW_STATS_REBUILD_THREADS;
+        try {
+            rebuild(threads);
+        } catch (Exception e) {
+            System.err.println("[ERRORE] Ricostruzione delle statistiche fallita: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        } finally {
+            DbManager.shutdown();
+        }
+    }
+
+    /** @return libri con statistiche dopo la ricostruzione */
+    static long rebuild(int threads) throws SQLException, InterruptedException, ExecutionException {
+        threads = Math.max(1, Math.min(threads, ServerConfig.DB_POOL_MAX));
+        long min, max;
+        try (Connection conn = DbManager.getConnection();
+             Statement st = conn.createStatement();
+             ResultSet rs = st.executeQuery("""
+                     SELECT MIN(lo), MAX(hi) FROM (
+                         SELECT MIN(id_libro) AS lo, MAX(id_libro) AS hi FROM valutazioni_libri
+                         UNION ALL
+                         SELECT MIN(id_libro), MAX(id_libro) FROM statistiche_valutazioni) r
+                     """)) {
+            rs.next();
+            min = rs.getLong(1);
+            if (rs.wasNull()) {
+                System.out.println("[OK] Nessuna valutazione: niente da ricostruire");
+                return 0;
+            }
+            max = rs.getLong(2);
+        }
+
+        int slices = threads * SLICES_PER_THREAD;
+        long width = Math.max(1, (max - min + slices) / slices);
+        AtomicLong books = new AtomicLong();
+        long t0 = System.nanoTime();
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "ReviewStatsRebuild");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<?>> jobs = new ArrayList<>();
+            for (long from = min; from <= max; from += width) {
+                int lo = (int) from;
+                int hi = (int) Math.min(max, from + width - 1);
+                jobs.add(pool.submit(() -> {
+                    books.addAndGet(rebuildSlice(lo, hi));
+                    return null;
+                }));
+            }
+            for (Future<?> f : jobs) f.get();
+        } finally {
+            pool.shutdownNow();
+        }
+
+        System.out.printf("[OK] Statistiche di %d libri ricostruite in %.1f s (%d thread)%n",
+                books.get(), (System.nanoTime() - t0) / 1e9, threads);
+        return books.get();
+    }
+
+    private static int rebuildSlice(int from, int to) throws SQLException {
+        try (Connection conn = DbManager.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                int n = ValutazioniDao.rebuildStats(conn, from, to);
+                conn.commit();
+                return n;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+}
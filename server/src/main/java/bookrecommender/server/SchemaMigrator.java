@@ -0,0 +1,259 @@
+package bookrecommender.server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Migrazioni di schema numerate, applicate all'avvio del server.
+ *
+ * Ogni file NNN_descrizione.sql in SCHEMA_MIGRATIONS_DIR è una migrazione
+ * con versione NNN; quelle non ancora registrate in schema_migrazioni
+ * vengono eseguite in ordine di versione e poi registrate insieme al loro
+ * hash SHA-256 (se un file già applicato cambia, viene segnalato).
+ *
+ * Una migrazione gira in una sola transazione, a meno che contenga
+ * CONCURRENTLY: CREATE INDEX CONCURRENTLY non blocca le scritture ma non
+ * può stare in una transazione, quindi le sue istruzioni vengono eseguite
+ * una alla volta. Per questo le migrazioni di quel tipo devono poter essere
+ * rilanciate senza danni (IF NOT EXISTS), nel caso si fermino a metà.
+ *
+ * Un advisory lock impedisce a due server avviati insieme di applicare le
+ * stesse migrazioni. Si può anche lanciare a mano:
+ *
+ *   java -cp ... bookrecommender.server.SchemaMigrator
+ */
+public final class SchemaMigrator {
+
+    private static final Pattern FILE_NAME = Pattern.compile("(\\d+)_[\\w-]+\\.sql");
+    private static final Pattern DOLLAR_TAG = Pattern.compile("\\$([A-Za-z_][A-Za-z0-9_]*)?\\$");
+    private static final Pattern CONCURRENTLY = Pattern.compile("(?i)\\bCONCURRENTLY\\b");
+    private static final long LOCK_KEY = 0x42524D49_47524154L; // "BRMIGRAT"
+
+    private static final String TABLE_DDL = """
+            CREATE TABLE IF NOT EXISTS schema_migrazioni (
+                versione  INTEGER PRIMARY KEY,
+                nome      TEXT NOT NULL,
+                sha256    CHAR(64) NOT NULL,
+                applicata TIMESTAMPTZ NOT NULL DEFAULT now()
+            )
+            """;
+
+    /** Una migrazione letta da file. */
+    private record Migration(int version, String name, String sha256, List<String> statements) {
+        boolean transactional() {
+            return statements.stream().noneMatch(s -> CONCURRENTLY.matcher(s).find());
+        }
+    }
+
+    private SchemaMigrator() {
+    }
+
+    public static void main(String[] args) {
+        try {
+            migrate(Paths.get(args.length > 0 ? args[0] : ServerConfig.SCHEMA_MIGRATIONS_DIR));
+        } catch (Exception e) {
+            System.err.println("[ERRORE] Migrazione dello schema fallita: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        } finally {
+            DbManager.shutdown();
+        }
+    }
+
+    /**
+     * Applica le migrazioni di dir non ancora registrate.
+     *
+     * @return numero di migrazioni applicate
+     */
+    public static int migrate(Path dir) throws SQLException, IOException {
+        if (!Files.isDirectory(dir)) {
+            System.err.println("[ATTENZIONE] Cartella migrazioni non trovata: " + dir.toAbsolutePath());
+            return 0;
+        }
+        List<Migration> migrations = load(dir);
+
+        try (Connection conn = DbManager.getConnection()) {
+            try (Statement st = conn.createStatement()) {
+                st.execute(TABLE_DDL);
+            }
+            lock(conn, true);
+            try {
+                Map<Integer, String> applied = applied(conn);
+                int count = 0;
+                for (Migration m : migrations) {
+                    String sha = applied.get(m.version());
+                    if (sha != null) {
+                        if (!sha.equals(m.sha256())) {
+                            System.err.println("[ATTENZIONE] La migrazione " + m.name()
+                                    + " è cambiata dopo essere stata applicata: non viene rieseguita.");
+                        }
+                        continue;
+                    }
+                    long t0 = System.nanoTime();
+                    apply(conn, m);
+                    count++;
+                    System.out.printf("[OK] Migrazione %s applicata in %.1f s%n", m.name(), (System.nanoTime() - t0) / 1e9);
+                }
+                if (count == 0) System.out.println("[OK] Schema aggiornato (" + migrations.size() + " migrazioni)");
+                return count;
+            } finally {
+                lock(conn, false);
+            }
+        }
+    }
+
+    private static void apply(Connection conn, Migration m) throws SQLException {
+        boolean tx = m.transactional();
+        if (tx) conn.setAutoCommit(false);
+        try (Statement st = conn.createStatement()) {
+            for (String sql : m.statements()) {
+                st.execute(sql);
+            }
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "INSERT INTO schema_migrazioni (versione, nome, sha256) VALUES (?, ?, ?)")) {
+                ps.setInt(1, m.version());
+                ps.setString(2, m.name());
+                ps.setString(3, m.sha256());
+                ps.executeUpdate();
+            }
+            if (tx) conn.commit();
+        } catch (SQLException e) {
+            if (tx) conn.rollback();
+            throw new SQLException("migrazione " + m.name() + ": " + e.getMessage(), e.getSQLState(), e);
+        } finally {
+            if (tx) conn.setAutoCommit(true);
+        }
+    }
+
+    private static Map<Integer, String> applied(Connection conn) throws SQLException {
+        Map<Integer, String> out = new HashMap<>();
+        try (Statement st = conn.createStatement();
+             ResultSet rs = st.executeQuery("SELECT versione, sha256 FROM schema_migrazioni")) {
+            while (rs.next()) out.put(rs.getInt(1), rs.getString(2));
+        }
+        return out;
+    }
+
+    private static void lock(Connection conn, boolean acquire) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(
+                acquire ? "SELECT pg_advisory_lock(?)" : "SELECT pg_advisory_unlock(?)")) {
+            ps.setLong(1, LOCK_KEY);
+            ps.execute();
+        }
+    }
+
+    // ==== LETTURA DEI FILE ====
+
+    private static List<Migration> load(Path dir) throws IOException {
+        TreeMap<Integer, Migration> byVersion = new TreeMap<>();
+        List<Path> files;
+        try (Stream<Path> s = Files.list(dir)) {
+            files = s.filter(Files::isRegularFile).toList();
+        }
+        for (Path f : files) {
+            String name = f.getFileName().toString();
+            Matcher m = FILE_NAME.matcher(name);
+            if (!m.matches()) continue;
+            int version = Integer.parseInt(m.group(1));
+            byte[] bytes = Files.readAllBytes(f);
+            Migration mig = new Migration(version, name, sha256(bytes),
+                    splitStatements(new String(bytes, StandardCharsets.UTF_8)));
+            Migration prev = byVersion.put(version, mig);
+            if (prev != null) {
+                throw new IOException("Due migrazioni con versione " + version + ": " + prev.name() + ", " + name);
+            }
+        }
+        return new ArrayList<>(byVersion.values());
+    }
+
+    /**
+     * Divide uno script in istruzioni sui ';' che non stanno dentro
+     * stringhe, identificatori tra virgolette, blocchi $tag$ o commenti.
+     * I commenti vengono tolti.
+     */
+    static List<String> splitStatements(String sql) {
+        List<String> out = new ArrayList<>();
+        StringBuilder cur = new StringBuilder();
+        int n = sql.length();
+        int i = 0;
+        while (i < n) {
+            char c = sql.charAt(i);
+            char next = i + 1 < n ? sql.charAt(i + 1) : 0;
+            if (c == '-' && next == '-') {
+                int e = sql.indexOf('\n', i);
+                i = e < 0 ? n : e;
+            } else if (c == '/' && next == '*') {
+                int e = sql.indexOf("*/", i + 2);
+                i = e < 0 ? n : e + 2;
+                cur.append(' ');
+            } else if (c == '\'' || c == '"') {
+                int e = i + 1;
+                while (e < n) {
+                    if (sql.charAt(e) == c) {
+                        if (e + 1 < n && sql.charAt(e + 1) == c) {
+                            e += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    e++;
+                }
+                e = Math.min(e + 1, n);
+                cur.append(sql, i, e);
+                i = e;
+            } else if (c == '$' && dollarTag(sql, i) != null) {
+                String tag = dollarTag(sql, i);
+                int e = sql.indexOf(tag, i + tag.length());
+                e = e < 0 ? n : e + tag.length();
+                cur.append(sql, i, e);
+                i = e;
+            } else if (c == ';') {
+                addStatement(out, cur);
+                i++;
+            } else {
+                cur.append(c);
+                i++;
+            }
+        }
+        addStatement(out, cur);
+        return out;
+    }
+
+    private static String dollarTag(String sql, int at) {
+        Matcher m = DOLLAR_TAG.matcher(sql).region(at, sql.length());
+        return m.lookingAt() ? m.group() : null;
+    }
+
+    private static void addStatement(List<String> out, StringBuilder cur) {
+        String s = cur.toString().strip();
+        if (!s.isEmpty()) out.add(s);
+        cur.setLength(0);
+    }
+
+    private static String sha256(byte[] bytes) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
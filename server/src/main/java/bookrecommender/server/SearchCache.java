@@ -0,0 +1,194 @@
+package bookrecommender.server;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache dei risultati di ricerca, condivisa da tutte le sessioni, davanti a
+ * LibriDao: le ricerche popolari ripetute con gli stessi parametri vengono
+ * servite dalla memoria senza toccare né JDBC né l'indice.
+ *
+ * La chiave è il comando con i parametri già normalizzati (stessa
+ * normalizzazione di bk_norm, quindi "Città" e "citta" coincidono); il
+ * valore sono le righe prodotte. La cache è LRU e limitata nel numero
+ * totale di righe (SEARCH_CACHE_MAX_ROWS); ogni voce scade dopo
+ * SEARCH_CACHE_TTL_MS. Risultati con più di SEARCH_CACHE_MAX_ENTRY_ROWS
+ * righe non vengono memorizzati.
+ *
+ * Quando il catalogo cambia (rilevato dal controllo periodico di SearchIndex,
+ * attivo anche a indice disattivato, o segnalato con reloadAsync) la cache
+ * viene svuotata con {@link #invalidateAll()}. Una
+ * ricerca iniziata prima dello svuotamento non salva il suo risultato: ogni
+ * voce porta la generazione letta all'inizio della ricerca.
+ */
+final class SearchCache {
+
+    /** Ricerca eseguita in caso di miss. */
+    @FunctionalInterface
+    interface Loader {
+        int run(LibriDao.BookSink sink) throws SQLException, IOException;
+    }
+
+    private static final class Row {
+        final int id;
+        final String titolo;
+        final String autori;
+        final Integer anno;
+
+        Row(int id, String titolo, String autori, Integer anno) {
+            this.id = id;
+            this.titolo = titolo;
+            this.autori = autori;
+            this.anno = anno;
+        }
+    }
+
+    private static final class Entry {
+        final Row[] rows;
+        final int count;
+        final long expiresAt;
+
+        Entry(Row[] rows, int count, long expiresAt) {
+            this.rows = rows;
+            this.count = count;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static final SearchCache SHARED = new SearchCache(
+            ServerConfig.SEARCH_CACHE_MAX_ROWS,
+            ServerConfig.SEARCH_CACHE_MAX_ENTRY_ROWS,
+            ServerConfig.SEARCH_CACHE_TTL_MS);
+
+    private final int maxRows;
+    private final int maxEntryRows;
+    private final long ttlNanos;
+
+    // accessOrder = true: l'iterazione parte dalla voce usata meno di recente
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private int totalRows = 0;
+    private long generation = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    SearchCache(int maxRows, int maxEntryRows, long ttlMs) {
+        this.maxRows = maxRows;
+        this.maxEntryRows = maxEntryRows;
+        this.ttlNanos = ttlMs * 1_000_000L;
+    }
+
+    static SearchCache shared() {
+        return SHARED;
+    }
+
+    /** Svuota la cache condivisa: da chiamare dopo ogni modifica del catalogo. */
+    static void invalidateAll() {
+        SHARED.clear();
+    }
+
+    /**
+     * Consegna a sink il risultato per key: dalla cache se presente e non
+     * scaduto, altrimenti eseguendo loader e memorizzandone le righe.
+     *
+     * @return il valore restituito dalla ricerca (numero di righe)
+     */
+    int get(String key, LibriDao.BookSink sink, Loader loader) throws SQLException, IOException {
+        if (maxRows <= 0) return loader.run(sink);
+
+        Entry e;
+        long gen;
+        synchronized (this) {
+            e = entries.get(key);
+            if (e != null && e.expiresAt - System.nanoTime() < 0) {
+                remove(key, e);
+                e = null;
+            }
+            gen = generation;
+        }
+        if (e != null) {
+            hits.incrementAndGet();
+            for (Row r : e.rows) sink.accept(r.id, r.titolo, r.autori, r.anno);
+            return e.count;
+        }
+
+        misses.incrementAndGet();
+        Recorder rec = new Recorder(sink, maxEntryRows);
+        int count = loader.run(rec);
+        if (rec.rows != null) put(key, gen, rec.rows.toArray(new Row[0]), count);
+        return count;
+    }
+
+    private synchronized void put(String key, long gen, Row[] rows, int count) {
+        if (gen != generation || rows.length > maxRows) return;
+        Entry old = entries.put(key, new Entry(rows, count, System.nanoTime() + ttlNanos));
+        if (old != null) totalRows -= old.rows.length;
+        totalRows += rows.length;
+
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (totalRows > maxRows && it.hasNext()) {
+            Map.Entry<String, Entry> eldest = it.next();
+            it.remove();
+            totalRows -= eldest.getValue().rows.length;
+            evictions.incrementAndGet();
+        }
+    }
+
+    private void remove(String key, Entry e) {
+        entries.remove(key);
+        totalRows -= e.rows.length;
+        evictions.incrementAndGet();
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        totalRows = 0;
+        generation++;
+        invalidations.incrementAndGet();
+    }
+
+    /** Contatori per la diagnostica (comando CACHE_STATS). */
+    String stats() {
+        int size, rows;
+        synchronized (this) {
+            size = entries.size();
+            rows = totalRows;
+        }
+        long h = hits.get(), m = misses.get();
+        long ratio = h + m == 0 ? 0 : h * 100 / (h + m);
+        return "hits=" + h + " misses=" + m + " hitRatio=" + ratio + "%"
+                + " entries=" + size + " rows=" + rows + "/" + maxRows
+                + " evictions=" + evictions.get() + " invalidations=" + invalidations.get();
+    }
+
+    /** Passa le righe al sink vero e intanto le copia, finché non superano il limite. */
+    private static final class Recorder implements LibriDao.BookSink {
+        private final LibriDao.BookSink target;
+        private final int max;
+        List<Row> rows = new ArrayList<>();
+
+        Recorder(LibriDao.BookSink target, int max) {
+            this.target = target;
+            this.max = max;
+        }
+
+        @Override
+        public void accept(int id, String titolo, String autori, Integer anno) throws IOException {
+            target.accept(id, titolo, autori, anno);
+            if (rows == null) return;
+            if (rows.size() >= max) {
+                rows = null; // troppo grande per la cache
+                return;
+            }
+            rows.add(new Row(id, titolo, autori, anno));
+        }
+    }
+}
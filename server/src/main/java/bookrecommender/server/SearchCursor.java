@@ -0,0 +1,41 @@
+package bookrecommender.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Token di continuazione per le ricerche paginate (SEARCH_PAGE).
+ *
+ * Per il client è una stringa opaca da rimandare così com'è; dentro c'è
+ * l'ultimo id della pagina precedente, da cui riparte la query keyset.
+ * Il prefisso di versione permette di cambiare formato in futuro.
+ */
+public final class SearchCursor {
+
+    private static final String VERSION = "k1:";
+
+    private SearchCursor() {
+        // utility class
+    }
+
+    public static String encode(long lastId) {
+        byte[] raw = (VERSION + lastId).getBytes(StandardCharsets.US_ASCII);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw);
+    }
+
+    /**
+     * @return l'ultimo id contenuto nel token
+     * @throws IllegalArgumentException se il token non è valido
+     */
+    public static long decode(String token) {
+        String raw = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.US_ASCII);
+        if (!raw.startsWith(VERSION)) {
+            throw new IllegalArgumentException("Versione del cursore non supportata");
+        }
+        try {
+            return Long.parseLong(raw.substring(VERSION.length()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Cursore non valido", e);
+        }
+    }
+}
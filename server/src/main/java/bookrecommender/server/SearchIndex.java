@@ -0,0 +1,1087 @@
+package bookrecommender.server;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Indice invertito in memoria sulla tabella libri.
+ *
+ * All'avvio il server legge tutti i libri una volta sola e costruisce, per
+ * titolo e autori normalizzati (minuscolo, senza accenti, come bk_norm() nel
+ * DB), le liste di posting dei trigrammi. Una ricerca "contiene q" interseca
+ * le liste dei trigrammi di q e verifica i candidati con contains(): la
+ * semantica resta quella di LIKE '%q%' e l'ordine quello per id, quindi la
+ * paginazione a chiave di LibriDao funziona identica.
+ *
+ * L'indice è immutabile: un aggiornamento ne costruisce uno nuovo e lo
+ * sostituisce in un colpo solo (riferimento volatile), senza lock sulle
+ * ricerche in corso. Il catalogo cambia di rado, quindi basta un controllo
+ * periodico sui contatori di PostgreSQL (pg_stat_user_tables) oppure una
+ * richiesta esplicita con {@link #reloadAsync()} da chi modifica libri. Lo
+ * stesso controllo svuota SearchCache e BookCache, anche con l'indice
+ * disattivato (SEARCH_INDEX_ENABLED = false).
+ *
+ * Oltre ai trigrammi tiene un indice a parole per campo (TermIndex), usato
+ * dalla ricerca per rilevanza {@link #searchRanked}: punteggio BM25 su titolo
+ * e autori con pesi diversi, bonus per frase esatta e per titolo che inizia
+ * con la query, e selezione dei primi K con un heap limitato.
+ *
+ * Infine costruisce SuggestIndex per i completamenti durante la digitazione
+ * (SUGGEST_PREFIX), pesati con la popolarità dei libri letta alla ricostruzione,
+ * e tiene categoria/editore in colonne di codici per le faccette di
+ * {@link #searchFaceted}.
+ */
+public final class SearchIndex {
+
+    private static final int[] EMPTY = new int[0];
+
+    private static volatile SearchIndex current;
+    private static volatile long lastChangeCounter = -1;
+    private static ScheduledExecutorService refresher;
+
+    // ---- documenti, in ordine di id (la posizione è il "doc id" interno) ----
+    private final int[] ids;
+    private final String[] titoli;
+    private final String[] autori;
+    private final int[] anni;          // NO_YEAR se assente
+
+    // ---- faccette, in colonne: codice del valore per documento (NO_VALUE se assente) ----
+    private final int[] categoriaCode;
+    private final int[] editoreCode;
+    private final String[] categorie;  // codice -> valore
+    private final String[] editori;
+    private final Map<String, Integer> categoriaCodes;  // valore -> codice (per i filtri)
+    private final Map<String, Integer> editoreCodes;
+    private final int[][] categoriaDocs;   // codice -> documenti, crescenti
+    private final int[][] editoreDocs;
+    private final int[] byYear;            // documenti con anno, ordinati per anno
+    private final int[] byYearValues;      // anno di byYear[i]
+    private final String[] titoliNorm;
+    private final String[] autoriNorm;
+
+    private final Map<Long, int[]> titoloPostings;
+    private final Map<Long, int[]> autoriPostings;
+
+    private final TermIndex titoloTerms;
+    private final TermIndex autoriTerms;
+
+    private final SuggestIndex suggest;
+
+    private static final int NO_YEAR = Integer.MIN_VALUE;
+    private static final int NO_VALUE = -1;
+
+    // ---- parametri del ranking ----
+    private static final double BM25_K1 = 1.2;
+    private static final double BM25_B = 0.75;
+    private static final double TITLE_BOOST = 2.0;
+    private static final double AUTHOR_BOOST = 1.0;
+    private static final double PREFIX_TERM_WEIGHT = 0.6;  // parola completata dal prefisso (ultima della query)
+    private static final int    MAX_PREFIX_TERMS = 64;     // espansioni massime di un prefisso
+    // i bonus moltiplicano il punteggio: un valore fisso conterebbe poco con idf alti
+    private static final double PHRASE_BONUS = 1.5;        // il titolo contiene la query intera
+    private static final double TITLE_PREFIX_BONUS = 1.25; // il titolo inizia con la query
+    private static final double[] FUZZY_WEIGHT = {1.0, 0.6, 0.35}; // per distanza di modifica 0, 1, 2
+
+    private SearchIndex(Builder b) {
+        int n = b.size;
+        this.ids = Arrays.copyOf(b.ids, n);
+        this.titoli = Arrays.copyOf(b.titoli, n);
+        this.autori = Arrays.copyOf(b.autori, n);
+        this.anni = Arrays.copyOf(b.anni, n);
+        this.categoriaCode = Arrays.copyOf(b.categoriaCode, n);
+        this.editoreCode = Arrays.copyOf(b.editoreCode, n);
+        this.categorie = b.categorie.keySet().toArray(new String[0]);
+        this.editori = b.editori.keySet().toArray(new String[0]);
+        this.categoriaCodes = b.categorie;
+        this.editoreCodes = b.editori;
+        this.categoriaDocs = invert(categoriaCode, categorie.length);
+        this.editoreDocs = invert(editoreCode, editori.length);
+
+        Integer[] order = new Integer[n];
+        int withYear = 0;
+        for (int d = 0; d < n; d++) if (anni[d] != NO_YEAR) order[withYear++] = d;
+        Arrays.sort(order, 0, withYear, (x, y) -> Integer.compare(anni[x], anni[y]));
+        this.byYear = new int[withYear];
+        this.byYearValues = new int[withYear];
+        for (int i = 0; i < withYear; i++) {
+            byYear[i] = order[i];
+            byYearValues[i] = anni[order[i]];
+        }
+        this.titoliNorm = Arrays.copyOf(b.titoliNorm, n);
+        this.autoriNorm = Arrays.copyOf(b.autoriNorm, n);
+        this.titoloPostings = b.titoloPostings.freeze();
+        this.autoriPostings = b.autoriPostings.freeze();
+        this.titoloTerms = b.titoloTerms.build();
+        this.autoriTerms = b.autoriTerms.build();
+        this.suggest = b.suggest.build();
+    }
+
+    // ==== CICLO DI VITA ====
+
+    /** Indice corrente, oppure null se non è (ancora) disponibile. */
+    public static SearchIndex current() {
+        return current;
+    }
+
+    /**
+     * Costruisce l'indice (bloccante) e avvia il controllo periodico degli
+     * aggiornamenti. Se il caricamento fallisce le ricerche restano sul DB.
+     * Il controllo parte anche a indice disattivato: serve a svuotare
+     * SearchCache e BookCache quando il catalogo cambia.
+     */
+    public static synchronized void start() {
+        if (refresher != null) return;
+        if (ServerConfig.SEARCH_INDEX_ENABLED) {
+            reload();
+        } else {
+            try {
+                lastChangeCounter = readChangeCounter();
+            } catch (SQLException e) {
+                ServerLog.warn("[SearchIndex] Controllo aggiornamenti fallito: " + e.getMessage());
+            }
+        }
+        refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "SearchIndex-refresh");
+            t.setDaemon(true);
+            return t;
+        });
+        refresher.scheduleWithFixedDelay(SearchIndex::refreshIfChanged,
+                ServerConfig.SEARCH_INDEX_REFRESH_MS, ServerConfig.SEARCH_INDEX_REFRESH_MS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Chiede una ricostruzione in background (es. dopo un import di libri).
+     * Le cache dei risultati e dei libri si svuotano subito e di nuovo a indice pronto.
+     */
+    public static void reloadAsync() {
+        SearchCache.invalidateAll();
+        BookCache.invalidateAll();
+        ScheduledExecutorService r = refresher;
+        if (r != null && ServerConfig.SEARCH_INDEX_ENABLED) r.execute(SearchIndex::reload);
+    }
+
+    /** Ricostruisce l'indice dal DB e lo sostituisce a quello corrente. */
+    static void reload() {
+        long t0 = System.nanoTime();
+        try {
+            long counter = readChangeCounter();
+            LibriDao dao = new LibriDao();
+            Builder b = new Builder(dao.loadPopularity());
+            dao.scanAll(b::add);
+            SearchIndex idx = new SearchIndex(b);
+            current = idx;
+            lastChangeCounter = counter;
+            SearchCache.invalidateAll();
+            BookCache.invalidateAll();
+            ServerLog.info("[SearchIndex] " + idx.ids.length + " libri indicizzati in "
+                    + (System.nanoTime() - t0) / 1_000_000 + " ms ("
+                    + idx.titoloPostings.size() + " trigrammi titolo, "
+                    + idx.autoriPostings.size() + " trigrammi autori, "
+                    + (idx.titoloTerms.termCount() + idx.autoriTerms.termCount()) + " parole, "
+                    + idx.suggest.size() + " completamenti)");
+        } catch (SQLException | RuntimeException e) {
+            ServerLog.warn("[SearchIndex] Costruzione dell'indice fallita, ricerche sul DB: " + e.getMessage());
+        }
+    }
+
+    /** Se libri è cambiata svuota le cache e, a indice attivo, lo ricostruisce. */
+    private static void refreshIfChanged() {
+        try {
+            long counter = readChangeCounter();
+            if (counter == lastChangeCounter) return;
+            // subito, anche se la ricostruzione dell'indice dovesse fallire
+            SearchCache.invalidateAll();
+            BookCache.invalidateAll();
+            if (ServerConfig.SEARCH_INDEX_ENABLED) {
+                reload();
+            } else {
+                lastChangeCounter = counter;
+                ServerLog.info("[SearchIndex] Catalogo modificato, cache svuotate");
+            }
+        } catch (SQLException e) {
+            ServerLog.warn("[SearchIndex] Controllo aggiornamenti fallito: " + e.getMessage());
+        }
+    }
+
+    /** Righe inserite + aggiornate + cancellate in libri secondo le statistiche di PostgreSQL. */
+    private static long readChangeCounter() throws SQLException {
+        String sql = "SELECT n_tup_ins + n_tup_upd + n_tup_del FROM pg_stat_user_tables "
+                + "WHERE relid = 'libri'::regclass";
+        try (Connection conn = DbManager.getConnection();
+             Statement st = conn.createStatement();
+             ResultSet rs = st.executeQuery(sql)) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    // ==== RICERCA ====
+
+    public int size() {
+        return ids.length;
+    }
+
+    /** Come LibriDao.searchByTitle: titoli che contengono query, id > afterId, ordinati per id. */
+    public int searchByTitle(String query, long afterId, int limit, LibriDao.BookSink sink) throws IOException {
+        return search(titoliNorm, titoloPostings, normalize(query), NO_YEAR, afterId, limit, sink);
+    }
+
+    public int searchByAuthor(String author, long afterId, int limit, LibriDao.BookSink sink) throws IOException {
+        return search(autoriNorm, autoriPostings, normalize(author), NO_YEAR, afterId, limit, sink);
+    }
+
+    public int searchByAuthorAndYear(String author, int year, long afterId, int limit, LibriDao.BookSink sink)
+            throws IOException {
+        return search(autoriNorm, autoriPostings, normalize(author), year, afterId, limit, sink);
+    }
+
+    private int search(String[] field, Map<Long, int[]> postings, String needle, int year,
+                       long afterId, int limit, LibriDao.BookSink sink) throws IOException {
+        int[] sent = {0};
+        forEachMatch(field, postings, needle, year, firstAfter(afterId), d -> {
+            emit(d, sink);
+            return ++sent[0] < limit;
+        });
+        return sent[0];
+    }
+
+    /** Riceve le posizioni dei documenti trovati; restituisce false per fermarsi. */
+    @FunctionalInterface
+    private interface DocVisitor {
+        boolean visit(int d) throws IOException;
+    }
+
+    /** Visita in ordine di id, a partire dalla posizione from, i documenti che contengono needle. */
+    private void forEachMatch(String[] field, Map<Long, int[]> postings, String needle, int year,
+                              int from, DocVisitor visitor) throws IOException {
+        if (needle.length() < 3) {
+            // troppo corta per i trigrammi: scansione lineare, comunque in memoria
+            for (int d = from; d < ids.length; d++) {
+                if (matches(field, d, needle, year) && !visitor.visit(d)) return;
+            }
+            return;
+        }
+
+        // liste dei trigrammi della query, dalla più corta (guida l'intersezione)
+        long[] grams = trigrams(needle);
+        int[][] lists = new int[grams.length][];
+        for (int i = 0; i < grams.length; i++) {
+            int[] p = postings.get(grams[i]);
+            if (p == null) return;
+            lists[i] = p;
+        }
+        Arrays.sort(lists, (a, b) -> Integer.compare(a.length, b.length));
+
+        int[] lead = lists[0];
+        int[] cursors = new int[lists.length];
+        int start = lowerBound(lead, 0, from);
+        for (int i = start; i < lead.length; i++) {
+            int d = lead[i];
+            if (!inAll(lists, cursors, d)) continue;
+            // i trigrammi da soli non garantiscono la sottostringa: verifica finale
+            if (matches(field, d, needle, year) && !visitor.visit(d)) return;
+        }
+    }
+
+    // ==== RICERCA A FACCETTE ====
+
+    /**
+     * Ricerca per titolo (o per autore se byAuthor) con i conteggi delle
+     * faccette. L'insieme dei risultati è un BitSet sulle posizioni dei
+     * documenti; i conteggi si fanno scorrendolo una volta sola e leggendo
+     * le colonne dei codici (categoria, editore, anno), senza oggetti per riga.
+     * I filtri restringono l'insieme prima dei conteggi.
+     *
+     * @param k         libri da restituire (i primi per id)
+     * @param topValues valori da restituire per ogni faccetta
+     */
+    public FacetedResult searchFaceted(boolean byAuthor, String query, FacetedResult.Filter filter,
+                                       int k, int topValues) throws IOException {
+        String needle = normalize(query);
+        int cat = filter.categoria == null ? NO_VALUE : categoriaCodes.getOrDefault(filter.categoria, NO_VALUE);
+        int ed = filter.editore == null ? NO_VALUE : editoreCodes.getOrDefault(filter.editore, NO_VALUE);
+        boolean unknownValue = (filter.categoria != null && cat == NO_VALUE)
+                || (filter.editore != null && ed == NO_VALUE);
+
+        BitSet hits = new BitSet(ids.length);
+        if (!unknownValue) {
+            forEachMatch(byAuthor ? autoriNorm : titoliNorm, byAuthor ? autoriPostings : titoloPostings,
+                    needle, NO_YEAR, 0, d -> {
+                        if (filter.categoria != null && categoriaCode[d] != cat) return true;
+                        if (filter.editore != null && editoreCode[d] != ed) return true;
+                        if (filter.decennio != null && (anni[d] == NO_YEAR || decade(anni[d]) != filter.decennio)) {
+                            return true;
+                        }
+                        hits.set(d);
+                        return true;
+                    });
+        }
+
+        int[] catCounts = new int[categorie.length];
+        int[] edCounts = new int[editori.length];
+        Map<Integer, Integer> decCounts = new HashMap<>();
+        List<FacetedResult.Hit> first = new ArrayList<>(Math.min(k, 64));
+        int total = 0;
+        for (int d = hits.nextSetBit(0); d >= 0; d = hits.nextSetBit(d + 1)) {
+            total++;
+            if (categoriaCode[d] != NO_VALUE) catCounts[categoriaCode[d]]++;
+            if (editoreCode[d] != NO_VALUE) edCounts[editoreCode[d]]++;
+            if (anni[d] != NO_YEAR) decCounts.merge(decade(anni[d]), 1, Integer::sum);
+            if (first.size() < k) {
+                first.add(new FacetedResult.Hit(ids[d], titoli[d], autori[d],
+                        anni[d] == NO_YEAR ? null : anni[d],
+                        editoreCode[d] == NO_VALUE ? null : editori[editoreCode[d]],
+                        categoriaCode[d] == NO_VALUE ? null : categorie[categoriaCode[d]]));
+            }
+        }
+
+        Map<String, List<FacetedResult.Value>> facets = new LinkedHashMap<>();
+        facets.put(FacetedResult.CATEGORIA, topValues(catCounts, categorie, topValues));
+        facets.put(FacetedResult.EDITORE, topValues(edCounts, editori, topValues));
+        List<FacetedResult.Value> decs = new ArrayList<>();
+        decCounts.forEach((dec, c) -> decs.add(new FacetedResult.Value(Integer.toString(dec), c)));
+        decs.sort((a, b) -> a.count != b.count ? Integer.compare(b.count, a.count) : a.value.compareTo(b.value));
+        facets.put(FacetedResult.DECENNIO, decs.size() > topValues ? decs.subList(0, topValues) : decs);
+        return new FacetedResult(total, first, facets);
+    }
+
+    private static int decade(int anno) {
+        return Math.floorDiv(anno, 10) * 10;
+    }
+
+    /** I valori con i conteggi più alti (a parità, in ordine alfabetico). */
+    private static List<FacetedResult.Value> topValues(int[] counts, String[] dict, int n) {
+        List<FacetedResult.Value> out = new ArrayList<>();
+        for (int code = 0; code < counts.length; code++) {
+            if (counts[code] > 0) out.add(new FacetedResult.Value(dict[code], counts[code]));
+        }
+        out.sort((a, b) -> a.count != b.count ? Integer.compare(b.count, a.count) : a.value.compareTo(b.value));
+        return out.size() > n ? new ArrayList<>(out.subList(0, n)) : out;
+    }
+
+    /** Colonna di codici -> per ogni codice i documenti che lo hanno, in ordine crescente. */
+    private static int[][] invert(int[] codes, int distinct) {
+        int[] counts = new int[distinct];
+        for (int c : codes) if (c != NO_VALUE) counts[c]++;
+        int[][] out = new int[distinct][];
+        for (int c = 0; c < distinct; c++) out[c] = new int[counts[c]];
+        int[] fill = new int[distinct];
+        for (int d = 0; d < codes.length; d++) {
+            int c = codes[d];
+            if (c != NO_VALUE) out[c][fill[c]++] = d;
+        }
+        return out;
+    }
+
+    // ==== LINGUAGGIO DI INTERROGAZIONE (SEARCH) ====
+
+    /**
+     * Esegue una query di SearchQuery: libri con id > afterId, ordinati per id,
+     * al massimo limit.
+     */
+    public int search(SearchQuery query, long afterId, int limit, LibriDao.BookSink sink) throws IOException {
+        int[] docs = plan(query.root).docs();
+        int sent = 0;
+        for (int i = lowerBound(docs, 0, firstAfter(afterId)); i < docs.length && sent < limit; i++) {
+            emit(docs[i], sink);
+            sent++;
+        }
+        return sent;
+    }
+
+    /**
+     * Piano di esecuzione di un nodo: una stima del numero di risultati,
+     * la lista dei documenti (calcolata solo se serve) e un test sul singolo
+     * documento. Un AND materializza solo il figlio più selettivo e verifica
+     * gli altri documento per documento, dal più selettivo al meno.
+     */
+    private abstract static class Plan {
+        abstract long estimate();
+        abstract int[] docs() throws IOException;
+        abstract boolean test(int d);
+    }
+
+    private Plan plan(SearchQuery.Node node) {
+        if (node instanceof SearchQuery.And) {
+            List<Plan> parts = new ArrayList<>();
+            for (SearchQuery.Node c : ((SearchQuery.And) node).children) parts.add(plan(c));
+            parts.sort(Comparator.comparingLong(Plan::estimate));
+            return new AndPlan(parts);
+        }
+        if (node instanceof SearchQuery.Or) {
+            List<Plan> parts = new ArrayList<>();
+            for (SearchQuery.Node c : ((SearchQuery.Or) node).children) parts.add(plan(c));
+            return new OrPlan(parts);
+        }
+        if (node instanceof SearchQuery.YearRange) {
+            SearchQuery.YearRange y = (SearchQuery.YearRange) node;
+            return new YearPlan(y.from, y.to);
+        }
+        SearchQuery.Text t = (SearchQuery.Text) node;
+        switch (t.field) {
+            case TITLE:
+                return new ContainsPlan(titoliNorm, titoloPostings, normalize(t.value));
+            case AUTHOR:
+                return new ContainsPlan(autoriNorm, autoriPostings, normalize(t.value));
+            case CATEGORY:
+                return new CodePlan(categoriaCode, categorie, categoriaDocs, t.value);
+            case PUBLISHER:
+                return new CodePlan(editoreCode, editori, editoreDocs, t.value);
+            default:
+                String needle = normalize(t.value);
+                return new OrPlan(List.of(
+                        new ContainsPlan(titoliNorm, titoloPostings, needle),
+                        new ContainsPlan(autoriNorm, autoriPostings, needle)));
+        }
+    }
+
+    private static final class AndPlan extends Plan {
+        private final List<Plan> parts;   // dal più selettivo
+
+        AndPlan(List<Plan> parts) {
+            this.parts = parts;
+        }
+
+        long estimate() {
+            return parts.get(0).estimate();
+        }
+
+        int[] docs() throws IOException {
+            int[] lead = parts.get(0).docs();
+            IntList out = new IntList();
+            for (int d : lead) {
+                if (test(d, 1)) out.add(d);
+            }
+            return Arrays.copyOf(out.data, out.size);
+        }
+
+        boolean test(int d) {
+            return test(d, 0);
+        }
+
+        private boolean test(int d, int from) {
+            for (int i = from; i < parts.size(); i++) {
+                if (!parts.get(i).test(d)) return false;
+            }
+            return true;
+        }
+    }
+
+    private static final class OrPlan extends Plan {
+        private final List<Plan> parts;
+
+        OrPlan(List<Plan> parts) {
+            this.parts = parts;
+        }
+
+        long estimate() {
+            long sum = 0;
+            for (Plan p : parts) sum += p.estimate();
+            return sum;
+        }
+
+        int[] docs() throws IOException {
+            int[] acc = new int[0];
+            for (Plan p : parts) acc = union(acc, p.docs());
+            return acc;
+        }
+
+        boolean test(int d) {
+            for (Plan p : parts) {
+                if (p.test(d)) return true;
+            }
+            return false;
+        }
+
+        /** Unione di due liste crescenti. */
+        private static int[] union(int[] a, int[] b) {
+            int[] out = new int[a.length + b.length];
+            int i = 0, j = 0, n = 0;
+            while (i < a.length && j < b.length) {
+                if (a[i] < b[j]) out[n++] = a[i++];
+                else if (a[i] > b[j]) out[n++] = b[j++];
+                else { out[n++] = a[i++]; j++; }
+            }
+            while (i < a.length) out[n++] = a[i++];
+            while (j < b.length) out[n++] = b[j++];
+            return Arrays.copyOf(out, n);
+        }
+    }
+
+    /** Titolo/autori contengono needle: liste dei trigrammi, stimate con la più corta. */
+    private final class ContainsPlan extends Plan {
+        private final String[] field;
+        private final Map<Long, int[]> postings;
+        private final String needle;
+
+        ContainsPlan(String[] field, Map<Long, int[]> postings, String needle) {
+            this.field = field;
+            this.postings = postings;
+            this.needle = needle;
+        }
+
+        long estimate() {
+            if (needle.length() < 3) return ids.length;
+            long best = ids.length;
+            for (long g : trigrams(needle)) {
+                int[] p = postings.get(g);
+                if (p == null) return 0;
+                best = Math.min(best, p.length);
+            }
+            return best;
+        }
+
+        int[] docs() throws IOException {
+            IntList out = new IntList();
+            forEachMatch(field, postings, needle, NO_YEAR, 0, d -> {
+                out.add(d);
+                return true;
+            });
+            return Arrays.copyOf(out.data, out.size);
+        }
+
+        boolean test(int d) {
+            return matches(field, d, needle, NO_YEAR);
+        }
+    }
+
+    /** Categoria/editore uguale al valore (senza distinguere maiuscole e accenti). */
+    private final class CodePlan extends Plan {
+        private final int[] column;
+        private final boolean[] accepted;   // per codice
+        private final int[][] docsByCode;
+        private long estimate = 0;
+
+        CodePlan(int[] column, String[] dict, int[][] docsByCode, String value) {
+            this.column = column;
+            this.docsByCode = docsByCode;
+            this.accepted = new boolean[dict.length];
+            String wanted = normalize(value);
+            for (int c = 0; c < dict.length; c++) {
+                if (normalize(dict[c]).equals(wanted)) {
+                    accepted[c] = true;
+                    estimate += docsByCode[c].length;
+                }
+            }
+        }
+
+        long estimate() {
+            return estimate;
+        }
+
+        int[] docs() {
+            int[] acc = new int[0];
+            for (int c = 0; c < accepted.length; c++) {
+                if (accepted[c]) acc = OrPlan.union(acc, docsByCode[c]);
+            }
+            return acc;
+        }
+
+        boolean test(int d) {
+            return column[d] != NO_VALUE && accepted[column[d]];
+        }
+    }
+
+    /** Anno in [from, to]: intervallo contiguo nell'ordinamento per anno. */
+    private final class YearPlan extends Plan {
+        private final int from;
+        private final int to;
+        private final int lo;
+        private final int hi;
+
+        YearPlan(int from, int to) {
+            this.from = from;
+            this.to = to;
+            this.lo = lowerBound(byYearValues, 0, from);
+            this.hi = to == Integer.MAX_VALUE ? byYearValues.length : lowerBound(byYearValues, lo, to + 1);
+        }
+
+        long estimate() {
+            return hi - lo;
+        }
+
+        int[] docs() {
+            int[] out = Arrays.copyOfRange(byYear, lo, hi);
+            Arrays.sort(out);
+            return out;
+        }
+
+        boolean test(int d) {
+            return anni[d] != NO_YEAR && anni[d] >= from && anni[d] <= to;
+        }
+    }
+
+    // ==== COMPLETAMENTI ====
+
+    /** I migliori n completamenti (titoli e autori) per il prefisso digitato. */
+    List<SuggestIndex.Completion> suggest(String prefix, int n) {
+        return suggest.complete(prefix, n);
+    }
+
+    // ==== RICERCA PER RILEVANZA ====
+
+    /**
+     * I k libri più pertinenti per la query, dal più pertinente.
+     * Un libro è candidato se almeno una parola della query (o, per l'ultima,
+     * una parola che inizia così) compare nel titolo o negli autori.
+     *
+     * @return numero di righe inviate al sink
+     */
+    public int searchRanked(String query, int k, LibriDao.BookSink sink) throws IOException {
+        String needle = normalize(query).trim();
+        List<String> words = TermIndex.tokenize(needle);
+        if (words.isEmpty() || k <= 0) return 0;
+
+        ScoreTable scores = new ScoreTable();
+        Set<String> seen = new HashSet<>();
+        for (int i = 0; i < words.size(); i++) {
+            String w = words.get(i);
+            if (!seen.add(w)) continue;
+            boolean last = i == words.size() - 1;
+            addTerm(titoloTerms, w, TITLE_BOOST, last, scores);
+            addTerm(autoriTerms, w, AUTHOR_BOOST, last, scores);
+        }
+
+        return emitTop(scores, needle, words.size(), k, sink);
+    }
+
+    /**
+     * Ricerca tollerante agli errori di battitura: ogni parola della query
+     * trova anche le parole del catalogo a distanza di modifica ridotta
+     * (vedi TermIndex.fuzzyMatches), con un peso che cala con la distanza.
+     * Il punteggio è lo stesso BM25 di searchRanked, moltiplicato per la
+     * frazione di parole della query trovate nel libro: con "stefen kng" un
+     * libro di Stephen King passa davanti a uno che corrisponde solo a "steven".
+     */
+    public int searchFuzzy(String query, int k, LibriDao.BookSink sink) throws IOException {
+        String needle = normalize(query).trim();
+        List<String> words = TermIndex.tokenize(needle);
+        if (words.isEmpty() || k <= 0) return 0;
+
+        ScoreTable scores = new ScoreTable();
+        ScoreTable matched = new ScoreTable(); // parole della query trovate, per libro
+        Set<String> seen = new HashSet<>();
+        for (String w : words) {
+            if (!seen.add(w)) continue;
+            int maxDist = TermIndex.maxEditsFor(w);
+            ScoreTable word = new ScoreTable();
+            addFuzzy(titoloTerms, w, maxDist, TITLE_BOOST, word);
+            addFuzzy(autoriTerms, w, maxDist, AUTHOR_BOOST, word);
+            for (int slot = 0; slot < word.capacity(); slot++) {
+                int d = word.docAt(slot);
+                if (d < 0) continue;
+                scores.add(d, word.scoreAt(slot));
+                matched.add(d, 1);
+            }
+        }
+        if (seen.size() > 1) {
+            ScoreTable coord = new ScoreTable();
+            for (int slot = 0; slot < scores.capacity(); slot++) {
+                int d = scores.docAt(slot);
+                if (d >= 0) coord.add(d, scores.scoreAt(slot) * matched.get(d) / seen.size());
+            }
+            scores = coord;
+        }
+        return emitTop(scores, needle, words.size(), k, sink);
+    }
+
+    private static void addFuzzy(TermIndex field, String word, int maxDist, double boost, ScoreTable scores) {
+        int[] matches = field.fuzzyMatches(word, maxDist);
+        for (int i = 0; i < matches.length; i += 2) {
+            addPostings(field, matches[i], boost * FUZZY_WEIGHT[matches[i + 1]], scores);
+        }
+    }
+
+    /** Sceglie i k migliori con un heap di minimo (O(n log k)) e li invia dal più pertinente. */
+    private int emitTop(ScoreTable scores, String needle, int wordCount, int k, LibriDao.BookSink sink)
+            throws IOException {
+        PriorityQueue<Hit> heap = new PriorityQueue<>(k + 1, Hit.WORST_FIRST);
+        for (int slot = 0; slot < scores.capacity(); slot++) {
+            int d = scores.docAt(slot);
+            if (d < 0) continue;
+            double score = scores.scoreAt(slot);
+            String t = titoliNorm[d];
+            if (t != null) {
+                if (t.startsWith(needle)) score *= TITLE_PREFIX_BONUS;
+                if (wordCount > 1 && t.contains(needle)) score *= PHRASE_BONUS;
+            }
+            Hit h = new Hit(d, ids[d], score);
+            if (heap.size() < k) {
+                heap.add(h);
+            } else if (Hit.WORST_FIRST.compare(heap.peek(), h) < 0) {
+                heap.poll();
+                heap.add(h);
+            }
+        }
+
+        Hit[] top = heap.toArray(new Hit[0]);
+        Arrays.sort(top, Hit.WORST_FIRST.reversed());
+        for (Hit h : top) emit(h.doc, sink);
+        return top.length;
+    }
+
+    /** Somma il contributo BM25 di una parola (e, se last, delle parole con quel prefisso). */
+    private static void addTerm(TermIndex field, String word, double boost, boolean last, ScoreTable scores) {
+        int exact = field.find(word);
+        if (exact >= 0) addPostings(field, exact, boost, scores);
+        if (!last) return;
+
+        int expanded = 0;
+        for (int t = field.prefixStart(word);
+             t < field.termCount() && field.terms[t].startsWith(word) && expanded < MAX_PREFIX_TERMS; t++) {
+            if (t == exact) continue;
+            addPostings(field, t, boost * PREFIX_TERM_WEIGHT, scores);
+            expanded++;
+        }
+    }
+
+    private static void addPostings(TermIndex field, int t, double boost, ScoreTable scores) {
+        int[] docs = field.docs[t];
+        int[] tfs = field.tfs[t];
+        double n = field.docCount();
+        double idf = Math.log(1 + (n - docs.length + 0.5) / (docs.length + 0.5));
+        for (int i = 0; i < docs.length; i++) {
+            double tf = tfs[i];
+            double norm = BM25_K1 * (1 - BM25_B + BM25_B * field.lengths[docs[i]] / field.avgLength);
+            scores.add(docs[i], boost * idf * tf * (BM25_K1 + 1) / (tf + norm));
+        }
+    }
+
+    /** Candidato nel ranking; a parità di punteggio vince l'id più basso. */
+    private static final class Hit {
+        static final Comparator<Hit> WORST_FIRST = (a, b) -> {
+            int c = Double.compare(a.score, b.score);
+            return c != 0 ? c : Integer.compare(b.id, a.id);
+        };
+
+        final int doc;
+        final int id;
+        final double score;
+
+        Hit(int doc, int id, double score) {
+            this.doc = doc;
+            this.id = id;
+            this.score = score;
+        }
+    }
+
+    /** Mappa doc -> punteggio a indirizzamento aperto, senza boxing. */
+    private static final class ScoreTable {
+        private int[] keys = new int[256];
+        private double[] vals = new double[256];
+        private int size = 0;
+
+        ScoreTable() {
+            Arrays.fill(keys, -1);
+        }
+
+        void add(int doc, double v) {
+            if (size * 2 >= keys.length) rehash();
+            int mask = keys.length - 1;
+            int i = (doc * 0x9E3779B9) >>> 7 & mask;
+            while (keys[i] != -1 && keys[i] != doc) i = (i + 1) & mask;
+            if (keys[i] == -1) {
+                keys[i] = doc;
+                size++;
+            }
+            vals[i] += v;
+        }
+
+        private void rehash() {
+            int[] oldK = keys;
+            double[] oldV = vals;
+            keys = new int[oldK.length * 2];
+            vals = new double[oldK.length * 2];
+            Arrays.fill(keys, -1);
+            size = 0;
+            for (int i = 0; i < oldK.length; i++) {
+                if (oldK[i] != -1) add(oldK[i], oldV[i]);
+            }
+        }
+
+        int capacity() {
+            return keys.length;
+        }
+
+        int docAt(int slot) {
+            return keys[slot];
+        }
+
+        double scoreAt(int slot) {
+            return vals[slot];
+        }
+
+        /** Punteggio di doc, 0 se assente. */
+        double get(int doc) {
+            int mask = keys.length - 1;
+            int i = (doc * 0x9E3779B9) >>> 7 & mask;
+            while (keys[i] != -1) {
+                if (keys[i] == doc) return vals[i];
+                i = (i + 1) & mask;
+            }
+            return 0;
+        }
+    }
+
+    /** true se d compare in tutte le liste oltre la prima (cursori che avanzano soltanto). */
+    private static boolean inAll(int[][] lists, int[] cursors, int d) {
+        for (int j = 1; j < lists.length; j++) {
+            int[] l = lists[j];
+            int k = lowerBound(l, cursors[j], d);
+            cursors[j] = k;
+            if (k >= l.length || l[k] != d) return false;
+        }
+        return true;
+    }
+
+    private boolean matches(String[] field, int d, String needle, int year) {
+        if (year != NO_YEAR && anni[d] != year) return false;
+        String text = field[d];
+        return text != null && text.contains(needle);
+    }
+
+    private void emit(int d, LibriDao.BookSink sink) throws IOException {
+        sink.accept(ids[d], titoli[d], autori[d], anni[d] == NO_YEAR ? null : anni[d]);
+    }
+
+    /** Prima posizione con id > afterId. */
+    private int firstAfter(long afterId) {
+        if (afterId < Integer.MIN_VALUE) return 0;
+        if (afterId >= Integer.MAX_VALUE) return ids.length;
+        int k = Arrays.binarySearch(ids, (int) afterId);
+        return k >= 0 ? k + 1 : -k - 1;
+    }
+
+    /** Primo indice i >= from con a[i] >= key (ricerca a salti + binaria). */
+    private static int lowerBound(int[] a, int from, int key) {
+        int step = 1;
+        int hi = from;
+        while (hi < a.length && a[hi] < key) {
+            from = hi + 1;
+            hi += step;
+            step <<= 1;
+        }
+        hi = Math.min(hi, a.length);
+        while (from < hi) {
+            int mid = (from + hi) >>> 1;
+            if (a[mid] < key) from = mid + 1; else hi = mid;
+        }
+        return from;
+    }
+
+    // ==== NORMALIZZAZIONE E TRIGRAMMI ====
+
+    /**
+     * Lettere (latine, greche, cirilliche) su cui unaccent (unaccent.rules
+     * di PostgreSQL) e NFD danno risultati diversi. Ogni voce è la lettera
+     * seguita da ciò che ne fa unaccent: ł, ø, đ, æ, ß, œ, le legature...
+     * che NFD non scompone, e quelle (ǣ, й, ӧ...) che NFD semplificherebbe
+     * mentre unaccent le lascia com'è, scritte come se stesse.
+     */
+    private static final String UNACCENT_EXTRA =
+            "\u00C6AE \u00D0D \u00D8O \u00DETH \u00DFss \u00E6ae \u00F0d \u00F8o \u00FEth \u0110D "
+            + "\u0111d \u0126H \u0127h \u0131i \u0132IJ \u0133ij \u0138q \u013FL \u0140l \u0141L "
+            + "\u0142l \u0149'n \u014AN \u014Bn \u0152OE \u0153oe \u0166T \u0167t \u017Fs \u0180b "
+            + "\u0181B \u0182B \u0183b \u0187C \u0188c \u0189D \u018AD \u018BD \u018Cd \u0190E "
+            + "\u0191F \u0192f \u0193G \u0195hv \u0196I \u0197I \u0198K \u0199k \u019Al \u019DN "
+            + "\u019En \u01A2OI \u01A3oi \u01A4P \u01A5p \u01ABt \u01ACT \u01ADt \u01AET \u01B2V "
+            + "\u01B3Y \u01B4y \u01B5Z \u01B6z \u01C4DZ \u01C5Dz \u01C6dz \u01C7LJ \u01C8Lj \u01C9lj "
+            + "\u01CANJ \u01CBNj \u01CCnj \u01E2\u01E2 \u01E3\u01E3 \u01E4G \u01E5g \u01EE\u01EE \u01EF\u01EF \u01F1DZ "
+            + "\u01F2Dz \u01F3dz \u01FC\u01FC \u01FD\u01FD \u01FE\u01FE \u01FF\u01FF \u0221d \u0224Z \u0225z \u0234l "
+            + "\u0235n \u0236t \u0237j \u0238db \u0239qp \u023AA \u023BC \u023Cc \u023DL \u023ET "
+            + "\u023Fs \u0240z \u0243B \u0244U \u0246E \u0247e \u0248J \u0249j \u024CR \u024Dr "
+            + "\u024EY \u024Fy \u0374\u0374 \u03D3\u03D3 \u03D4\u03D4 \u0400\u0400 \u0403\u0403 \u0407\u0407 \u040C\u040C \u040D\u040D "
+            + "\u040E\u040E \u0419\u0419 \u0439\u0439 \u0450\u0450 \u0453\u0453 \u0457\u0457 \u045C\u045C \u045D\u045D \u045E\u045E \u0476\u0476 "
+            + "\u0477\u0477 \u04C1\u04C1 \u04C2\u04C2 \u04D0\u04D0 \u04D1\u04D1 \u04D2\u04D2 \u04D3\u04D3 \u04D6\u04D6 \u04D7\u04D7 \u04DA\u04DA "
+            + "\u04DB\u04DB \u04DC\u04DC \u04DD\u04DD \u04DE\u04DE \u04DF\u04DF \u04E2\u04E2 \u04E3\u04E3 \u04E4\u04E4 \u04E5\u04E5 \u04E6\u04E6 "
+            + "\u04E7\u04E7 \u04EA\u04EA \u04EB\u04EB \u04EC\u04EC \u04ED\u04ED \u04EE\u04EE \u04EF\u04EF \u04F0\u04F0 \u04F1\u04F1 \u04F2\u04F2 "
+            + "\u04F3\u04F3 \u04F4\u04F4 \u04F5\u04F5 \u04F8\u04F8 \u04F9\u04F9 \u1E9Aa \u1E9B\u1E9B \u1E9Cs \u1E9Ds \u1E9ESS "
+            + "\u1EFALL \u1EFBll \u1EFCV \u1EFDv \u1EFEY \u1EFFy \uFB00ff \uFB01fi \uFB02fl \uFB03ffi "
+            + "\uFB04ffl \uFB05st \uFB06st";
+
+    private static final char[] FOLD_FROM;
+    private static final String[] FOLD_TO;
+
+    static {
+        String[] entries = UNACCENT_EXTRA.split(" ");
+        FOLD_FROM = new char[entries.length];
+        FOLD_TO = new String[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            FOLD_FROM[i] = entries[i].charAt(0);
+            FOLD_TO[i] = entries[i].substring(1);
+        }
+    }
+
+    /**
+     * Minuscolo e senza accenti: deve restare allineata a bk_norm() in
+     * db/schema.sql, cioè lower(unaccent(t)). Ogni carattere non ASCII
+     * passa prima da UNACCENT_EXTRA e dalle lettere a larghezza piena
+     * (come in unaccent.rules), altrimenti perde i segni diacritici con NFD.
+     */
+    static String normalize(String s) {
+        if (s == null) return "";
+        StringBuilder sb = null;
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (sb != null) sb.append(c);
+                continue;
+            }
+            if (sb == null) sb = new StringBuilder(n + 8).append(s, 0, i);
+            int k = Arrays.binarySearch(FOLD_FROM, c);
+            if (k >= 0) {
+                sb.append(FOLD_TO[k]);
+            } else if (c >= '\uFF21' && c <= '\uFF3A' || c >= '\uFF41' && c <= '\uFF5A') {
+                sb.append((char) (c - 0xFEE0));      // Ａ -> A
+            } else {
+                String d = Normalizer.normalize(String.valueOf(c), Normalizer.Form.NFD);
+                for (int j = 0; j < d.length(); j++) {
+                    if (!isMark(d.charAt(j))) sb.append(d.charAt(j));
+                }
+            }
+        }
+        return (sb == null ? s : sb.toString()).toLowerCase(Locale.ROOT);
+    }
+
+    private static boolean isMark(char c) {
+        int t = Character.getType(c);
+        return t == Character.NON_SPACING_MARK || t == Character.ENCLOSING_MARK || t == Character.COMBINING_SPACING_MARK;
+    }
+
+    private static long gram(String s, int i) {
+        return ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2);
+    }
+
+    /** Trigrammi distinti di s (s.length() >= 3). */
+    private static long[] trigrams(String s) {
+        long[] g = new long[s.length() - 2];
+        for (int i = 0; i < g.length; i++) g[i] = gram(s, i);
+        Arrays.sort(g);
+        int n = 0;
+        for (int i = 0; i < g.length; i++) {
+            if (n == 0 || g[n - 1] != g[i]) g[n++] = g[i];
+        }
+        return Arrays.copyOf(g, n);
+    }
+
+    // ==== COSTRUZIONE ====
+
+    /** Accumula i libri in ordine di id (come li restituisce LibriDao.scanAll). */
+    private static final class Builder {
+        int size = 0;
+        int[] ids = new int[1024];
+        String[] titoli = new String[1024];
+        String[] autori = new String[1024];
+        int[] anni = new int[1024];
+        int[] categoriaCode = new int[1024];
+        int[] editoreCode = new int[1024];
+        // valore -> codice, nell'ordine in cui i valori compaiono (LinkedHashMap: keySet() = dizionario)
+        final Map<String, Integer> categorie = new LinkedHashMap<>();
+        final Map<String, Integer> editori = new LinkedHashMap<>();
+        String[] titoliNorm = new String[1024];
+        String[] autoriNorm = new String[1024];
+        final PostingsBuilder titoloPostings = new PostingsBuilder();
+        final PostingsBuilder autoriPostings = new PostingsBuilder();
+        final TermIndex.Builder titoloTerms = new TermIndex.Builder();
+        final TermIndex.Builder autoriTerms = new TermIndex.Builder();
+        final SuggestIndex.Builder suggest = new SuggestIndex.Builder();
+        private final Map<Integer, Integer> popularity;
+
+        Builder(Map<Integer, Integer> popularity) {
+            this.popularity = popularity;
+        }
+
+        void add(int id, String titolo, String aut, Integer anno, String editore, String categoria) {
+            if (size == ids.length) grow();
+            if (size > 0 && ids[size - 1] >= id) {
+                throw new IllegalStateException("Libri non ordinati per id durante l'indicizzazione");
+            }
+            int d = size++;
+            ids[d] = id;
+            titoli[d] = titolo;
+            autori[d] = aut;
+            anni[d] = anno == null ? NO_YEAR : anno;
+            categoriaCode[d] = code(categorie, categoria);
+            editoreCode[d] = code(editori, editore);
+            titoliNorm[d] = titolo == null ? null : normalize(titolo);
+            autoriNorm[d] = aut == null ? null : normalize(aut);
+            titoloPostings.addDocument(d, titoliNorm[d]);
+            autoriPostings.addDocument(d, autoriNorm[d]);
+            titoloTerms.addDocument(d, titoliNorm[d]);
+            autoriTerms.addDocument(d, autoriNorm[d]);
+            int weight = 1 + popularity.getOrDefault(id, 0);
+            suggest.addTitle(titolo, weight);
+            suggest.addAuthors(aut, weight);
+        }
+
+        private static int code(Map<String, Integer> dict, String value) {
+            if (value == null || value.isBlank()) return NO_VALUE;
+            return dict.computeIfAbsent(value.trim(), v -> dict.size());
+        }
+
+        private void grow() {
+            int n = ids.length * 2;
+            ids = Arrays.copyOf(ids, n);
+            titoli = Arrays.copyOf(titoli, n);
+            autori = Arrays.copyOf(autori, n);
+            anni = Arrays.copyOf(anni, n);
+            categoriaCode = Arrays.copyOf(categoriaCode, n);
+            editoreCode = Arrays.copyOf(editoreCode, n);
+            titoliNorm = Arrays.copyOf(titoliNorm, n);
+            autoriNorm = Arrays.copyOf(autoriNorm, n);
+        }
+    }
+
+    /** Liste di posting in costruzione: doc id crescenti, senza duplicati. */
+    private static final class PostingsBuilder {
+        private final Map<Long, IntList> lists = new HashMap<>();
+
+        void addDocument(int d, String text) {
+            if (text == null) return;
+            for (int i = 0; i + 2 < text.length(); i++) {
+                IntList l = lists.computeIfAbsent(gram(text, i), k -> new IntList());
+                // i documenti arrivano in ordine: basta guardare l'ultimo inserito
+                if (l.size == 0 || l.data[l.size - 1] != d) l.add(d);
+            }
+        }
+
+        Map<Long, int[]> freeze() {
+            Map<Long, int[]> out = new HashMap<>(lists.size() * 4 / 3 + 1);
+            for (Map.Entry<Long, IntList> e : lists.entrySet()) {
+                IntList l = e.getValue();
+                out.put(e.getKey(), l.size == 0 ? EMPTY : Arrays.copyOf(l.data, l.size));
+            }
+            lists.clear();
+            return out;
+        }
+    }
+
+    private static final class IntList {
+        int[] data = new int[4];
+        int size = 0;
+
+        void add(int v) {
+            if (size == data.length) data = Arrays.copyOf(data, size * 2);
+            data[size++] = v;
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package bookrecommender.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Linguaggio di interrogazione del comando SEARCH.
+ *
+ *   harry potter                      parole libere: titolo o autori contengono ciascuna parola
+ *   title:"il nome della rosa"        titolo contiene la frase (anche titolo:)
+ *   author:eco                        autori contengono (anche autore:)
+ *   year:1980  year:1980..1989  year:>=2000  year:..1950   (anche anno:)
+ *   category:fiction  publisher:"penguin books"             (anche categoria:, editore:)
+ *   a b = a AND b;  a OR b;  parentesi per raggruppare
+ *
+ * AND lega più di OR. Il parser produce un albero di Node che viene poi
+ * eseguito da SearchIndex (intersezione degli indici dalla condizione più
+ * selettiva) oppure tradotto in SQL da LibriDao se l'indice non è pronto.
+ */
+public final class SearchQuery {
+
+    /** Numero massimo di condizioni in una query (protezione da query enormi). */
+    static final int MAX_TERMS = 32;
+
+    /** Livelli massimi di parentesi annidate (il parser è ricorsivo). */
+    static final int MAX_DEPTH = MAX_TERMS;
+
+    /** Campo di una condizione testuale. */
+    public enum Field { TITLE, AUTHOR, ANY, CATEGORY, PUBLISHER }
+
+    /** Nodo dell'albero della query. */
+    public abstract static class Node { }
+
+    /** Condizione su un campo testuale: "contiene" per titolo/autori, "uguale" per categoria/editore. */
+    public static final class Text extends Node {
+        public final Field field;
+        public final String value;
+
+        Text(Field field, String value) {
+            this.field = field;
+            this.value = value;
+        }
+
+        @Override
+        public String toString() {
+            return field + ":\"" + SearchIndex.normalize(value) + "\"";
+        }
+    }
+
+    /** Anno compreso in [from, to] (estremi inclusi). */
+    public static final class YearRange extends Node {
+        public final int from;
+        public final int to;
+
+        YearRange(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public String toString() {
+            return "YEAR:" + from + ".." + to;
+        }
+    }
+
+    public static final class And extends Node {
+        public final List<Node> children;
+
+        And(List<Node> children) {
+            this.children = Collections.unmodifiableList(children);
+        }
+
+        @Override
+        public String toString() {
+            return join(children, " ");
+        }
+    }
+
+    public static final class Or extends Node {
+        public final List<Node> children;
+
+        Or(List<Node> children) {
+            this.children = Collections.unmodifiableList(children);
+        }
+
+        @Override
+        public String toString() {
+            return join(children, " OR ");
+        }
+    }
+
+    private static String join(List<Node> children, String sep) {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < children.size(); i++) {
+            if (i > 0) sb.append(sep);
+            sb.append(children.get(i));
+        }
+        return sb.append(')').toString();
+    }
+
+    public final Node root;
+
+    private SearchQuery(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * Analizza il testo della query.
+     *
+     * @throws IllegalArgumentException con un messaggio leggibile se la sintassi non è valida
+     */
+    public static SearchQuery parse(String text) {
+        Parser p = new Parser(tokenize(text));
+        Node root = p.parseOr();
+        if (p.pos < p.tokens.size()) {
+            throw new IllegalArgumentException("Simbolo inatteso: " + p.tokens.get(p.pos).text);
+        }
+        if (p.terms == 0) throw new IllegalArgumentException("Query vuota");
+        return new SearchQuery(root);
+    }
+
+    /** Forma canonica (valori normalizzati, campi espliciti): query equivalenti coincidono. */
+    @Override
+    public String toString() {
+        return root.toString();
+    }
+
+    // ==== TOKENIZER ====
+
+    private enum Kind { WORD, QUOTED, LPAREN, RPAREN }
+
+    private static final class Token {
+        final Kind kind;
+        final String text;
+        final boolean glued;   // attaccato al token precedente (es. title:"..." )
+
+        Token(Kind kind, String text, boolean glued) {
+            this.kind = kind;
+            this.text = text;
+            this.glued = glued;
+        }
+    }
+
+    private static List<Token> tokenize(String s) {
+        List<Token> out = new ArrayList<>();
+        int i = 0, n = s.length();
+        boolean glued = false;
+        while (i < n) {
+            char c = s.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+                glued = false;
+                continue;
+            }
+            if (c == '(' || c == ')') {
+                out.add(new Token(c == '(' ? Kind.LPAREN : Kind.RPAREN, String.valueOf(c), false));
+                i++;
+                glued = false;
+                continue;
+            }
+            if (c == '"') {
+                int end = s.indexOf('"', i + 1);
+                if (end < 0) throw new IllegalArgumentException("Virgolette non chiuse");
+                out.add(new Token(Kind.QUOTED, s.substring(i + 1, end), glued));
+                i = end + 1;
+                glued = true;
+                continue;
+            }
+            int start = i;
+            while (i < n && !Character.isWhitespace(s.charAt(i))
+                    && s.charAt(i) != '(' && s.charAt(i) != ')' && s.charAt(i) != '"') {
+                i++;
+            }
+            out.add(new Token(Kind.WORD, s.substring(start, i), glued));
+            glued = true;
+        }
+        return out;
+    }
+
+    // ==== PARSER (discesa ricorsiva) ====
+
+    private static final class Parser {
+        final List<Token> tokens;
+        int pos = 0;
+        int terms = 0;
+        int depth = 0;
+
+        Parser(List<Token> tokens) {
+            this.tokens = tokens;
+        }
+
+        Node parseOr() {
+            List<Node> parts = new ArrayList<>();
+            parts.add(parseAnd());
+            while (isKeyword("OR")) {
+                pos++;
+                parts.add(parseAnd());
+            }
+            return parts.size() == 1 ? parts.get(0) : new Or(parts);
+        }
+
+        Node parseAnd() {
+            List<Node> parts = new ArrayList<>();
+            parts.add(parseTerm());
+            while (pos < tokens.size() && tokens.get(pos).kind != Kind.RPAREN && !isKeyword("OR")) {
+                if (isKeyword("AND")) pos++;
+                parts.add(parseTerm());
+            }
+            return parts.size() == 1 ? parts.get(0) : new And(parts);
+        }
+
+        Node parseTerm() {
+            if (pos >= tokens.size()) throw new IllegalArgumentException("Query incompleta");
+            Token t = tokens.get(pos++);
+            switch (t.kind) {
+                case LPAREN: {
+                    if (++depth > MAX_DEPTH) {
+                        throw new IllegalArgumentException("Troppe parentesi annidate (massimo " + MAX_DEPTH + ")");
+                    }
+                    Node inner = parseOr();
+                    if (pos >= tokens.size() || tokens.get(pos).kind != Kind.RPAREN) {
+                        throw new IllegalArgumentException("Parentesi non chiusa");
+                    }
+                    pos++;
+                    depth--;
+                    return inner;
+                }
+                case RPAREN:
+                    throw new IllegalArgumentException("Parentesi chiusa inattesa");
+                case QUOTED:
+                    return text(Field.ANY, t.text);
+                default:
+                    return word(t);
+            }
+        }
+
+        private Node word(Token t) {
+            int colon = t.text.indexOf(':');
+            Field field = colon < 0 ? null : field(t.text.substring(0, colon));
+            boolean year = colon >= 0 && isYearField(t.text.substring(0, colon));
+            if (field == null && !year) return text(Field.ANY, t.text);
+
+            String value = t.text.substring(colon + 1);
+            // title:"frase tra virgolette"
+            if (value.isEmpty() && pos < tokens.size()
+                    && tokens.get(pos).kind == Kind.QUOTED && tokens.get(pos).glued) {
+                value = tokens.get(pos++).text;
+            }
+            if (value.isBlank()) {
+                throw new IllegalArgumentException("Valore mancante dopo " + t.text);
+            }
+            return year ? yearRange(value) : text(field, value);
+        }
+
+        private Node text(Field field, String value) {
+            count();
+            return new Text(field, value.trim());
+        }
+
+        private Node yearRange(String v) {
+            count();
+            try {
+                if (v.startsWith(">=")) return new YearRange(Integer.parseInt(v.substring(2)), Integer.MAX_VALUE);
+                if (v.startsWith("<=")) return new YearRange(Integer.MIN_VALUE, Integer.parseInt(v.substring(2)));
+                if (v.startsWith(">")) return new YearRange(Math.addExact(Integer.parseInt(v.substring(1)), 1), Integer.MAX_VALUE);
+                if (v.startsWith("<")) return new YearRange(Integer.MIN_VALUE, Math.subtractExact(Integer.parseInt(v.substring(1)), 1));
+                int dots = v.indexOf("..");
+                if (dots < 0) {
+                    int y = Integer.parseInt(v);
+                    return new YearRange(y, y);
+                }
+                String a = v.substring(0, dots), b = v.substring(dots + 2);
+                int from = a.isEmpty() ? Integer.MIN_VALUE : Integer.parseInt(a);
+                int to = b.isEmpty() ? Integer.MAX_VALUE : Integer.parseInt(b);
+                if (from > to) throw new IllegalArgumentException("Intervallo di anni vuoto: " + v);
+                return new YearRange(from, to);
+            } catch (NumberFormatException | ArithmeticException e) {
+                throw new IllegalArgumentException("Anno non valido: " + v);
+            }
+        }
+
+        private void count() {
+            if (++terms > MAX_TERMS) {
+                throw new IllegalArgumentException("Troppe condizioni (massimo " + MAX_TERMS + ")");
+            }
+        }
+
+        private boolean isKeyword(String kw) {
+            if (pos >= tokens.size()) return false;
+            Token t = tokens.get(pos);
+            return t.kind == Kind.WORD && t.text.equals(kw);
+        }
+    }
+
+    private static Field field(String name) {
+        switch (name.toLowerCase(Locale.ROOT)) {
+            case "title": case "titolo": return Field.TITLE;
+            case "author": case "autore": case "autori": return Field.AUTHOR;
+            case "category": case "categoria": return Field.CATEGORY;
+            case "publisher": case "editore": return Field.PUBLISHER;
+            default: return null;
+        }
+    }
+
+    private static boolean isYearField(String name) {
+        String n = name.toLowerCase(Locale.ROOT);
+        return n.equals("year") || n.equals("anno");
+    }
+}
@@ -9,11 +9,73 @@ public class ServerConfig {
     // Porta TCP su cui il server ascolta i client
     public static final int SERVER_PORT = 5555;
 
+    // Controllo di ammissione dei client
+    public static final int SERVER_MAX_SESSIONS  = 256;  // sessioni (thread ClientHandler) contemporanee
+    public static final int SERVER_ACCEPT_BACKLOG = 128; // coda di connessioni in attesa di accept()
+    public static final int SERVER_IDLE_TIMEOUT_MS = 120_000; // sessione chiusa se il client tace così a lungo
+
+    // Modalità NIO (selector + worker), attivabile anche con l'argomento --nio
+    public static final boolean SERVER_NIO_MODE = false;
+    public static final int  NIO_MAX_CONNECTIONS = 20_000;
+    public static final int  NIO_WORKER_THREADS  = 16;          // ~ DB_POOL_MAX: i comandi sono legati al DB
+    public static final int  NIO_MAX_LINE_BYTES  = 64 * 1024;   // oltre, la connessione viene chiusa
+    public static final long NIO_MAX_PENDING_OUT_BYTES = 1L << 20; // oltre, si sospende la lettura dal client
+
     // Parametri DB - ADATTALI al tuo ambiente!
     public static final String DB_URL  = "jdbc:postgresql://localhost:5432/bookrecommender";
     public static final String DB_USER = "postgres";
     public static final String DB_PASS = "project";
 
+    // Pool di connessioni JDBC (vedi ConnectionPool)
+    public static final int  DB_POOL_MIN = 2;                      // connessioni tenute sempre aperte
+    public static final int  DB_POOL_MAX = 16;                     // limite massimo di connessioni fisiche
+    public static final long DB_POOL_BORROW_TIMEOUT_MS = 5_000;    // attesa massima per ottenere una connessione
+    public static final long DB_POOL_IDLE_TIMEOUT_MS   = 300_000;  // oltre questo tempo una connessione inattiva viene chiusa
+    public static final long DB_POOL_VALIDATE_AFTER_MS = 10_000;   // se inattiva da più di così, la si valida prima dell'uso
+    public static final int  DB_POOL_VALIDATE_TIMEOUT_S = 2;       // timeout di Connection.isValid()
+    public static final long DB_POOL_EVICT_INTERVAL_MS = 30_000;   // periodo del controllo sulle connessioni inattive
+
+    // Migrazioni di schema applicate all'avvio (vedi SchemaMigrator)
+    public static final boolean SCHEMA_MIGRATE_ON_START = true;
+    public static final String SCHEMA_MIGRATIONS_DIR = "db/migrations"; // relativa alla cartella di avvio
+
+    // Ricerche paginate (SEARCH_PAGE)
+    public static final int SEARCH_DEFAULT_PAGE_SIZE = 50;
+    public static final int SEARCH_MAX_PAGE_SIZE = 500;
+    public static final int SEARCH_RANKED_DEFAULT_K = 100;   // risultati di SEARCH_RANKED se k non è indicato
+    public static final int SEARCH_FACET_VALUES = 10;        // valori restituiti per ogni faccetta
+    public static final int SUGGEST_DEFAULT_N = 8;           // completamenti di SUGGEST_PREFIX se n non è indicato
+
+    // Indice di ricerca in memoria (vedi SearchIndex)
+    public static final boolean SEARCH_INDEX_ENABLED = true;
+    public static final long SEARCH_INDEX_REFRESH_MS = 60_000; // controllo modifiche a libri (indice e cache)
+
+    // Cache dei risultati di ricerca (vedi SearchCache); MAX_ROWS = 0 la disattiva
+    public static final int SEARCH_CACHE_MAX_ROWS = 200_000;      // righe totali in memoria
+    public static final int SEARCH_CACHE_MAX_ENTRY_ROWS = 2_000;  // risultati più lunghi non vengono salvati
+    public static final long SEARCH_CACHE_TTL_MS = 300_000;
+
+    // Libri per id (GET_BOOK / GET_BOOKS, vedi BookCache)
+    public static final int BOOK_CACHE_SLOTS = 65_536;
+    public static final long BOOK_CACHE_TTL_MS = 300_000;
+    public static final int GET_BOOKS_MAX_IDS = 1_000;           // id per singola richiesta GET_BOOKS
+
+    // Caricamento del catalogo con COPY (vedi CatalogLoader)
+    public static final String LOADER_MAINTENANCE_WORK_MEM = "512MB"; // memoria per ricreare gli indici
+    public static final int LOADER_QUEUE_CHUNKS = 8;                 // blocchi da 1 MB in attesa di invio
+    public static final double LOADER_DEFER_INDEX_RATIO = 0.5;       // CSV/tabella oltre cui gli indici si ricreano a fine COPY
+
+    // Ricostruzione di statistiche_valutazioni (vedi ReviewStatsRebuild)
+    public static final int REVIEW_STATS_REBUILD_THREADS = 4;
+
+    // Migrazione dei file .dati (vedi LegacyMigrator)
+    public static final int MIGRATION_BATCH_LINES = 50_000;          // righe per transazione/checkpoint
+
+    // Log asincrono (vedi ServerLog)
+    public static final ServerLog.Level LOG_LEVEL = ServerLog.Level.INFO;
+    public static final int LOG_QUEUE_CAPACITY = 8_192;      // oltre, i messaggi vengono scartati
+    public static final int LOG_COMMAND_SAMPLE_EVERY = 100;  // a livello INFO si logga 1 comando ogni N
+
     private ServerConfig() {
         // utility class
     }
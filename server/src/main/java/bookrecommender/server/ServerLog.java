@@ -0,0 +1,174 @@
+package bookrecommender.server;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Log asincrono del server.
+ *
+ * I thread che gestiscono i client non scrivono mai direttamente sulla
+ * console: mettono il messaggio in un buffer circolare limitato
+ * (ArrayBlockingQueue) e tornano subito al lavoro. Un solo thread
+ * "ServerLog" svuota il buffer a blocchi e scrive su stdout/stderr.
+ *
+ * Se il buffer è pieno il messaggio viene scartato (e contato) invece di
+ * bloccare il chiamante. I log per comando sono campionati (uno ogni
+ * LOG_COMMAND_SAMPLE_EVERY) e non riportano mai il payload, che può
+ * contenere hash di password, dati personali o commenti lunghi.
+ */
+public final class ServerLog {
+
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    private static final class Entry {
+        final long timeMs;
+        final Level level;
+        final String msg;
+
+        Entry(long timeMs, Level level, String msg) {
+            this.timeMs = timeMs;
+            this.level = level;
+            this.msg = msg;
+        }
+    }
+
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+    private static final int BATCH = 256;
+
+    private static final ArrayBlockingQueue<Entry> QUEUE =
+            new ArrayBlockingQueue<>(ServerConfig.LOG_QUEUE_CAPACITY);
+    private static final AtomicLong DROPPED = new AtomicLong();
+    private static final AtomicLong COMMANDS = new AtomicLong();
+
+    private static volatile Level minLevel = ServerConfig.LOG_LEVEL;
+
+    private static final BufferedWriter OUT = new BufferedWriter(
+            new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+    private static final BufferedWriter ERR = new BufferedWriter(
+            new OutputStreamWriter(System.err, StandardCharsets.UTF_8));
+
+    static {
+        Thread t = new Thread(ServerLog::writerLoop, "ServerLog");
+        t.setDaemon(true);
+        t.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(ServerLog::flush, "ServerLog-flush"));
+    }
+
+    private ServerLog() {
+        // utility class
+    }
+
+    // ==== API ====
+
+    public static void debug(String msg) { log(Level.DEBUG, msg); }
+    public static void info(String msg)  { log(Level.INFO, msg); }
+    public static void warn(String msg)  { log(Level.WARN, msg); }
+    public static void error(String msg) { log(Level.ERROR, msg); }
+
+    public static boolean isEnabled(Level level) {
+        return level.ordinal() >= minLevel.ordinal();
+    }
+
+    public static void setLevel(Level level) {
+        minLevel = level;
+    }
+
+    /**
+     * Log (campionato) di un comando ricevuto: solo verbo e lunghezza del
+     * payload. Con livello DEBUG vengono registrati tutti i comandi.
+     */
+    public static void command(int clientId, String raw) {
+        boolean debug = isEnabled(Level.DEBUG);
+        if (!debug) {
+            if (!isEnabled(Level.INFO)) return;
+            long n = COMMANDS.incrementAndGet();
+            if (n % ServerConfig.LOG_COMMAND_SAMPLE_EVERY != 0) return;
+        }
+        int colon = raw.indexOf(':');
+        String verb = colon < 0 ? raw : raw.substring(0, colon);
+        int payloadLen = colon < 0 ? 0 : raw.length() - colon - 1;
+        log(debug ? Level.DEBUG : Level.INFO,
+                "[Client " + clientId + "] Comando: " + verb + " (" + payloadLen + " caratteri)");
+    }
+
+    /** Messaggi scartati perché il buffer era pieno. */
+    public static long droppedCount() {
+        return DROPPED.get();
+    }
+
+    public static void log(Level level, String msg) {
+        if (!isEnabled(level)) return;
+        if (!QUEUE.offer(new Entry(System.currentTimeMillis(), level, msg))) {
+            DROPPED.incrementAndGet();
+        }
+    }
+
+    // ==== WRITER ====
+
+    private static void writerLoop() {
+        List<Entry> batch = new ArrayList<>(BATCH);
+        long reportedDropped = 0;
+        while (true) {
+            try {
+                Entry first = QUEUE.poll(1, TimeUnit.SECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    QUEUE.drainTo(batch, BATCH - 1);
+                }
+
+                long dropped = DROPPED.get();
+                if (dropped > reportedDropped) {
+                    batch.add(new Entry(System.currentTimeMillis(), Level.WARN,
+                            "[ServerLog] " + (dropped - reportedDropped) + " messaggi scartati (buffer pieno)"));
+                    reportedDropped = dropped;
+                }
+
+                write(batch);
+                batch.clear();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /** Svuota quello che resta nel buffer (usato allo spegnimento). */
+    public static void flush() {
+        List<Entry> rest = new ArrayList<>();
+        QUEUE.drainTo(rest);
+        write(rest);
+    }
+
+    private static synchronized void write(List<Entry> batch) {
+        if (batch.isEmpty()) return;
+        try {
+            boolean out = false, err = false;
+            for (Entry e : batch) {
+                String time = TIME.format(LocalTime.ofInstant(Instant.ofEpochMilli(e.timeMs), ZONE));
+                String line = time + " " + e.level + " " + e.msg + "\n";
+                if (e.level.ordinal() >= Level.WARN.ordinal()) {
+                    ERR.write(line);
+                    err = true;
+                } else {
+                    OUT.write(line);
+                    out = true;
+                }
+            }
+            if (out) OUT.flush();
+            if (err) ERR.flush();
+        } catch (IOException ignored) {
+            // la console non è disponibile: non c'è nessun altro posto dove scrivere
+        }
+    }
+}
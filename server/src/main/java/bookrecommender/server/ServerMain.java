@@ -1,16 +1,32 @@
 package bookrecommender.server;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Entry point del server Book Recommender (Lab B).
  * - Verifica la connessione al DB PostgreSQL
- * - Apre un ServerSocket e gestisce i client con Thread separati
+ * - Applica le migrazioni di schema mancanti (SchemaMigrator)
+ * - Costruisce l'indice di ricerca in memoria (SearchIndex)
+ * - Apre un ServerSocket con backlog limitato e gestisce i client
+ *   su un pool di thread con al massimo SERVER_MAX_SESSIONS sessioni;
+ *   oltre il limite il client riceve "ERR BUSY" e viene disconnesso
+ * - con l'argomento --nio (o SERVER_NIO_MODE) usa invece il NioServer
  */
 public class ServerMain {
 
@@ -26,22 +42,123 @@ public class ServerMain {
             System.err.println("Controlla URL, utente e password in ServerConfig.");
             return; // senza DB non ha senso avviare il server
         }
+        System.out.println("[OK] Pool connessioni DB: " + DbManager.poolStats());
+        if (ServerConfig.SCHEMA_MIGRATE_ON_START) {
+            try {
+                SchemaMigrator.migrate(Paths.get(ServerConfig.SCHEMA_MIGRATIONS_DIR));
+            } catch (SQLException | IOException e) {
+                System.err.println("[ERRORE] Migrazione dello schema fallita:");
+                e.printStackTrace();
+                DbManager.shutdown();
+                return; // meglio non servire client su uno schema a metà
+            }
+        }
+        checkSearchSchema();
+        SearchIndex.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(DbManager::shutdown, "DbPool-shutdown"));
+
+        if (ServerConfig.SERVER_NIO_MODE || Arrays.asList(args).contains("--nio")) {
+            runNio();
+        } else {
+            runBlocking();
+        }
+    }
+
+    /**
+     * Le ricerche usano bk_norm() e gli indici a trigrammi: su un database
+     * creato con uno schema vecchio avvisa di lanciare la migrazione.
+     */
+    private static void checkSearchSchema() {
+        try (Connection conn = DbManager.getConnection();
+             Statement st = conn.createStatement();
+             ResultSet rs = st.executeQuery("SELECT to_regprocedure('bk_norm(text)') IS NOT NULL")) {
+            if (rs.next() && !rs.getBoolean(1)) {
+                System.err.println("[ATTENZIONE] Funzione bk_norm() assente: le ricerche falliranno.");
+                System.err.println("Esegui db/migrations/001_trigram_search.sql sul database.");
+            }
+        } catch (SQLException e) {
+            System.err.println("[ATTENZIONE] Impossibile verificare lo schema di ricerca: " + e.getMessage());
+        }
+    }
 
-        // 2) ServerSocket per i client
+    /** Modalità classica: un thread del pool per ogni sessione. */
+    private static void runBlocking() {
+        // 2) Executor limitato per le sessioni: nessuna coda, se tutti i thread
+        //    sono occupati la submit viene rifiutata e il client riceve ERR BUSY
+        ThreadPoolExecutor sessions = newSessionExecutor(ServerConfig.SERVER_MAX_SESSIONS);
+
+        // 3) ServerSocket per i client
         AtomicInteger clientCounter = new AtomicInteger(1);
 
-        try (ServerSocket serverSocket = new ServerSocket(ServerConfig.SERVER_PORT)) {
-            System.out.println("[OK] Server in ascolto sulla porta " + ServerConfig.SERVER_PORT);
+        try (ServerSocket serverSocket = new ServerSocket(
+                ServerConfig.SERVER_PORT, ServerConfig.SERVER_ACCEPT_BACKLOG)) {
+            System.out.println("[OK] Server in ascolto sulla porta " + ServerConfig.SERVER_PORT
+                    + " (max sessioni " + ServerConfig.SERVER_MAX_SESSIONS
+                    + ", backlog " + ServerConfig.SERVER_ACCEPT_BACKLOG + ")");
 
             while (true) {
                 Socket client = serverSocket.accept();
                 int id = clientCounter.getAndIncrement();
                 ClientHandler handler = new ClientHandler(client, id);
-                Thread t = new Thread(handler, "ClientHandler-" + id);
-                t.start();
+                try {
+                    sessions.execute(handler);
+                } catch (RejectedExecutionException busy) {
+                    rejectBusy(client, id);
+                }
             }
         } catch (IOException e) {
             System.err.println("[ERRORE] Problema con il ServerSocket: " + e.getMessage());
+        } finally {
+            sessions.shutdownNow();
+        }
+    }
+
+    /** Modalità NIO: un thread selector e pochi worker per tutti i client. */
+    private static void runNio() {
+        try {
+            new NioServer(
+                    ServerConfig.SERVER_PORT,
+                    ServerConfig.SERVER_ACCEPT_BACKLOG,
+                    ServerConfig.NIO_MAX_CONNECTIONS,
+                    ServerConfig.NIO_WORKER_THREADS,
+                    ServerConfig.NIO_MAX_LINE_BYTES,
+                    ServerConfig.NIO_MAX_PENDING_OUT_BYTES
+            ).run();
+        } catch (IOException e) {
+            System.err.println("[ERRORE] Problema con il server NIO: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Pool di thread "a chiamata": i thread vengono creati solo quando servono,
+     * riusati tra una sessione e l'altra e chiusi dopo 60s di inattività.
+     */
+    static ThreadPoolExecutor newSessionExecutor(int maxSessions) {
+        AtomicInteger threadCounter = new AtomicInteger(1);
+        ThreadFactory tf = r -> {
+            Thread t = new Thread(r, "ClientHandler-" + threadCounter.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        };
+        return new ThreadPoolExecutor(
+                0, maxSessions,
+                60L, TimeUnit.SECONDS,
+                new SynchronousQueue<>(),
+                tf,
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /** Risponde ERR BUSY e chiude subito la connessione rifiutata. */
+    private static void rejectBusy(Socket client, int id) {
+        ServerLog.warn("[Client " + id + "] Rifiutato: limite di "
+                + ServerConfig.SERVER_MAX_SESSIONS + " sessioni raggiunto");
+        try (Socket s = client) {
+            s.setSoTimeout(1_000);
+            OutputStream os = s.getOutputStream();
+            os.write("ERR BUSY\n".getBytes(StandardCharsets.UTF_8));
+            os.flush();
+        } catch (IOException ignored) {
+            // il client se n'è già andato: niente da fare
         }
     }
 }
@@ -0,0 +1,192 @@
+package bookrecommender.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Completamenti per prefisso (SUGGEST_PREFIX) su titoli e nomi di autori.
+ *
+ * Le chiavi normalizzate (come SearchIndex.normalize) stanno in un array
+ * ordinato: tutte quelle con un certo prefisso sono contigue, quindi due
+ * ricerche binarie danno l'intervallo, come la visita di un trie ma senza
+ * un oggetto per nodo. Ogni chiave ha un peso di popolarità (valutazioni,
+ * presenze nelle librerie, suggerimenti).
+ *
+ * Per i prefissi corti l'intervallo può contenere decine di migliaia di
+ * chiavi: per quelli (fino a HEAVY_DEPTH caratteri e con più di SCAN_LIMIT
+ * chiavi) i migliori MAX_N sono precalcolati alla costruzione. Per tutti gli
+ * altri si scorre l'intervallo, che è piccolo. In entrambi i casi una
+ * richiesta costa pochi microsecondi.
+ */
+final class SuggestIndex {
+
+    /** Un completamento proposto al client. */
+    static final class Completion {
+        final boolean author;
+        final String text;
+
+        Completion(boolean author, String text) {
+            this.author = author;
+            this.text = text;
+        }
+    }
+
+    static final int MAX_N = 20;
+    private static final int SCAN_LIMIT = 256;
+    private static final int HEAVY_DEPTH = 6;
+
+    private final String[] keys;       // normalizzate, ordinate
+    private final String[] display;    // testo originale da mostrare
+    private final boolean[] author;    // true = nome di autore, false = titolo
+    private final int[] weights;
+    private final Map<String, int[]> heavy = new HashMap<>();
+
+    private SuggestIndex(String[] keys, String[] display, boolean[] author, int[] weights) {
+        this.keys = keys;
+        this.display = display;
+        this.author = author;
+        this.weights = weights;
+        precomputeHeavyPrefixes();
+    }
+
+    int size() {
+        return keys.length;
+    }
+
+    /**
+     * I migliori n completamenti per il prefisso (normalizzato qui),
+     * dal più popolare; a parità di peso in ordine alfabetico.
+     */
+    List<Completion> complete(String prefix, int n) {
+        String p = SearchIndex.normalize(prefix).trim();
+        n = Math.min(n, MAX_N);
+        if (p.isEmpty() || n <= 0) return new ArrayList<>();
+        List<Completion> out = new ArrayList<>(n);
+
+        int[] best = heavy.get(p);
+        if (best == null) {
+            int lo = lowerBound(p);
+            int hi = upperBound(p, lo);
+            best = topN(lo, hi, n);
+        }
+        for (int i = 0; i < best.length && i < n; i++) {
+            out.add(new Completion(author[best[i]], display[best[i]]));
+        }
+        return out;
+    }
+
+    // ==== INTERVALLI E TOP-N ====
+
+    private int lowerBound(String p) {
+        int k = Arrays.binarySearch(keys, p);
+        return k >= 0 ? k : -k - 1;
+    }
+
+    /** Prima posizione (da lo in poi) la cui chiave non inizia con p. */
+    private int upperBound(String p, int lo) {
+        int hi = keys.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid].startsWith(p)) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+
+    /** Indici delle n chiavi più pesanti in [lo, hi), in ordine decrescente di peso. */
+    private int[] topN(int lo, int hi, int n) {
+        int[] best = new int[Math.min(n, hi - lo)];
+        int size = 0;
+        // insertion sort su un array di al massimo MAX_N elementi
+        for (int i = lo; i < hi; i++) {
+            if (size == best.length && weights[i] <= weights[best[size - 1]]) continue;
+            int pos = size == best.length ? size - 1 : size++;
+            while (pos > 0 && weights[best[pos - 1]] < weights[i]) {
+                best[pos] = best[pos - 1];
+                pos--;
+            }
+            best[pos] = i;
+        }
+        return best;
+    }
+
+    private void precomputeHeavyPrefixes() {
+        for (int depth = 1; depth <= HEAVY_DEPTH; depth++) {
+            int i = 0;
+            while (i < keys.length) {
+                if (keys[i].length() < depth) {
+                    i++;
+                    continue;
+                }
+                String p = keys[i].substring(0, depth);
+                int hi = upperBound(p, i);
+                if (hi - i > SCAN_LIMIT) heavy.put(p, topN(i, hi, MAX_N));
+                i = hi;
+            }
+        }
+    }
+
+    // ==== COSTRUZIONE ====
+
+    /** Raccoglie titoli e autori; chiavi uguali sommano il peso. */
+    static final class Builder {
+        private final Map<String, Integer> slot = new HashMap<>();
+        private final List<String> keys = new ArrayList<>();
+        private final List<String> display = new ArrayList<>();
+        private final List<Boolean> author = new ArrayList<>();
+        private final List<Integer> weights = new ArrayList<>();
+
+        void addTitle(String titolo, int weight) {
+            add(titolo, false, weight);
+        }
+
+        /** Il campo autori può contenere più nomi separati da ',' o ';'. */
+        void addAuthors(String autori, int weight) {
+            if (autori == null) return;
+            for (String a : autori.split("[,;]")) add(a, true, weight);
+        }
+
+        private void add(String text, boolean isAuthor, int weight) {
+            if (text == null) return;
+            String shown = text.trim();
+            String key = SearchIndex.normalize(shown);
+            if (key.isEmpty()) return;
+            // stessa chiave come titolo e come autore: restano due completamenti distinti
+            String slotKey = (isAuthor ? "A" : "T") + key;
+            Integer i = slot.get(slotKey);
+            if (i == null) {
+                slot.put(slotKey, keys.size());
+                keys.add(key);
+                display.add(shown);
+                author.add(isAuthor);
+                weights.add(weight);
+            } else {
+                weights.set(i, weights.get(i) + weight);
+            }
+        }
+
+        SuggestIndex build() {
+            Integer[] order = new Integer[keys.size()];
+            for (int i = 0; i < order.length; i++) order[i] = i;
+            Arrays.sort(order, (a, b) -> {
+                int c = keys.get(a).compareTo(keys.get(b));
+                return c != 0 ? c : Boolean.compare(author.get(a), author.get(b));
+            });
+
+            String[] k = new String[order.length];
+            String[] d = new String[order.length];
+            boolean[] au = new boolean[order.length];
+            int[] w = new int[order.length];
+            for (int i = 0; i < order.length; i++) {
+                int j = order[i];
+                k[i] = keys.get(j);
+                d[i] = display.get(j);
+                au[i] = author.get(j);
+                w[i] = weights.get(j);
+            }
+            return new SuggestIndex(k, d, au, w);
+        }
+    }
+}
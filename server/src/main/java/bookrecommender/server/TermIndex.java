@@ -0,0 +1,295 @@
+package bookrecommender.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Indice a parole di un campo (titolo o autori), usato dal ranking BM25 di
+ * SearchIndex. Per ogni parola normalizzata tiene i documenti che la
+ * contengono e quante volte (tf); per ogni documento la lunghezza del campo
+ * in parole. Le parole sono in un array ordinato, così si trova sia la
+ * parola esatta sia l'intervallo di quelle che iniziano con un prefisso.
+ *
+ * Per la ricerca tollerante agli errori c'è anche un piccolo indice a
+ * trigrammi sul vocabolario (non sui libri): i candidati per una parola
+ * sbagliata sono solo le parole che condividono abbastanza trigrammi, e
+ * solo su quelli si calcola la distanza di Levenshtein. I trigrammi fatti
+ * solo di bordo e di una lettera ("$$a", "z$$") non hanno liste: direbbero
+ * soltanto "inizia con a" e toccherebbero mezzo vocabolario, quindi si
+ * contano confrontando prima e ultima lettera. I candidati escono dalle
+ * liste più corte, le altre servono solo a verificarli. Il costo dipende
+ * quindi dalle parole simili, non dalla dimensione del catalogo.
+ */
+final class TermIndex {
+
+    final String[] terms;   // ordinate
+    final int[][] docs;     // docs[t] = posizioni dei documenti, crescenti
+    final int[][] tfs;      // tfs[t][i] = occorrenze di terms[t] in docs[t][i]
+    final int[] lengths;    // parole del campo per documento
+    final double avgLength;
+
+    /** trigramma interno di "$$parola$$" ("$pa" ... "la$") -> posizioni in terms, crescenti */
+    private final Map<Long, int[]> termGrams;
+    /** (prima lettera, ultima lettera) -> posizioni in terms, crescenti */
+    private final Map<Integer, int[]> termEdges;
+    private final int[] termLengths;   // lunghezza di terms[t], per scartare i candidati senza toccare le String
+    private static final int[] NO_TERMS = new int[0];
+
+    private TermIndex(String[] terms, int[][] docs, int[][] tfs, int[] lengths) {
+        this.terms = terms;
+        this.docs = docs;
+        this.tfs = tfs;
+        this.lengths = lengths;
+        this.termGrams = buildTermGrams(terms);
+        this.termEdges = buildTermEdges(terms);
+        this.termLengths = new int[terms.length];
+        for (int t = 0; t < terms.length; t++) termLengths[t] = terms[t].length();
+        long total = 0;
+        for (int l : lengths) total += l;
+        this.avgLength = lengths.length == 0 ? 1 : Math.max(1, (double) total / lengths.length);
+    }
+
+    int docCount() {
+        return lengths.length;
+    }
+
+    int termCount() {
+        return terms.length;
+    }
+
+    /** Posizione della parola, -1 se assente. */
+    int find(String term) {
+        int k = Arrays.binarySearch(terms, term);
+        return k >= 0 ? k : -1;
+    }
+
+    /** Prima posizione con parola >= prefix; le parole col prefisso seguono consecutive. */
+    int prefixStart(String prefix) {
+        int k = Arrays.binarySearch(terms, prefix);
+        return k >= 0 ? k : -k - 1;
+    }
+
+    // ==== RICERCA TOLLERANTE ====
+
+    /** Errori ammessi in base alla lunghezza: nessuno fino a 2 lettere, 1 da 3 a 5, poi 2. */
+    static int maxEditsFor(String word) {
+        int n = word.length();
+        return n <= 2 ? 0 : n <= 5 ? 1 : 2;
+    }
+
+    /**
+     * Parole del vocabolario a distanza di Levenshtein <= maxDist da word.
+     *
+     * @return coppie (posizione in terms, distanza) appiattite in un array
+     */
+    int[] fuzzyMatches(String word, int maxDist) {
+        if (maxDist == 0) {
+            int t = find(word);
+            return t < 0 ? new int[0] : new int[]{t, 0};
+        }
+
+        // "$$parola$$" ha length + 2 trigrammi e ogni modifica ne cambia al più 3: chi ne
+        // condivide meno di needed non può essere vicino. I due di bordo ("$$p", "a$$")
+        // valgono 1 ciascuno se prima/ultima lettera coincidono; gli altri si contano
+        // sulle liste. Con i limiti di maxEditsFor needed resta >= 2.
+        int needed = word.length() + 2 - 3 * maxDist;
+        long[] grams = innerGrams(word);
+        int[][] lists = new int[grams.length][];
+        for (int i = 0; i < grams.length; i++) lists[i] = termGrams.getOrDefault(grams[i], NO_TERMS);
+        Arrays.sort(lists, (a, b) -> Integer.compare(a.length, b.length));
+
+        // servono almeno minInner trigrammi interni in comune: chi li ha compare in almeno
+        // una delle grams.length - minInner + 1 liste più corte, quindi i candidati vengono
+        // da lì e le altre si consultano solo per completare il conteggio
+        int minInner = needed - 2;
+        int scanned = minInner <= 0 ? lists.length : lists.length - minInner + 1;
+        int[] shared = new int[terms.length];
+        IntPairs candidates = new IntPairs();
+        for (int i = 0; i < scanned; i++) {
+            for (int t : lists[i]) {
+                if (shared[t]++ == 0) candidates.add1(t);
+            }
+        }
+        if (minInner == 0) {
+            // bastano i due bordi: parole con la stessa prima e ultima lettera
+            for (int t : termEdges.getOrDefault(edgeKey(word), NO_TERMS)) {
+                if (shared[t] == 0) candidates.add1(t);
+            }
+        } else if (minInner < 0) {
+            // maxDist oltre maxEditsFor: ogni parola di lunghezza compatibile è candidata
+            for (int t = 0; t < terms.length; t++) {
+                if (shared[t] == 0) candidates.add1(t);
+            }
+        }
+
+        IntPairs out = new IntPairs();
+        char first = word.isEmpty() ? 0 : word.charAt(0), last = word.isEmpty() ? 0 : word.charAt(word.length() - 1);
+        for (int c = 0; c < candidates.size; c++) {
+            int t = candidates.data[c];
+            if (Math.abs(termLengths[t] - word.length()) > maxDist) continue;
+            String cand = terms[t];
+            int count = shared[t];
+            if (!cand.isEmpty() && cand.charAt(0) == first) count++;
+            if (!cand.isEmpty() && cand.charAt(cand.length() - 1) == last) count++;
+            for (int i = scanned; i < lists.length && count < needed; i++) {
+                if (Arrays.binarySearch(lists[i], t) >= 0) count++;
+            }
+            if (count < needed) continue;
+            int d = boundedLevenshtein(word, cand, maxDist);
+            if (d <= maxDist) out.add(t, d);
+        }
+        return out.toArray();
+    }
+
+    /** Distanza di Levenshtein, oppure max + 1 appena si capisce che la supera. */
+    static int boundedLevenshtein(String a, String b, int max) {
+        int n = a.length(), m = b.length();
+        int[] prev = new int[m + 1];
+        int[] cur = new int[m + 1];
+        for (int j = 0; j <= m; j++) prev[j] = j;
+        for (int i = 1; i <= n; i++) {
+            cur[0] = i;
+            int rowMin = cur[0];
+            char ca = a.charAt(i - 1);
+            for (int j = 1; j <= m; j++) {
+                int cost = ca == b.charAt(j - 1) ? 0 : 1;
+                cur[j] = Math.min(Math.min(cur[j - 1] + 1, prev[j] + 1), prev[j - 1] + cost);
+                rowMin = Math.min(rowMin, cur[j]);
+            }
+            if (rowMin > max) return max + 1;
+            int[] tmp = prev;
+            prev = cur;
+            cur = tmp;
+        }
+        return prev[m];
+    }
+
+    /** Trigrammi di "$$parola$$" tranne il primo e l'ultimo ("$$p", "a$$"). */
+    private static long[] innerGrams(String word) {
+        String p = "$" + word + "$";
+        long[] g = new long[Math.max(0, p.length() - 2)];
+        for (int i = 0; i < g.length; i++) {
+            g[i] = ((long) p.charAt(i) << 32) | ((long) p.charAt(i + 1) << 16) | p.charAt(i + 2);
+        }
+        return g;
+    }
+
+    private static int edgeKey(String word) {
+        return word.charAt(0) << 16 | word.charAt(word.length() - 1);
+    }
+
+    private static Map<Long, int[]> buildTermGrams(String[] terms) {
+        Map<Long, IntPairs> acc = new HashMap<>();
+        for (int t = 0; t < terms.length; t++) {
+            for (long g : innerGrams(terms[t])) {
+                IntPairs l = acc.computeIfAbsent(g, k -> new IntPairs());
+                // una parola con trigrammi ripetuti conta una volta sola
+                if (l.size == 0 || l.data[l.size - 1] != t) l.add1(t);
+            }
+        }
+        Map<Long, int[]> out = new HashMap<>(acc.size() * 4 / 3 + 1);
+        for (Map.Entry<Long, IntPairs> e : acc.entrySet()) out.put(e.getKey(), e.getValue().toArray());
+        return out;
+    }
+
+    private static Map<Integer, int[]> buildTermEdges(String[] terms) {
+        Map<Integer, IntPairs> acc = new HashMap<>();
+        for (int t = 0; t < terms.length; t++) {
+            if (!terms[t].isEmpty()) acc.computeIfAbsent(edgeKey(terms[t]), k -> new IntPairs()).add1(t);
+        }
+        Map<Integer, int[]> out = new HashMap<>(acc.size() * 4 / 3 + 1);
+        for (Map.Entry<Integer, IntPairs> e : acc.entrySet()) out.put(e.getKey(), e.getValue().toArray());
+        return out;
+    }
+
+    /** Lista di int senza boxing. */
+    private static final class IntPairs {
+        int[] data = new int[4];
+        int size = 0;
+
+        void add1(int v) {
+            if (size == data.length) data = Arrays.copyOf(data, size * 2);
+            data[size++] = v;
+        }
+
+        void add(int a, int b) {
+            add1(a);
+            add1(b);
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(data, size);
+        }
+    }
+
+    /** Parole di un testo già normalizzato (lettere e cifre; il resto separa). */
+    static List<String> tokenize(String normalized) {
+        List<String> out = new ArrayList<>();
+        if (normalized == null) return out;
+        int start = -1;
+        for (int i = 0; i <= normalized.length(); i++) {
+            boolean word = i < normalized.length() && Character.isLetterOrDigit(normalized.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                out.add(normalized.substring(start, i));
+                start = -1;
+            }
+        }
+        return out;
+    }
+
+    /** Costruzione: documenti aggiunti in ordine di posizione. */
+    static final class Builder {
+        private final Map<String, Postings> postings = new HashMap<>();
+        private int[] lengths = new int[1024];
+        private int size = 0;
+
+        void addDocument(int d, String normalized) {
+            if (d >= lengths.length) lengths = Arrays.copyOf(lengths, Math.max(d + 1, lengths.length * 2));
+            List<String> words = tokenize(normalized);
+            lengths[d] = words.size();
+            size = d + 1;
+            for (String w : words) {
+                postings.computeIfAbsent(w, k -> new Postings()).add(d);
+            }
+        }
+
+        TermIndex build() {
+            String[] terms = postings.keySet().toArray(new String[0]);
+            Arrays.sort(terms);
+            int[][] docs = new int[terms.length][];
+            int[][] tfs = new int[terms.length][];
+            for (int t = 0; t < terms.length; t++) {
+                Postings p = postings.get(terms[t]);
+                docs[t] = Arrays.copyOf(p.docs, p.size);
+                tfs[t] = Arrays.copyOf(p.tfs, p.size);
+            }
+            postings.clear();
+            return new TermIndex(terms, docs, tfs, Arrays.copyOf(lengths, size));
+        }
+    }
+
+    private static final class Postings {
+        int[] docs = new int[2];
+        int[] tfs = new int[2];
+        int size = 0;
+
+        void add(int d) {
+            if (size > 0 && docs[size - 1] == d) {
+                tfs[size - 1]++;
+                return;
+            }
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+                tfs = Arrays.copyOf(tfs, size * 2);
+            }
+            docs[size] = d;
+            tfs[size] = 1;
+            size++;
+        }
+    }
+}
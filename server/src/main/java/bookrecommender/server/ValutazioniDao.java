@@ -25,42 +25,62 @@ public class ValutazioniDao {
     ) throws SQLException {
 
         try (Connection conn = DbManager.getConnection()) {
-            // 1) controllo che il libro sia in almeno una libreria dell’utente
-            if (!isBookInUserLibraries(conn, userid, bookId)) {
-                return false;
-            }
+            conn.setAutoCommit(false);
+            try {
+                // 1) controllo che il libro sia in almeno una libreria dell’utente
+                if (!isBookInUserLibraries(conn, userid, bookId)) {
+                    conn.rollback();
+                    return false;
+                }
 
-            // 2) controllo duplicato: stesso utente + stesso libro
-            try (PreparedStatement chk = conn.prepareStatement(
-                    "SELECT 1 FROM valutazioni_libri WHERE userid = ? AND id_libro = ?")) {
-                chk.setString(1, userid);
-                chk.setInt(2, bookId);
-                try (ResultSet rs = chk.executeQuery()) {
-                    if (rs.next()) {
+                // 2) inserimento; se l'utente ha già valutato il libro (anche in
+                //    una sessione concorrente) non si inserisce nulla e le
+                //    statistiche restano com'erano
+                String sql = """
+                        INSERT INTO valutazioni_libri
+                        (userid, id_libro, stile, contenuto, gradevolezza,
+                         originalita, edizione, voto_finale, commento)
+                        VALUES (?,?,?,?,?,?,?,?,?)
+                        ON CONFLICT (userid, id_libro) DO NOTHING
+                        """;
+
+                try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                    ps.setString(1, userid);
+                    ps.setInt(2, bookId);
+                    ps.setInt(3, stile);
+                    ps.setInt(4, contenuto);
+                    ps.setInt(5, gradevolezza);
+                    ps.setInt(6, originalita);
+                    ps.setInt(7, edizione);
+                    ps.setInt(8, votoFinale);
+                    ps.setString(9, commento);
+                    if (ps.executeUpdate() == 0) {
+                        conn.rollback();
                         return false; // già presente
                     }
                 }
-            }
 
-            // 3) inserimento
-            String sql = """
-                    INSERT INTO valutazioni_libri
-                    (userid, id_libro, stile, contenuto, gradevolezza,
-                     originalita, edizione, voto_finale, commento)
-                    VALUES (?,?,?,?,?,?,?,?,?)
-                    """;
-
-            try (PreparedStatement ps = conn.prepareStatement(sql)) {
-                ps.setString(1, userid);
-                ps.setInt(2, bookId);
-                ps.setInt(3, stile);
-                ps.setInt(4, contenuto);
-                ps.setInt(5, gradevolezza);
-                ps.setInt(6, originalita);
-                ps.setInt(7, edizione);
-                ps.setInt(8, votoFinale);
-                ps.setString(9, commento);
-                ps.executeUpdate();
+                // 3) statistiche del libro, nella stessa transazione
+                try (PreparedStatement ps = conn.prepareStatement(ADD_TO_STATS_SQL)) {
+                    ps.setInt(1, bookId);
+                    ps.setInt(2, stile);
+                    ps.setInt(3, contenuto);
+                    ps.setInt(4, gradevolezza);
+                    ps.setInt(5, originalita);
+                    ps.setInt(6, edizione);
+                    ps.setInt(7, votoFinale);
+                    for (int v = 1; v <= 5; v++) {
+                        ps.setInt(7 + v, votoFinale == v ? 1 : 0);
+                    }
+                    ps.executeUpdate();
+                }
+
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
             }
         }
 
@@ -93,61 +113,127 @@ public class ValutazioniDao {
         public Map<Integer,Integer> distribuzione = new TreeMap<>();
     }
 
+    /** Statistiche di un libro: una lettura per chiave primaria da statistiche_valutazioni. */
     public ReviewStats computeStats(int bookId) throws SQLException {
         ReviewStats s = new ReviewStats();
 
-        try (Connection conn = DbManager.getConnection()) {
-            String aggSql = """
-                    SELECT COUNT(*)        AS c,
-                           AVG(stile)      AS ms,
-                           AVG(contenuto)  AS mc,
-                           AVG(gradevolezza) AS mg,
-                           AVG(originalita)  AS mo,
-                           AVG(edizione)     AS me,
-                           AVG(voto_finale)  AS mv
-                    FROM valutazioni_libri
-                    WHERE id_libro = ?
-                    """;
-
-            try (PreparedStatement ps = conn.prepareStatement(aggSql)) {
-                ps.setInt(1, bookId);
-                try (ResultSet rs = ps.executeQuery()) {
-                    if (rs.next()) {
-                        s.count = rs.getInt("c");
-                        if (s.count == 0) {
-                            return s;
-                        }
-                        s.mediaStile        = rs.getDouble("ms");
-                        s.mediaContenuto    = rs.getDouble("mc");
-                        s.mediaGradevolezza = rs.getDouble("mg");
-                        s.mediaOriginalita  = rs.getDouble("mo");
-                        s.mediaEdizione     = rs.getDouble("me");
-                        s.mediaVotoFinale   = rs.getDouble("mv");
-                    }
-                }
-            }
+        String sql = """
+                SELECT n_valutazioni, somma_stile, somma_contenuto, somma_gradevolezza,
+                       somma_originalita, somma_edizione, somma_voto_finale,
+                       voto_1, voto_2, voto_3, voto_4, voto_5
+                FROM statistiche_valutazioni
+                WHERE id_libro = ?
+                """;
 
-            if (s.count == 0) return s;
-
-            String distSql = """
-                    SELECT voto_finale, COUNT(*) AS c
-                    FROM valutazioni_libri
-                    WHERE id_libro = ?
-                    GROUP BY voto_finale
-                    ORDER BY voto_finale
-                    """;
-
-            try (PreparedStatement ps = conn.prepareStatement(distSql)) {
-                ps.setInt(1, bookId);
-                try (ResultSet rs = ps.executeQuery()) {
-                    while (rs.next()) {
-                        s.distribuzione.put(rs.getInt("voto_finale"),
-                                            rs.getInt("c"));
-                    }
+        try (Connection conn = DbManager.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setInt(1, bookId);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) return s;
+                s.count = rs.getInt("n_valutazioni");
+                if (s.count == 0) return s;
+
+                double n = s.count;
+                s.mediaStile        = rs.getLong("somma_stile") / n;
+                s.mediaContenuto    = rs.getLong("somma_contenuto") / n;
+                s.mediaGradevolezza = rs.getLong("somma_gradevolezza") / n;
+                s.mediaOriginalita  = rs.getLong("somma_originalita") / n;
+                s.mediaEdizione     = rs.getLong("somma_edizione") / n;
+                s.mediaVotoFinale   = rs.getLong("somma_voto_finale") / n;
+                for (int v = 1; v <= 5; v++) {
+                    int c = rs.getInt("voto_" + v);
+                    if (c > 0) s.distribuzione.put(v, c);
                 }
             }
         }
 
         return s;
     }
+
+    // ==== Tabella statistiche_valutazioni ====
+
+    /** Aggiunge una valutazione alle statistiche del libro (crea la riga se manca). */
+    private static final String ADD_TO_STATS_SQL = """
+            INSERT INTO statistiche_valutazioni AS t
+                (id_libro, n_valutazioni, somma_stile, somma_contenuto, somma_gradevolezza,
+                 somma_originalita, somma_edizione, somma_voto_finale,
+                 voto_1, voto_2, voto_3, voto_4, voto_5)
+            VALUES (?, 1, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
+            ON CONFLICT (id_libro) DO UPDATE SET
+                n_valutazioni      = t.n_valutazioni + 1,
+                somma_stile        = t.somma_stile + EXCLUDED.somma_stile,
+                somma_contenuto    = t.somma_contenuto + EXCLUDED.somma_contenuto,
+                somma_gradevolezza = t.somma_gradevolezza + EXCLUDED.somma_gradevolezza,
+                somma_originalita  = t.somma_originalita + EXCLUDED.somma_originalita,
+                somma_edizione     = t.somma_edizione + EXCLUDED.somma_edizione,
+                somma_voto_finale  = t.somma_voto_finale + EXCLUDED.somma_voto_finale,
+                voto_1 = t.voto_1 + EXCLUDED.voto_1,
+                voto_2 = t.voto_2 + EXCLUDED.voto_2,
+                voto_3 = t.voto_3 + EXCLUDED.voto_3,
+                voto_4 = t.voto_4 + EXCLUDED.voto_4,
+                voto_5 = t.voto_5 + EXCLUDED.voto_5
+            """;
+
+    /**
+     * Ricalcola da valutazioni_libri le statistiche dei libri scelti da
+     * {@code filtro} (condizione su v.id_libro). Stessa query della
+     * migrazione 003_review_stats.sql.
+     */
+    static String recomputeStatsSql(String filtro) {
+        return """
+                INSERT INTO statistiche_valutazioni
+                    (id_libro, n_valutazioni, somma_stile, somma_contenuto, somma_gradevolezza,
+                     somma_originalita, somma_edizione, somma_voto_finale,
+                     voto_1, voto_2, voto_3, voto_4, voto_5)
+                SELECT v.id_libro, COUNT(*), SUM(v.stile), SUM(v.contenuto), SUM(v.gradevolezza),
+                       SUM(v.originalita), SUM(v.edizione), SUM(v.voto_finale),
+                       COUNT(*) FILTER (WHERE v.voto_finale = 1), COUNT(*) FILTER (WHERE v.voto_finale = 2),
+                       COUNT(*) FILTER (WHERE v.voto_finale = 3), COUNT(*) FILTER (WHERE v.voto_finale = 4),
+                       COUNT(*) FILTER (WHERE v.voto_finale = 5)
+                FROM valutazioni_libri v
+                WHERE %s
+                GROUP BY v.id_libro
+                ON CONFLICT (id_libro) DO UPDATE SET
+                    n_valutazioni      = EXCLUDED.n_valutazioni,
+                    somma_stile        = EXCLUDED.somma_stile,
+                    somma_contenuto    = EXCLUDED.somma_contenuto,
+                    somma_gradevolezza = EXCLUDED.somma_gradevolezza,
+                    somma_originalita  = EXCLUDED.somma_originalita,
+                    somma_edizione     = EXCLUDED.somma_edizione,
+                    somma_voto_finale  = EXCLUDED.somma_voto_finale,
+                    voto_1 = EXCLUDED.voto_1,
+                    voto_2 = EXCLUDED.voto_2,
+                    voto_3 = EXCLUDED.voto_3,
+                    voto_4 = EXCLUDED.voto_4,
+                    voto_5 = EXCLUDED.voto_5
+                """.formatted(filtro);
+    }
+
+    /**
+     * Ricalcola le statistiche dei libri con id in [from, to] e toglie le
+     * righe dei libri senza più valutazioni. Va chiamato dentro una
+     * transazione: blocca gli inserimenti di valutazioni fino al commit,
+     * così un insertReview concorrente non va perso.
+     *
+     * @return libri con statistiche
+     */
+    static int rebuildStats(Connection conn, int from, int to) throws SQLException {
+        try (Statement st = conn.createStatement()) {
+            st.execute("LOCK TABLE valutazioni_libri IN SHARE MODE");
+        }
+        try (PreparedStatement del = conn.prepareStatement("""
+                DELETE FROM statistiche_valutazioni t
+                WHERE t.id_libro BETWEEN ? AND ?
+                  AND NOT EXISTS (SELECT 1 FROM valutazioni_libri v WHERE v.id_libro = t.id_libro)
+                """)) {
+            del.setInt(1, from);
+            del.setInt(2, to);
+            del.executeUpdate();
+        }
+        try (PreparedStatement ps = conn.prepareStatement(recomputeStatsSql("v.id_libro BETWEEN ? AND ?"))) {
+            ps.setInt(1, from);
+            ps.setInt(2, to);
+            return ps.executeUpdate();
+        }
+    }
 }